@@ -7,6 +7,7 @@ import org.springframework.boot.context.embedded.MultipartConfigFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import springfox.documentation.builders.ApiInfoBuilder;
 import springfox.documentation.builders.PathSelectors;
 import springfox.documentation.builders.RequestHandlerSelectors;
@@ -16,19 +17,31 @@ import springfox.documentation.spring.web.plugins.Docket;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 import javax.servlet.MultipartConfigElement;
+import java.io.File;
 
 @Configuration
 @ComponentScan
 @EnableAutoConfiguration
 @SpringBootApplication
 @EnableSwagger2
+@EnableScheduling
 public class Application {
 
+  /**
+   * Uploaded files above the threshold are written to temporary files while the
+   * request is parsed, so large uploads are never held in memory.
+   */
   @Bean
-  public MultipartConfigElement multipartConfigElement() {
+  public MultipartConfigElement multipartConfigElement(ArchiveProperties properties) {
     MultipartConfigFactory factory = new MultipartConfigFactory();
     factory.setMaxFileSize("2048MB");
     factory.setMaxRequestSize("2048MB");
+    factory.setFileSizeThreshold((int) Math.min(Integer.MAX_VALUE, properties.getUploads().getMultipartThreshold()));
+    String location = properties.getUploads().getMultipartLocation();
+    if (location != null && !location.isEmpty()) {
+      new File(location).mkdirs();
+      factory.setLocation(location);
+    }
     return factory.createMultipartConfig();
   }
 
@@ -0,0 +1,778 @@
+package archive;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Settings of the archive, bound from the archive.* properties.
+ * <p>
+ * Settings are bound with ConfigurationProperties rather than @Value, because the
+ * PropertyPlaceholderConfigurer registered by springfox resolves @Value defaults
+ * before the properties of the Spring environment are consulted.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Component
+@ConfigurationProperties(prefix = "archive")
+public class ArchiveProperties {
+
+  /** Root directories of the archive, the first one holds the state of the archive. */
+  private List<String> directories = new ArrayList<>();
+  private final Packs packs = new Packs();
+  private final Thumbnails thumbnails = new Thumbnails();
+  private final Uploads uploads = new Uploads();
+  private final Changes changes = new Changes();
+  private final Scrub scrub = new Scrub();
+  private final Quota quota = new Quota();
+  private final Scan scan = new Scan();
+  private final Retention retention = new Retention();
+  private final Search search = new Search();
+  private final Imports imports = new Imports();
+  private final Snapshot snapshot = new Snapshot();
+  private final Io io = new Io();
+  private final Replication replication = new Replication();
+  private final Versions versions = new Versions();
+
+  public List<String> getDirectories() {
+    return directories;
+  }
+
+  public void setDirectories(List<String> directories) {
+    this.directories = directories;
+  }
+
+  public Packs getPacks() {
+    return packs;
+  }
+
+  public Thumbnails getThumbnails() {
+    return thumbnails;
+  }
+
+  public Uploads getUploads() {
+    return uploads;
+  }
+
+  public Changes getChanges() {
+    return changes;
+  }
+
+  public Scrub getScrub() {
+    return scrub;
+  }
+
+  public Quota getQuota() {
+    return quota;
+  }
+
+  public Scan getScan() {
+    return scan;
+  }
+
+  public Retention getRetention() {
+    return retention;
+  }
+
+  public Search getSearch() {
+    return search;
+  }
+
+  public Imports getImports() {
+    return imports;
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  public Io getIo() {
+    return io;
+  }
+
+  public Replication getReplication() {
+    return replication;
+  }
+
+  public Versions getVersions() {
+    return versions;
+  }
+
+  /**
+   * Storage of small documents in pack segments.
+   */
+  public static class Packs {
+    /** Documents smaller than this number of bytes are stored in pack segments, 0 disables packing. */
+    private long threshold = 65536;
+    /** Size in bytes after which a new segment is started. */
+    private long segmentSize = 256L * 1024 * 1024;
+    /** Segments with a smaller share of live data are compacted. */
+    private double minLiveRatio = 0.5;
+
+    public long getThreshold() {
+      return threshold;
+    }
+
+    public void setThreshold(long threshold) {
+      this.threshold = threshold;
+    }
+
+    public long getSegmentSize() {
+      return segmentSize;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+      this.segmentSize = segmentSize;
+    }
+
+    public double getMinLiveRatio() {
+      return minLiveRatio;
+    }
+
+    public void setMinLiveRatio(double minLiveRatio) {
+      this.minLiveRatio = minLiveRatio;
+    }
+  }
+
+  /**
+   * Background generation of thumbnails.
+   */
+  public static class Thumbnails {
+    /** Longest side of a thumbnail in pixels. */
+    private int size = 200;
+    /** Number of worker threads. */
+    private int threads = 1;
+    /** Maximum number of queued thumbnails. */
+    private int queue = 256;
+
+    public int getSize() {
+      return size;
+    }
+
+    public void setSize(int size) {
+      this.size = size;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public void setThreads(int threads) {
+      this.threads = threads;
+    }
+
+    public int getQueue() {
+      return queue;
+    }
+
+    public void setQueue(int queue) {
+      this.queue = queue;
+    }
+  }
+
+  /**
+   * Resumable uploads.
+   */
+  public static class Uploads {
+    /** Hours after which an upload which is not committed is deleted. */
+    private long expiryHours = 48;
+    /** Maximum number of uploads and chunks received at the same time. */
+    private int maxConcurrent = 2 * Runtime.getRuntime().availableProcessors();
+    /** Maximum number of bytes of the uploads received at the same time. */
+    private long maxBytes = 512L * 1024 * 1024;
+    /** Share of the free heap the uploads received at the same time may use. */
+    private double heapFraction = 0.5;
+    /** Maximum number of uploads waiting to be received. */
+    private int maxQueued = 32;
+    /** Milliseconds an upload waits before it is rejected with 503. */
+    private long queueTimeout = 5000;
+    /** Milliseconds per MB written above which fewer uploads are received at the same time. */
+    private long writeLatencyThreshold = 100;
+    /** Size in bytes above which the file of a multipart upload is written to a temporary file rather than kept in memory. */
+    private long multipartThreshold = 65536;
+    /** Directory of the temporary files of multipart uploads, the temporary directory of the server if empty. */
+    private String multipartLocation = "";
+
+    public long getExpiryHours() {
+      return expiryHours;
+    }
+
+    public void setExpiryHours(long expiryHours) {
+      this.expiryHours = expiryHours;
+    }
+
+    public int getMaxConcurrent() {
+      return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+      this.maxConcurrent = maxConcurrent;
+    }
+
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    public double getHeapFraction() {
+      return heapFraction;
+    }
+
+    public void setHeapFraction(double heapFraction) {
+      this.heapFraction = heapFraction;
+    }
+
+    public int getMaxQueued() {
+      return maxQueued;
+    }
+
+    public void setMaxQueued(int maxQueued) {
+      this.maxQueued = maxQueued;
+    }
+
+    public long getQueueTimeout() {
+      return queueTimeout;
+    }
+
+    public void setQueueTimeout(long queueTimeout) {
+      this.queueTimeout = queueTimeout;
+    }
+
+    public long getWriteLatencyThreshold() {
+      return writeLatencyThreshold;
+    }
+
+    public void setWriteLatencyThreshold(long writeLatencyThreshold) {
+      this.writeLatencyThreshold = writeLatencyThreshold;
+    }
+
+    public long getMultipartThreshold() {
+      return multipartThreshold;
+    }
+
+    public void setMultipartThreshold(long multipartThreshold) {
+      this.multipartThreshold = multipartThreshold;
+    }
+
+    public String getMultipartLocation() {
+      return multipartLocation;
+    }
+
+    public void setMultipartLocation(String multipartLocation) {
+      this.multipartLocation = multipartLocation;
+    }
+  }
+
+  /**
+   * The change feed.
+   */
+  public static class Changes {
+    /** Number of recent changes which can be fetched. */
+    private int retention = 10000;
+    /** Maximum number of threads sending the change feed to subscribers. */
+    private int feedThreads = 16;
+
+    public int getRetention() {
+      return retention;
+    }
+
+    public void setRetention(int retention) {
+      this.retention = retention;
+    }
+
+    public int getFeedThreads() {
+      return feedThreads;
+    }
+
+    public void setFeedThreads(int feedThreads) {
+      this.feedThreads = feedThreads;
+    }
+  }
+
+  /**
+   * Background verification of the document checksums.
+   */
+  public static class Scrub {
+    private boolean enabled = true;
+    /** Maximum read rate of the scrubber in bytes per second. */
+    private long bytesPerSecond = 8L * 1024 * 1024;
+    /** Average request latency in ms above which the scrubber slows down. */
+    private long latencyThreshold = 200;
+    /** Hours between the start of two passes over the archive. */
+    private long intervalHours = 24;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getBytesPerSecond() {
+      return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getLatencyThreshold() {
+      return latencyThreshold;
+    }
+
+    public void setLatencyThreshold(long latencyThreshold) {
+      this.latencyThreshold = latencyThreshold;
+    }
+
+    public long getIntervalHours() {
+      return intervalHours;
+    }
+
+    public void setIntervalHours(long intervalHours) {
+      this.intervalHours = intervalHours;
+    }
+  }
+
+  /**
+   * Limits of the stored bytes, 0 means unlimited.
+   */
+  public static class Quota {
+    /** Maximum bytes of the whole archive. */
+    private long totalBytes;
+    /** Maximum bytes of each person. */
+    private long personBytes;
+    /** Maximum bytes of single persons by name, overriding personBytes. */
+    private Map<String, Long> persons = new HashMap<>();
+
+    public long getTotalBytes() {
+      return totalBytes;
+    }
+
+    public void setTotalBytes(long totalBytes) {
+      this.totalBytes = totalBytes;
+    }
+
+    public long getPersonBytes() {
+      return personBytes;
+    }
+
+    public void setPersonBytes(long personBytes) {
+      this.personBytes = personBytes;
+    }
+
+    public Map<String, Long> getPersons() {
+      return persons;
+    }
+
+    public void setPersons(Map<String, Long> persons) {
+      this.persons = persons;
+    }
+
+    /**
+     * @return The limit of the given person, 0 if unlimited
+     */
+    public long getPersonBytes(String personName) {
+      Long limit = personName == null ? null : persons.get(personName);
+      return limit != null ? limit : personBytes;
+    }
+  }
+
+  /**
+   * Parallel scans of the meta data index.
+   */
+  public static class Scan {
+    /** Number of threads of the scan pool. */
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public int getParallelism() {
+      return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+      this.parallelism = parallelism;
+    }
+  }
+
+  /**
+   * The cache of search results.
+   */
+  public static class Search {
+    /** Number of queries whose results are cached, 0 disables the cache. */
+    private int cacheSize = 256;
+    /** Maximum number of results of a query which are cached. */
+    private int cacheMaxResults = 10000;
+
+    public int getCacheSize() {
+      return cacheSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+      this.cacheSize = cacheSize;
+    }
+
+    public int getCacheMaxResults() {
+      return cacheMaxResults;
+    }
+
+    public void setCacheMaxResults(int cacheMaxResults) {
+      this.cacheMaxResults = cacheMaxResults;
+    }
+  }
+
+  /**
+   * Deletion of documents after a number of years.
+   */
+  public static class Retention {
+    /**
+     * Years after the document date after which documents are deleted, by content
+     * type, e.g. years[application/pdf]=10. Keys may be a type like image/* or *.
+     */
+    private Map<String, Integer> years = new HashMap<>();
+    /** Maximum number of documents deleted per second. */
+    private int purgePerSecond = 20;
+
+    public Map<String, Integer> getYears() {
+      return years;
+    }
+
+    public void setYears(Map<String, Integer> years) {
+      this.years = years;
+    }
+
+    public int getPurgePerSecond() {
+      return purgePerSecond;
+    }
+
+    public void setPurgePerSecond(int purgePerSecond) {
+      this.purgePerSecond = purgePerSecond;
+    }
+
+    /**
+     * @return The retention in years of a content type, null if documents are kept forever
+     */
+    public Integer getYears(String contentType) {
+      if (contentType == null) {
+        return years.get("*");
+      }
+      String type = contentType.toLowerCase(Locale.ROOT);
+      int parameters = type.indexOf(';');
+      if (parameters >= 0) {
+        type = type.substring(0, parameters).trim();
+      }
+      Integer result = years.get(type);
+      if (result == null && type.indexOf('/') > 0) {
+        result = years.get(type.substring(0, type.indexOf('/')) + "/*");
+      }
+      return result != null ? result : years.get("*");
+    }
+  }
+
+  /**
+   * Bulk imports of file trees.
+   */
+  public static class Imports {
+    /** Directories on the server below which sources may be imported, no import is allowed if empty. */
+    private List<String> roots = new ArrayList<>();
+    /** Number of threads which copy the files. */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /** Number of documents which are indexed and checkpointed together. */
+    private int batchSize = 500;
+    /** Maximum number of enumerated files waiting to be copied. */
+    private int queue = 10000;
+    /** Interval in ms between two reports of the throughput in the log. */
+    private long reportInterval = 10000;
+
+    public List<String> getRoots() {
+      return roots;
+    }
+
+    public void setRoots(List<String> roots) {
+      this.roots = roots;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+
+    public void setThreads(int threads) {
+      this.threads = threads;
+    }
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    public int getQueue() {
+      return queue;
+    }
+
+    public void setQueue(int queue) {
+      this.queue = queue;
+    }
+
+    public long getReportInterval() {
+      return reportInterval;
+    }
+
+    public void setReportInterval(long reportInterval) {
+      this.reportInterval = reportInterval;
+    }
+  }
+
+  /**
+   * Snapshots of the meta data index which are loaded at startup.
+   */
+  public static class Snapshot {
+    /** Load the index from a snapshot at startup and save snapshots, else every document is read at startup. */
+    private boolean enabled = true;
+    /** Minimum interval in ms between two snapshots while the archive changes. */
+    private long interval = 300000;
+    /** Reconcile a loaded snapshot with the document folders in the background. */
+    private boolean verify = true;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public long getInterval() {
+      return interval;
+    }
+
+    public void setInterval(long interval) {
+      this.interval = interval;
+    }
+
+    public boolean isVerify() {
+      return verify;
+    }
+
+    public void setVerify(boolean verify) {
+      this.verify = verify;
+    }
+  }
+
+  /**
+   * Scheduling of disk operations, see {@link archive.dao.IoScheduler}.
+   */
+  public static class Io {
+    /** Number of disk operations which run at the same time. */
+    private int concurrency = 8;
+    /** Number of those which only meta data reads and small reads and writes may take. */
+    private int reserved = 2;
+    /** Documents up to this number of bytes are read and written as small operations. */
+    private long smallThreshold = 1048576;
+    /** Size in bytes of the chunks in which large writes wait for the disk. */
+    private int chunkSize = 262144;
+    /** Share of the disk of meta data reads while they compete with other operations. */
+    private int metadataWeight = 8;
+    /** Share of the disk of small reads and writes. */
+    private int smallWeight = 4;
+    /** Share of the disk of large reads and writes. */
+    private int bulkWeight = 2;
+    /** Share of the disk of background jobs. */
+    private int backgroundWeight = 1;
+
+    public int getConcurrency() {
+      return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+      this.concurrency = concurrency;
+    }
+
+    public int getReserved() {
+      return reserved;
+    }
+
+    public void setReserved(int reserved) {
+      this.reserved = reserved;
+    }
+
+    public long getSmallThreshold() {
+      return smallThreshold;
+    }
+
+    public void setSmallThreshold(long smallThreshold) {
+      this.smallThreshold = smallThreshold;
+    }
+
+    public int getChunkSize() {
+      return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    public int getMetadataWeight() {
+      return metadataWeight;
+    }
+
+    public void setMetadataWeight(int metadataWeight) {
+      this.metadataWeight = metadataWeight;
+    }
+
+    public int getSmallWeight() {
+      return smallWeight;
+    }
+
+    public void setSmallWeight(int smallWeight) {
+      this.smallWeight = smallWeight;
+    }
+
+    public int getBulkWeight() {
+      return bulkWeight;
+    }
+
+    public void setBulkWeight(int bulkWeight) {
+      this.bulkWeight = bulkWeight;
+    }
+
+    public int getBackgroundWeight() {
+      return backgroundWeight;
+    }
+
+    public void setBackgroundWeight(int backgroundWeight) {
+      this.backgroundWeight = backgroundWeight;
+    }
+  }
+
+  /**
+   * Asynchronous replication from a primary archive to read replicas.
+   */
+  public static class Replication {
+    /** Base URLs of the replicas the changes are shipped to, e.g. http://localhost:8091; makes this archive a primary. */
+    private List<String> replicas = new ArrayList<>();
+    /** Accept changes from a primary and serve reads only. */
+    private boolean replica;
+    /** Base URL of the primary, a replica redirects writes and reads it is too stale for to it. */
+    private String primary;
+    /** Secret the primary sends with every batch, a replica rejects batches without it. A replica without a secret rejects all batches. */
+    private String secret = "";
+    /** Maximum number of changes shipped in one batch. */
+    private int batchSize = 500;
+    /** Bytes of documents after which no more changes are added to a batch. */
+    private long batchBytes = 16L * 1024 * 1024;
+    /** Time in ms the primary waits after a change for more changes to ship together. */
+    private long delay = 100;
+    /** Interval in ms of empty batches while nothing changes, so replicas know they are current. */
+    private long heartbeat = 1000;
+    /** Maximum age in ms of the data a replica serves, else reads go to the primary. 0 serves any data. */
+    private long maxStaleness = 10000;
+    /** Connect and read timeout in ms of the requests to a replica. */
+    private int timeout = 30000;
+
+    public List<String> getReplicas() {
+      return replicas;
+    }
+
+    public void setReplicas(List<String> replicas) {
+      this.replicas = replicas;
+    }
+
+    public boolean isReplica() {
+      return replica;
+    }
+
+    public void setReplica(boolean replica) {
+      this.replica = replica;
+    }
+
+    public String getPrimary() {
+      return primary;
+    }
+
+    public void setPrimary(String primary) {
+      this.primary = primary;
+    }
+
+    public String getSecret() {
+      return secret;
+    }
+
+    public void setSecret(String secret) {
+      this.secret = secret;
+    }
+
+    public int getBatchSize() {
+      return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+      this.batchSize = batchSize;
+    }
+
+    public long getBatchBytes() {
+      return batchBytes;
+    }
+
+    public void setBatchBytes(long batchBytes) {
+      this.batchBytes = batchBytes;
+    }
+
+    public long getDelay() {
+      return delay;
+    }
+
+    public void setDelay(long delay) {
+      this.delay = delay;
+    }
+
+    public long getHeartbeat() {
+      return heartbeat;
+    }
+
+    public void setHeartbeat(long heartbeat) {
+      this.heartbeat = heartbeat;
+    }
+
+    public long getMaxStaleness() {
+      return maxStaleness;
+    }
+
+    public void setMaxStaleness(long maxStaleness) {
+      this.maxStaleness = maxStaleness;
+    }
+
+    public int getTimeout() {
+      return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+      this.timeout = timeout;
+    }
+  }
+
+  /**
+   * Storage of the older versions of documents.
+   */
+  public static class Versions {
+    /** Size in bytes above which a previous version is kept as a copy instead of a delta, so it is not held in memory. */
+    private long deltaThreshold = 16L * 1024 * 1024;
+
+    public long getDeltaThreshold() {
+      return deltaThreshold;
+    }
+
+    public void setDeltaThreshold(long deltaThreshold) {
+      this.deltaThreshold = deltaThreshold;
+    }
+  }
+}
@@ -1,24 +1,42 @@
 package archive.controller;
 
 
+import archive.model.ArchiveAggregates;
 import archive.model.Document;
+import archive.model.DocumentChange;
 import archive.model.DocumentMetadata;
+import archive.model.DocumentOrder;
+import archive.model.DocumentQuery;
+import archive.model.ImportStatus;
+import archive.model.NameMatch;
+import archive.model.QuotaUsage;
+import archive.model.ReplicationStatus;
+import archive.model.RetentionStatus;
+import archive.model.ScrubReport;
+import archive.model.UploadSession;
 import archive.service.IArchiveService;
+import archive.service.QuotaExceededException;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.*;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URLConnection;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 //import org.apache.log4j.Logger;
 
@@ -30,13 +48,54 @@ import java.util.List;
  * person: The name of the uploading person
  * date: The date of the document
  * <p>
- * /archive/documents?person={person}&date={date}           Find documents  GET
+ * /archive/uploads?file={file}&person={person}&date={date}&size={size}  Start a resumable upload  POST
+ * /archive/uploads/{id}                                    Get the state of an upload  GET
+ * /archive/uploads/{id}/chunks/{n}                         Send chunk n of an upload  PUT
+ * /archive/uploads/{id}/commit                             Save the upload as document  POST
+ * /archive/uploads/{id}                                    Cancel an upload  DELETE
+ * <p>
+ * /archive/documents?person={person}&match={match}&date={date}  Find documents  GET
  * person: The name of the uploading person
+ * match: How to match the person name: EXACT, IGNORE_CASE, PREFIX or TOKEN
  * date: The date of the document
+ * from, to: The range of document dates
+ * sort: The order of the results: DATE_ASC, DATE_DESC, FILE_NAME_ASC or FILE_NAME_DESC
+ * limit: The maximum number of results
+ * <p>
+ * /archive/documents/scan?filter={filter}&sort={sort}&limit={limit}  Find documents matching a filter  GET
+ * filter: An expression like contentType ~ "pdf" and (fileName glob "*.jpg" or fileSize > 1000)
  * <p>
  * /archive/document/{id}                                   Get a document  GET
  * id: The UUID of a document
  * <p>
+ * /archive/document/{id}/thumbnail                         Get a thumbnail GET
+ * id: The UUID of an image document
+ * <p>
+ * /archive/document/{id}/versions?file={file}&person={person}&date={date}  Add a new version  POST
+ * /archive/document/{id}/versions                          Get the versions of a document  GET
+ * /archive/document/{id}/versions/{n}                      Get version n of a document  GET
+ * <p>
+ * /archive/aggregates                                      Get aggregates  GET
+ * /archive/usage?person={person}                           Get the usage and quota of a person or the archive  GET
+ * /archive/retention                                       Get the retention rules and scheduled deletions  GET
+ * <p>
+ * /archive/changes?since={n}&limit={limit}                 Get the changes after n  GET
+ * /archive/changes/stream?since={n}                        Subscribe to the changes after n  GET
+ * <p>
+ * /archive/scrub                                           Get missing and corrupt documents  GET
+ * /archive/scrub                                           Start a verification pass  POST
+ * <p>
+ * /archive/import?source={dir}&person={person}&link={link} Start a bulk import of a directory on the server  POST
+ * /archive/import                                          Get the progress of the bulk import  GET
+ * /archive/import                                          Stop the bulk import  DELETE
+ * <p>
+ * /archive/replication                                     Apply a batch of changes from the primary  POST
+ * /archive/replication/compare                             Find the documents a replica is missing  POST
+ * /archive/replication                                     Get the state of the replication  GET
+ * <p>
+ * /archive/metadata                                        Get the meta data of a list of documents  POST
+ * /archive/metadata/convert                                Convert legacy meta data files  POST
+ * <p>
  * All service calls are delegated to instances of {@link IArchiveService}.
  *
  * @author Acha Bill <achabill12[at]gmail[dot]com>
@@ -46,19 +105,25 @@ import java.util.List;
 public class ArchiveController {
 
   private static final Logger LOG = Logger.getLogger(ArchiveController.class);
+  private static final long THUMBNAIL_MAX_AGE = 31536000L; // ..s = 1 year.
+  private static final int MAX_CHANGES = 1000;
+  private static final int MAX_METADATA_IDS = 1000;
 
   @Autowired
   IArchiveService archiveService;
 
   /**
-   * Adds a document to the archive.
+   * Adds a document to the archive. If the person is sent in the query string, an
+   * upload over quota is rejected before its body is read, see
+   * {@link archive.monitor.QuotaAdmission}.
    * <p>
    * Url: /archive/upload?file={file}&person={person}&date={date} [POST]
    *
    * @param file   A file posted in a multipart request
    * @param person The name of the uploading person
    * @param date   The date of the document
-   * @return The meta data of the added document
+   * @return The meta data of the added document, 507 if the quota of the person or archive is exceeded
+   *         and 503 with Retry-After if too many uploads are received, see {@link archive.monitor.UploadAdmission}
    */
   @RequestMapping(value = "/upload", method = RequestMethod.POST)
   @ApiOperation(value = "Upload a document", notes = "Adds a document to the archive")
@@ -74,9 +139,12 @@ public class ArchiveController {
       if(contentType == null)
         throw new RuntimeException("Invalid content type");
 
-      Document document = new Document(file.getBytes(), file.getOriginalFilename(), date, person,contentType);
-      getArchiveService().save(document);
-      return document.getMetadata();
+      getArchiveService().checkQuota(person, file.getSize());
+      Document document = new Document(null, file.getOriginalFilename(), date, person,contentType);
+      return getArchiveService().save(document, file);
+    } catch (QuotaExceededException e) {
+      LOG.info("Upload rejected. " + e.getMessage());
+      throw e;
     } catch (RuntimeException e) {
       LOG.error("Error while uploading. " + e.getMessage(), e);
       throw e;
@@ -86,17 +154,133 @@ public class ArchiveController {
     }
   }
 
+  /**
+   * Starts a resumable upload. The file is sent in chunks of chunkSize bytes, the
+   * chunks can be sent in parallel and in any order. Returns the upload session.
+   * <p>
+   * Url: /archive/uploads?file={file}&person={person}&date={date}&contenttype={contenttype}&size={size}&chunkSize={chunkSize} [POST]
+   *
+   * @param fileName    The file name of the document
+   * @param person      The name of the uploading person
+   * @param date        The date of the document
+   * @param contentType The content type of the document
+   * @param size        The size of the file in bytes
+   * @param chunkSize   The size of the chunks in bytes, 8MB by default
+   * @return The upload session
+   */
+  @RequestMapping(value = "/uploads", method = RequestMethod.POST)
+  @ApiOperation(value = "Start a resumable upload", notes = "Creates an upload session, the file is sent in chunks")
+  public HttpEntity<UploadSession> createUpload(
+    @RequestParam(value = "file", required = true) String fileName,
+    @RequestParam(value = "person", required = true) String person,
+    @RequestParam(value = "date", required = true) @DateTimeFormat(pattern = "yyyy-MM-dd") Date date,
+    @RequestParam(value = "contenttype", required = true) String contentType,
+    @RequestParam(value = "size", required = true) long size,
+    @RequestParam(value = "chunkSize", required = false) Integer chunkSize) throws IOException {
+    try {
+      return new ResponseEntity<UploadSession>(getArchiveService().createUpload(fileName, person, date, contentType, size, chunkSize), HttpStatus.CREATED);
+    } catch (IllegalArgumentException e) {
+      LOG.error("Error while creating upload. " + e.getMessage());
+      return new ResponseEntity<UploadSession>(HttpStatus.BAD_REQUEST);
+    }
+  }
+
+  /**
+   * Returns the state of a resumable upload including the missing chunks.
+   * <p>
+   * Url: /archive/uploads/{id} [GET]
+   *
+   * @param id The id of the upload
+   * @return The upload session
+   */
+  @RequestMapping(value = "/uploads/{id}", method = RequestMethod.GET)
+  @ApiOperation(value = "Get upload state", notes = "Returns the state of a resumable upload including the missing chunks")
+  public HttpEntity<UploadSession> getUpload(@PathVariable String id) throws IOException {
+    UploadSession session = getArchiveService().getUpload(id);
+    return new ResponseEntity<UploadSession>(session, session == null ? HttpStatus.NOT_FOUND : HttpStatus.OK);
+  }
+
+  /**
+   * Writes a chunk of a resumable upload. The body of the request is the data of the chunk.
+   * The chunk is rejected if its CRC32 checksum does not match the X-Chunk-Crc32 header.
+   * <p>
+   * Url: /archive/uploads/{id}/chunks/{index} [PUT]
+   *
+   * @param id       The id of the upload
+   * @param index    The number of the chunk, starting at 0
+   * @param checksum The CRC32 checksum of the chunk as hex string
+   * @param request  The request with the chunk data as body
+   * @return The upload session
+   */
+  @RequestMapping(value = "/uploads/{id}/chunks/{index}", method = RequestMethod.PUT)
+  @ApiOperation(value = "Send an upload chunk", notes = "Writes a chunk of a resumable upload at its position")
+  public HttpEntity<UploadSession> writeUploadChunk(@PathVariable String id, @PathVariable int index,
+                                                    @RequestHeader(value = "X-Chunk-Crc32", required = true) String checksum,
+                                                    HttpServletRequest request) throws IOException {
+    try {
+      UploadSession session = getArchiveService().writeUploadChunk(id, index, request.getInputStream(), Long.parseLong(checksum, 16));
+      return new ResponseEntity<UploadSession>(session, session == null ? HttpStatus.NOT_FOUND : HttpStatus.OK);
+    } catch (IllegalArgumentException e) {
+      LOG.error("Error while writing chunk " + index + " of upload " + id + ". " + e.getMessage());
+      return new ResponseEntity<UploadSession>(HttpStatus.BAD_REQUEST);
+    } catch (IllegalStateException e) {
+      LOG.error("Error while writing chunk " + index + " of upload " + id + ". " + e.getMessage());
+      return new ResponseEntity<UploadSession>(HttpStatus.CONFLICT);
+    }
+  }
+
+  /**
+   * Saves a complete resumable upload as document in the archive.
+   * <p>
+   * Url: /archive/uploads/{id}/commit [POST]
+   *
+   * @param id The id of the upload
+   * @return The meta data of the added document
+   */
+  @RequestMapping(value = "/uploads/{id}/commit", method = RequestMethod.POST)
+  @ApiOperation(value = "Commit an upload", notes = "Saves a complete resumable upload as document")
+  public HttpEntity<DocumentMetadata> commitUpload(@PathVariable String id) throws IOException {
+    try {
+      DocumentMetadata metadata = getArchiveService().commitUpload(id);
+      return new ResponseEntity<DocumentMetadata>(metadata, metadata == null ? HttpStatus.NOT_FOUND : HttpStatus.OK);
+    } catch (IllegalStateException e) {
+      LOG.error("Error while committing upload " + id + ". " + e.getMessage());
+      return new ResponseEntity<DocumentMetadata>(HttpStatus.CONFLICT);
+    }
+  }
+
+  /**
+   * Cancels a resumable upload and deletes its data.
+   * <p>
+   * Url: /archive/uploads/{id} [DELETE]
+   *
+   * @param id The id of the upload
+   * @return The id of the upload
+   */
+  @RequestMapping(value = "/uploads/{id}", method = RequestMethod.DELETE)
+  @ApiOperation(value = "Cancel an upload", notes = "Deletes a resumable upload and its data")
+  public HttpEntity<String> abortUpload(@PathVariable String id) throws IOException {
+    getArchiveService().abortUpload(id);
+    return new ResponseEntity<String>(id, HttpStatus.ACCEPTED);
+  }
+
   /**
    * Finds document in the archive. Returns a list of document meta data
    * which does not include the file data. Use getDocument to get the file.
    * Returns an empty list if no document was found.
    * <p>
-   * Url: /archive/documents?person={person}&date={date} [GET]
+   * Url: /archive/documents?person={person}&match={match}&date={date} [GET]
    *
    * @param person The name of the uploading person
+   * @param match  How to match the person name: EXACT (default), IGNORE_CASE, PREFIX or TOKEN
    * @param contentType Search by conent type
    * @param date   The date of the document
-   * @return A list of document meta data
+   * @param from   The first document date to include, may be null
+   * @param to     The last document date to include, may be null
+   * @param sort   The order of the results, may be null
+   * @param limit  The maximum number of results, may be null
+   * @param ifNoneMatch The entity tag of the results the client has, may be null
+   * @return A list of document meta data, 304 if the results did not change
    */
   @RequestMapping(value = "/documents", method = RequestMethod.GET)
   @ApiOperation(value = "Find documents in archive", notes = " Returns a list of document meta data.\n" +
@@ -105,10 +289,56 @@ public class ArchiveController {
   public HttpEntity<List<DocumentMetadata>> findDocument(
     @RequestParam(value = "contenttype", required = false) String contentType,
     @RequestParam(value = "person", required = false) String person,
-    @RequestParam(value = "date", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date date) {
+    @RequestParam(value = "match", required = false) NameMatch match,
+    @RequestParam(value = "date", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date date,
+    @RequestParam(value = "from", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date from,
+    @RequestParam(value = "to", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date to,
+    @RequestParam(value = "sort", required = false) DocumentOrder sort,
+    @RequestParam(value = "limit", required = false) Integer limit,
+    @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
     HttpHeaders httpHeaders = new HttpHeaders();
 
-    return new ResponseEntity<List<DocumentMetadata>>(getArchiveService().findDocuments(person, date,contentType), httpHeaders, HttpStatus.OK);
+    DocumentQuery query = new DocumentQuery(person, match, date, contentType);
+    if (from != null) {
+      query.setDateFrom(from);
+    }
+    if (to != null) {
+      query.setDateTo(to);
+    }
+    query.setOrder(sort);
+    query.setLimit(limit);
+    String tag = getArchiveService().getSearchTag(query);
+    httpHeaders.setETag(tag);
+    httpHeaders.setCacheControl("no-cache");
+    if (tag.equals(ifNoneMatch)) {
+      return new ResponseEntity<List<DocumentMetadata>>(httpHeaders, HttpStatus.NOT_MODIFIED);
+    }
+    return new ResponseEntity<List<DocumentMetadata>>(getArchiveService().findDocuments(query), httpHeaders, HttpStatus.OK);
+  }
+
+  /**
+   * Finds the documents matching a filter expression which no index can answer,
+   * e.g. a content type substring or a file name pattern, with a parallel scan.
+   * <p>
+   * Url: /archive/documents/scan?filter={filter}&sort={sort}&limit={limit} [GET]
+   *
+   * @param filter The filter expression, see {@link archive.dao.MetadataFilter}
+   * @param sort   The order of the results, may be null
+   * @param limit  The maximum number of results, may be null
+   * @return A list of document meta data, 400 if the filter is invalid
+   */
+  @RequestMapping(value = "/documents/scan", method = RequestMethod.GET)
+  @ApiOperation(value = "Scan documents", notes = "Returns the meta data of the documents matching a filter expression")
+  public HttpEntity<List<DocumentMetadata>> scanDocuments(
+    @RequestParam(value = "filter", required = true) String filter,
+    @RequestParam(value = "sort", required = false) DocumentOrder sort,
+    @RequestParam(value = "limit", required = false) Integer limit) {
+    try {
+      return new ResponseEntity<List<DocumentMetadata>>(getArchiveService().scanDocuments(filter, sort, limit), HttpStatus.OK);
+    } catch (IllegalArgumentException e) {
+      LOG.info("Invalid filter. " + e.getMessage());
+      return new ResponseEntity<List<DocumentMetadata>>(HttpStatus.BAD_REQUEST);
+    }
   }
 
   /**
@@ -133,6 +363,106 @@ public class ArchiveController {
     }
   }
 
+  /**
+   * Returns the thumbnail of the image document with the given UUID.
+   * Thumbnails are generated in the background after upload, until then 404 is returned.
+   * The thumbnail is cached for a year if the version of the document is given.
+   * <p>
+   * Url: /archive/document/{id}/thumbnail?v={version} [GET]
+   *
+   * @param id      The UUID of a document
+   * @param version The version of the document, may be null
+   * @return The thumbnail image
+   */
+  @RequestMapping(value = "/document/{id}/thumbnail", method = RequestMethod.GET)
+  @ApiOperation(value = "Get document thumbnail", notes = "Returns the thumbnail of the image document with the given UUID.")
+  public HttpEntity<Resource> getThumbnail(@PathVariable String id,
+                                           @RequestParam(value = "v", required = false) Integer version) {
+    DocumentMetadata metadata = getArchiveService().getDocumentMetadata(id);
+    Resource thumbnail = metadata == null ? null : getArchiveService().getThumbnail(id);
+    if (thumbnail == null) {
+      return new ResponseEntity<Resource>(HttpStatus.NOT_FOUND);
+    }
+    String contentType = URLConnection.guessContentTypeFromName(thumbnail.getFilename());
+    HttpHeaders httpHeaders = new HttpHeaders();
+    httpHeaders.setContentType(contentType == null ? MediaType.APPLICATION_OCTET_STREAM : MediaType.parseMediaType(contentType));
+    if (version != null && version == metadata.getVersion()) {
+      httpHeaders.setCacheControl("public, max-age=" + THUMBNAIL_MAX_AGE + ", immutable");
+    } else {
+      httpHeaders.setCacheControl("no-cache");
+    }
+    httpHeaders.setETag("\"" + id + "-" + metadata.getVersion() + "\"");
+    return new ResponseEntity<Resource>(thumbnail, httpHeaders, HttpStatus.OK);
+  }
+
+  /**
+   * Adds a new version of an existing document. The previous versions remain available.
+   * <p>
+   * Url: /archive/document/{id}/versions?file={file}&person={person}&date={date} [POST]
+   *
+   * @param id     The UUID of the document
+   * @param file   A file posted in a multipart request
+   * @param person The name of the uploading person, by default the person of the document
+   * @param date   The date of the document, by default the date of the document
+   * @return The meta data of the new version, 404 if the document does not exist
+   */
+  @RequestMapping(value = "/document/{id}/versions", method = RequestMethod.POST)
+  @ApiOperation(value = "Upload a new version", notes = "Adds a new version of an existing document")
+  public HttpEntity<DocumentMetadata> uploadVersion(
+    @PathVariable String id,
+    @RequestParam(value = "file", required = true) MultipartFile file,
+    @RequestParam(value = "person", required = false) String person,
+    @RequestParam(value = "date", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date date) throws IOException {
+    DocumentMetadata current = getArchiveService().getDocumentMetadata(id);
+    if (current == null) {
+      return new ResponseEntity<DocumentMetadata>(HttpStatus.NOT_FOUND);
+    }
+    String personName = person != null ? person : current.getPersonName();
+    String contentType = file.getContentType() != null ? file.getContentType() : current.getContentType();
+    getArchiveService().checkQuota(personName, file.getSize());
+    Document document = new Document(file.getBytes(), file.getOriginalFilename(),
+      date != null ? date : current.getDocumentDate(), personName, contentType);
+    try {
+      return new ResponseEntity<DocumentMetadata>(getArchiveService().saveVersion(id, document), HttpStatus.CREATED);
+    } catch (FileNotFoundException e) {
+      return new ResponseEntity<DocumentMetadata>(HttpStatus.NOT_FOUND);
+    }
+  }
+
+  /**
+   * Returns the meta data of all versions of a document, the oldest first.
+   * <p>
+   * Url: /archive/document/{id}/versions [GET]
+   *
+   * @param id The UUID of the document
+   * @return The meta data of the versions
+   */
+  @RequestMapping(value = "/document/{id}/versions", method = RequestMethod.GET)
+  @ApiOperation(value = "Get versions", notes = "Returns the meta data of all versions of a document")
+  public HttpEntity<List<DocumentMetadata>> getVersions(@PathVariable String id) throws IOException {
+    List<DocumentMetadata> versions = getArchiveService().getVersions(id);
+    return new ResponseEntity<List<DocumentMetadata>>(versions, versions == null ? HttpStatus.NOT_FOUND : HttpStatus.OK);
+  }
+
+  /**
+   * Returns a version of a document file in multipart download.
+   * <p>
+   * Url: /archive/document/{id}/versions/{version} [GET]
+   *
+   * @param id      The UUID of the document
+   * @param version The number of the version, starting at 1
+   * @return The file of the version, 404 if it does not exist
+   */
+  @RequestMapping(value = "/document/{id}/versions/{version}", method = RequestMethod.GET)
+  @ApiOperation(value = "Get a version", notes = "Returns the file of a version of a document")
+  public HttpEntity<?> getVersion(@PathVariable String id, @PathVariable int version,
+                                  HttpServletRequest request, HttpServletResponse response) throws Exception {
+    if (getArchiveService().getDocumentVersionMultipart(id, version, request, response) == null) {
+      return new ResponseEntity<String>(HttpStatus.NOT_FOUND);
+    }
+    return new ResponseEntity<String>("multipart", HttpStatus.OK);
+  }
+
   /**
    * Deletes the document from the archive with the given UUID.
    * <p>
@@ -156,6 +486,268 @@ public class ArchiveController {
     return new ResponseEntity<String>("Deleted all", HttpStatus.ACCEPTED);
   }
 
+  /**
+   * Returns the document counts and total bytes of the archive, in total and
+   * per person, content type and month.
+   * <p>
+   * Url: /archive/aggregates [GET]
+   *
+   * @return The aggregates of the archive
+   */
+  @RequestMapping(value = "/aggregates", method = RequestMethod.GET)
+  @ApiOperation(value = "Get aggregates", notes = "Returns the document counts and total bytes per person, content type and month")
+  public HttpEntity<ArchiveAggregates> getAggregates() {
+    return new ResponseEntity<ArchiveAggregates>(getArchiveService().getAggregates(), HttpStatus.OK);
+  }
+
+  /**
+   * Returns the stored documents and bytes and the quota of a person, or of the
+   * whole archive if no person is given.
+   * <p>
+   * Url: /archive/usage?person={person} [GET]
+   *
+   * @param person The name of a person
+   * @return The usage
+   */
+  @RequestMapping(value = "/usage", method = RequestMethod.GET)
+  @ApiOperation(value = "Get usage", notes = "Returns the stored bytes and quota of a person or the archive")
+  public HttpEntity<QuotaUsage> getUsage(@RequestParam(value = "person", required = false) String person) {
+    return new ResponseEntity<QuotaUsage>(getArchiveService().getUsage(person), HttpStatus.OK);
+  }
+
+  /**
+   * Returns the retention periods by content type and the number of documents
+   * scheduled for deletion and deleted after their retention period.
+   * <p>
+   * Url: /archive/retention [GET]
+   *
+   * @return The retention status
+   */
+  @RequestMapping(value = "/retention", method = RequestMethod.GET)
+  @ApiOperation(value = "Get retention status", notes = "Returns the retention rules and the scheduled deletions")
+  public HttpEntity<RetentionStatus> getRetentionStatus() {
+    return new ResponseEntity<RetentionStatus>(getArchiveService().getRetentionStatus(), HttpStatus.OK);
+  }
+
+  /**
+   * Returns the inserts and deletes after the given sequence in order. Inserts
+   * carry the meta data of the document if it still exists.
+   * <p>
+   * Url: /archive/changes?since={n}&limit={limit} [GET]
+   *
+   * @param since The sequence of the last change seen by the client
+   * @param limit The maximum number of changes
+   * @return The changes, or 410 Gone if they are no longer retained and the client must reload
+   */
+  @RequestMapping(value = "/changes", method = RequestMethod.GET)
+  @ApiOperation(value = "Get changes", notes = "Returns the inserts and deletes after the given sequence, 410 if they are no longer retained")
+  public HttpEntity<List<DocumentChange>> getChanges(@RequestParam(value = "since", defaultValue = "0") long since,
+                                                     @RequestParam(value = "limit", required = false) Integer limit) {
+    int max = limit == null ? MAX_CHANGES : Math.max(0, Math.min(limit, MAX_CHANGES));
+    List<DocumentChange> changes = getArchiveService().getChanges(since, max);
+    if (changes == null) {
+      return new ResponseEntity<List<DocumentChange>>(HttpStatus.GONE);
+    }
+    return new ResponseEntity<List<DocumentChange>>(changes, HttpStatus.OK);
+  }
+
+  /**
+   * Streams the inserts and deletes after the given sequence as server-sent events
+   * named insert and delete, with the sequence as event id. A reconnecting
+   * EventSource continues after the Last-Event-ID. A reset event tells the client
+   * that changes were missed and it must reload.
+   * <p>
+   * Url: /archive/changes/stream?since={n} [GET]
+   *
+   * @param since       The sequence of the last change seen by the client, default is the current sequence
+   * @param lastEventId The id of the last event received before a reconnect
+   * @return The event stream
+   */
+  @RequestMapping(value = "/changes/stream", method = RequestMethod.GET, produces = "text/event-stream")
+  @ApiOperation(value = "Stream changes", notes = "Streams the inserts and deletes as server-sent events")
+  public SseEmitter streamChanges(@RequestParam(value = "since", required = false) Long since,
+                                  @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+    return getArchiveService().subscribeChanges(lastEventId != null ? lastEventId : since);
+  }
+
+  /**
+   * Returns the state of the integrity scrubber and the documents whose file is
+   * missing or does not match the size and checksum in their meta data.
+   * <p>
+   * Url: /archive/scrub [GET]
+   *
+   * @return The report of the scrubber
+   */
+  @RequestMapping(value = "/scrub", method = RequestMethod.GET)
+  @ApiOperation(value = "Get scrub report", notes = "Returns the progress of the integrity scrubber and the missing or corrupt documents")
+  public HttpEntity<ScrubReport> getScrubReport() {
+    return new ResponseEntity<ScrubReport>(getArchiveService().getScrubReport(), HttpStatus.OK);
+  }
+
+  /**
+   * Starts a pass of the integrity scrubber over the archive.
+   * <p>
+   * Url: /archive/scrub [POST]
+   */
+  @RequestMapping(value = "/scrub", method = RequestMethod.POST)
+  @ApiOperation(value = "Start scrub", notes = "Starts a pass of the integrity scrubber over the archive")
+  public HttpEntity<String> startScrub() {
+    getArchiveService().startScrub();
+    return new ResponseEntity<String>("Scrub started", HttpStatus.ACCEPTED);
+  }
+
+  /**
+   * Starts a bulk import of the files of a directory tree on the server. The
+   * documents are saved directly in the archive, without quota checks. An import
+   * of a directory which was imported before skips the files imported already.
+   * <p>
+   * Url: /archive/import?source={dir}&person={person}&link={link} [POST]
+   *
+   * @param source The directory to import
+   * @param person The person of all documents, by default the first directory below the source
+   * @param link   True to hard link the files instead of copying them
+   * @return 202, 400 if the source is not a directory below one of the archive.imports.roots, 409 if an import is running
+   */
+  @RequestMapping(value = "/import", method = RequestMethod.POST)
+  @ApiOperation(value = "Start a bulk import", notes = "Imports the files of a directory on the server, resuming from its checkpoint")
+  public HttpEntity<String> startImport(
+    @RequestParam(value = "source", required = true) String source,
+    @RequestParam(value = "person", required = false) String person,
+    @RequestParam(value = "link", required = false) boolean link) {
+    try {
+      getArchiveService().startImport(source, person, link);
+      return new ResponseEntity<String>("Import started", HttpStatus.ACCEPTED);
+    } catch (IllegalArgumentException e) {
+      LOG.error("Error while starting import. " + e.getMessage());
+      return new ResponseEntity<String>(e.getMessage(), HttpStatus.BAD_REQUEST);
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<String>(e.getMessage(), HttpStatus.CONFLICT);
+    }
+  }
+
+  /**
+   * Returns the progress and throughput of the last bulk import.
+   * <p>
+   * Url: /archive/import [GET]
+   *
+   * @return The state of the import
+   */
+  @RequestMapping(value = "/import", method = RequestMethod.GET)
+  @ApiOperation(value = "Get import status", notes = "Returns the progress and throughput of the last bulk import")
+  public HttpEntity<ImportStatus> getImportStatus() {
+    return new ResponseEntity<ImportStatus>(getArchiveService().getImportStatus(), HttpStatus.OK);
+  }
+
+  /**
+   * Stops the running bulk import after the files being copied.
+   * <p>
+   * Url: /archive/import [DELETE]
+   */
+  @RequestMapping(value = "/import", method = RequestMethod.DELETE)
+  @ApiOperation(value = "Stop the bulk import", notes = "Stops the running import, it continues when it is started again")
+  public HttpEntity<String> stopImport() {
+    getArchiveService().stopImport();
+    return new ResponseEntity<String>("Import stopping", HttpStatus.ACCEPTED);
+  }
+
+  /**
+   * Applies a batch of changes which the primary ships to this replica, see
+   * {@link archive.service.ReplicationBatch}.
+   * <p>
+   * Url: /archive/replication [POST]
+   *
+   * @param request The request with the batch as body
+   * @return The sequence of the primary the replica applied, -1 if it must be synchronized in full,
+   *         409 if this archive is not a replica, 500 if the batch could not be applied
+   */
+  @RequestMapping(value = "/replication", method = RequestMethod.POST, consumes = "application/octet-stream", produces = "text/plain")
+  @ApiOperation(value = "Apply replicated changes", notes = "Applies a batch of changes shipped by the primary")
+  public HttpEntity<String> applyReplication(HttpServletRequest request) {
+    try {
+      return new ResponseEntity<String>(String.valueOf(getArchiveService().applyReplication(request.getInputStream())), HttpStatus.OK);
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<String>(e.getMessage(), HttpStatus.CONFLICT);
+    } catch (IOException e) {
+      LOG.error("Error while applying replicated changes", e);
+      return new ResponseEntity<String>(e.getMessage(), HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  /**
+   * Finds the documents of the primary which this replica is missing or has in
+   * another version, so a full synchronization only ships those.
+   * <p>
+   * Url: /archive/replication/compare [POST]
+   *
+   * @param body Lines of uuid, checksum and version separated by tabs
+   * @return The uuids of the documents to ship, one per line, 400 if a line is invalid,
+   *         409 if this archive is not a replica
+   */
+  @RequestMapping(value = "/replication/compare", method = RequestMethod.POST, produces = "text/plain")
+  @ApiOperation(value = "Compare with the primary", notes = "Returns the documents a full synchronization has to ship")
+  public HttpEntity<String> compareReplica(@RequestBody String body) {
+    try {
+      List<String> different = getArchiveService().compareReplica(Arrays.asList(body.trim().isEmpty() ? new String[0] : body.trim().split("\n")));
+      return new ResponseEntity<String>(String.join("\n", different), HttpStatus.OK);
+    } catch (IllegalArgumentException e) {
+      return new ResponseEntity<String>(e.getMessage(), HttpStatus.BAD_REQUEST);
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<String>(e.getMessage(), HttpStatus.CONFLICT);
+    }
+  }
+
+  /**
+   * Returns the state of the replication: on a replica the applied sequence and
+   * staleness, on a primary the progress of every replica.
+   * <p>
+   * Url: /archive/replication [GET]
+   *
+   * @return The replication status
+   */
+  @RequestMapping(value = "/replication", method = RequestMethod.GET)
+  @ApiOperation(value = "Get replication status", notes = "Returns the staleness of a replica or the lag of the replicas of a primary")
+  public HttpEntity<ReplicationStatus> getReplicationStatus() {
+    return new ResponseEntity<ReplicationStatus>(getArchiveService().getReplicationStatus(), HttpStatus.OK);
+  }
+
+  /**
+   * Returns the meta data of many documents in one request. The body is a JSON
+   * array of UUIDs. The result has an entry for every UUID in the same order,
+   * null if the document does not exist.
+   * <p>
+   * The meta data is served from the in-memory index, so a lookup reads no files
+   * and needs no parallel I/O; the meta data of all documents is in the index
+   * anyway. At most 1000 UUIDs are accepted per request, which bounds the size of
+   * the response.
+   * <p>
+   * Url: /archive/metadata [POST]
+   *
+   * @param ids The UUIDs of the documents
+   * @return The meta data by UUID, 400 if more than 1000 UUIDs are requested
+   */
+  @RequestMapping(value = "/metadata", method = RequestMethod.POST)
+  @ApiOperation(value = "Get meta data of documents", notes = "Returns the meta data of up to 1000 documents from the index, null for missing ones")
+  public HttpEntity<Map<String, DocumentMetadata>> getMetadata(@RequestBody List<String> ids) {
+    if (ids.size() > MAX_METADATA_IDS) {
+      return new ResponseEntity<Map<String, DocumentMetadata>>(HttpStatus.BAD_REQUEST);
+    }
+    return new ResponseEntity<Map<String, DocumentMetadata>>(getArchiveService().getDocumentMetadata(ids), HttpStatus.OK);
+  }
+
+  /**
+   * Converts the metadata.properties files of documents archived by earlier versions
+   * to the binary meta data format. Documents which are already converted are skipped.
+   * <p>
+   * Url: /archive/metadata/convert [POST]
+   *
+   * @return The number of converted documents
+   */
+  @RequestMapping(value = "/metadata/convert", method = RequestMethod.POST)
+  @ApiOperation(value = "Convert meta data", notes = "Converts legacy meta data files to the binary format")
+  public HttpEntity<Integer> convertMetadata() {
+    return new ResponseEntity<Integer>(getArchiveService().convertMetadata(), HttpStatus.OK);
+  }
+
   public IArchiveService getArchiveService() {
     return archiveService;
   }
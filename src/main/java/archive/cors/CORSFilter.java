@@ -21,7 +21,7 @@ public class CORSFilter implements Filter {
     response.setHeader("Access-Control-Allow-Methods", "POST, GET, DELETE, PUT");
     response.setHeader("Access-Control-Max-Age", "3600");
     response.setHeader("Access-Control-Allow-Headers", "x-requested-with");
-    response.setHeader("Access-Control-Allow-Headers", "Content-Type");
+    response.setHeader("Access-Control-Allow-Headers", "Content-Type, X-Chunk-Crc32");
     response.setHeader("Access-Control-Allow-Credentials", "true");
     filterChain.doFilter(servletRequest, response);
   }
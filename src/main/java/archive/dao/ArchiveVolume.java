@@ -0,0 +1,104 @@
+package archive.dao;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One root directory of an archive, usually on a disk of its own.
+ * <p>
+ * A volume holds document folders and its own pack segments. New documents are
+ * placed on a volume by weighted rendezvous hashing of their uuid. The weight of a
+ * volume is its free space divided by the number of writes in progress on it, so
+ * fuller and busier disks receive fewer new documents.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ArchiveVolume {
+
+  private static final long USABLE_SPACE_REFRESH = 10000L; // ..ms = 10 seconds.
+
+  private final String directory;
+  private final PackStore packStore;
+  private final AtomicInteger pendingWrites = new AtomicInteger();
+  private volatile long usableSpace;
+  private volatile long usableSpaceTime;
+
+  public ArchiveVolume(String directory, PackStore packStore) {
+    this.directory = directory;
+    this.packStore = packStore;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  public PackStore getPackStore() {
+    return packStore;
+  }
+
+  public void beginWrite() {
+    pendingWrites.incrementAndGet();
+  }
+
+  public void endWrite() {
+    pendingWrites.decrementAndGet();
+  }
+
+  /**
+   * @return The usable space of the volume in bytes, refreshed every few seconds
+   */
+  public long getUsableSpace() {
+    long now = System.currentTimeMillis();
+    if (now - usableSpaceTime > USABLE_SPACE_REFRESH) {
+      usableSpace = new File(directory).getUsableSpace();
+      usableSpaceTime = now;
+    }
+    return usableSpace;
+  }
+
+  /**
+   * Chooses the volume for a new document.
+   *
+   * @param uuid    The uuid of the document
+   * @param volumes The volumes of the archive
+   * @return The volume with the highest weighted score for the uuid
+   */
+  public static ArchiveVolume place(String uuid, List<ArchiveVolume> volumes) {
+    if (volumes.size() == 1) {
+      return volumes.get(0);
+    }
+    ArchiveVolume best = null;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (ArchiveVolume volume : volumes) {
+      double weight = (double) volume.getUsableSpace() / (1 + volume.pendingWrites.get());
+      if (weight <= 0) {
+        continue;
+      }
+      // Uniform value in (0, 1) from the hash of uuid and volume
+      double hash = ((hash(uuid, volume.directory) >>> 11) + 0.5) / (1L << 53);
+      double score = -weight / Math.log(hash);
+      if (score > bestScore) {
+        bestScore = score;
+        best = volume;
+      }
+    }
+    return best != null ? best : volumes.get(0);
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the uuid and the directory of the volume, with a final bit mix.
+   */
+  private static long hash(String uuid, String directory) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : (uuid + File.pathSeparator + directory).getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
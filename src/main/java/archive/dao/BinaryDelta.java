@@ -0,0 +1,172 @@
+package archive.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary deltas between two versions of a document file.
+ * <p>
+ * The blocks of the base file at multiples of the block size are indexed by a
+ * polynomial hash. The target file is scanned with a rolling hash of the same
+ * width; where a block matches, the match is extended in both directions and
+ * encoded as a copy from the base, the bytes in between are encoded literally.
+ * A delta starts with the length of the target, followed by operations of a
+ * varint (length &lt;&lt; 1 | literal) and either the offset in the base or the
+ * literal bytes.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public final class BinaryDelta {
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int PRIME = 0x01000193;
+  private static final int POWER; // PRIME ^ (BLOCK_SIZE - 1)
+
+  static {
+    int power = 1;
+    for (int i = 1; i < BLOCK_SIZE; i++) {
+      power *= PRIME;
+    }
+    POWER = power;
+  }
+
+  private BinaryDelta() {
+  }
+
+  /**
+   * Computes the delta which turns base into target.
+   */
+  public static byte[] create(byte[] base, byte[] target) {
+    Map<Integer, Integer> blocks = new HashMap<>(Math.max(16, base.length / BLOCK_SIZE * 2));
+    for (int offset = 0; offset + BLOCK_SIZE <= base.length; offset += BLOCK_SIZE) {
+      blocks.putIfAbsent(hash(base, offset), offset);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, target.length / 8));
+    writeVarLong(out, target.length);
+    int literalStart = 0;
+    int i = 0;
+    int h = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+    while (i + BLOCK_SIZE <= target.length) {
+      Integer offset = blocks.get(h);
+      if (offset != null && equal(base, offset, target, i, BLOCK_SIZE)) {
+        int start = i;
+        int from = offset;
+        while (start > literalStart && from > 0 && base[from - 1] == target[start - 1]) {
+          start--;
+          from--;
+        }
+        int end = i + BLOCK_SIZE;
+        int baseEnd = offset + BLOCK_SIZE;
+        while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+          end++;
+          baseEnd++;
+        }
+        literal(out, target, literalStart, start);
+        writeVarLong(out, (long) (end - start) << 1);
+        writeVarLong(out, from);
+        i = end;
+        literalStart = end;
+        if (i + BLOCK_SIZE <= target.length) {
+          h = hash(target, i);
+        }
+      } else {
+        if (i + BLOCK_SIZE < target.length) {
+          h = (h - target[i] * POWER) * PRIME + target[i + BLOCK_SIZE];
+        }
+        i++;
+      }
+    }
+    literal(out, target, literalStart, target.length);
+    return out.toByteArray();
+  }
+
+  /**
+   * Applies a delta to the base it was created from.
+   *
+   * @return The target
+   * @throws IOException If the delta is malformed or does not fit the base
+   */
+  public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+    int[] position = {0};
+    long length = readVarLong(delta, position);
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid delta length: " + length);
+    }
+    byte[] target = new byte[(int) length];
+    int written = 0;
+    while (position[0] < delta.length) {
+      long op = readVarLong(delta, position);
+      int count = (int) (op >>> 1);
+      if (count < 0 || written + count > target.length) {
+        throw new IOException("Delta exceeds the target length");
+      }
+      if ((op & 1) != 0) {
+        if (position[0] + count > delta.length) {
+          throw new IOException("Truncated delta");
+        }
+        System.arraycopy(delta, position[0], target, written, count);
+        position[0] += count;
+      } else {
+        long from = readVarLong(delta, position);
+        if (from < 0 || from + count > base.length) {
+          throw new IOException("Delta does not fit the base");
+        }
+        System.arraycopy(base, (int) from, target, written, count);
+      }
+      written += count;
+    }
+    if (written != target.length) {
+      throw new IOException("Truncated delta");
+    }
+    return target;
+  }
+
+  private static void literal(ByteArrayOutputStream out, byte[] target, int from, int to) {
+    if (to > from) {
+      writeVarLong(out, ((long) (to - from) << 1) | 1);
+      out.write(target, from, to - from);
+    }
+  }
+
+  private static int hash(byte[] data, int offset) {
+    int h = 0;
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      h = h * PRIME + data[offset + i];
+    }
+    return h;
+  }
+
+  private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      if (a[aOffset + i] != b[bOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarLong(byte[] data, int[] position) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (position[0] >= data.length) {
+        throw new IOException("Truncated delta");
+      }
+      int b = data[position[0]++] & 0xff;
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in delta");
+  }
+}
@@ -0,0 +1,237 @@
+package archive.dao;
+
+import archive.model.DocumentChange;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sequenced log of the inserts and deletes in an archive.
+ * <p>
+ * The most recent changes are kept in memory and appended to a file in the archive
+ * directory, one line per change, so the sequence continues after a restart. The
+ * file is rewritten with the retained changes when it grows to twice the retention.
+ * Listeners are called after every change, they must not block.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ChangeLog {
+
+  public static final String FILE_NAME = "changes.log";
+
+  private static final Logger LOG = Logger.getLogger(ChangeLog.class);
+
+  public interface Listener {
+    void changed(DocumentChange change);
+  }
+
+  private final Deque<DocumentChange> changes = new ArrayDeque<>();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private int retention = 1;
+  private Path file;
+  private Writer writer;
+  private long sequence;
+  private int lines;
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Opens the log in the given archive directory and reads the retained changes.
+   *
+   * @param directory The archive directory
+   * @param retention The number of changes to retain
+   */
+  public synchronized void open(Path directory, int retention) throws IOException {
+    close();
+    this.retention = Math.max(1, retention);
+    changes.clear();
+    sequence = 0;
+    lines = 0;
+    file = directory.resolve(FILE_NAME);
+    if (Files.exists(file)) {
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          DocumentChange change = parse(line);
+          if (change == null) {
+            continue; // torn line
+          }
+          retain(change);
+          sequence = Math.max(sequence, change.getSequence());
+          lines++;
+        }
+      }
+    }
+    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  public synchronized void close() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        LOG.error("Error while closing " + file, e);
+      }
+      writer = null;
+    }
+  }
+
+  /**
+   * Appends a change with the next sequence and notifies the listeners.
+   *
+   * @return The change
+   */
+  public DocumentChange append(DocumentChange.Type type, String uuid) {
+    DocumentChange change;
+    synchronized (this) {
+      change = new DocumentChange(sequence + 1, type, uuid, new Date());
+      sequence = change.getSequence();
+      retain(change);
+      write(change, true);
+    }
+    for (Listener listener : listeners) {
+      listener.changed(change);
+    }
+    return change;
+  }
+
+  /**
+   * Appends changes of the same type with consecutive sequences, flushing the file once,
+   * and notifies the listeners.
+   *
+   * @return The last change, null if there were no uuids
+   */
+  public DocumentChange append(DocumentChange.Type type, List<String> uuids) {
+    List<DocumentChange> appended = new ArrayList<>(uuids.size());
+    synchronized (this) {
+      Date time = new Date();
+      for (String uuid : uuids) {
+        DocumentChange change = new DocumentChange(sequence + 1, type, uuid, time);
+        sequence = change.getSequence();
+        retain(change);
+        write(change, false);
+        appended.add(change);
+      }
+      flush();
+    }
+    for (DocumentChange change : appended) {
+      for (Listener listener : listeners) {
+        listener.changed(change);
+      }
+    }
+    return appended.isEmpty() ? null : appended.get(appended.size() - 1);
+  }
+
+  /**
+   * @return The sequence of the last change, 0 if there was none
+   */
+  public synchronized long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Returns the changes after the given sequence in order.
+   *
+   * @param since The sequence of the last change seen by the caller
+   * @param limit The maximum number of changes
+   * @return The changes, or null if changes after the sequence are no longer retained
+   * or the sequence is ahead of the log
+   */
+  public synchronized List<DocumentChange> since(long since, int limit) {
+    if (since > sequence || (!changes.isEmpty() && since < changes.getFirst().getSequence() - 1)
+      || (changes.isEmpty() && since < sequence)) {
+      return null;
+    }
+    List<DocumentChange> result = new ArrayList<>();
+    Iterator<DocumentChange> it = changes.descendingIterator();
+    while (it.hasNext()) {
+      DocumentChange change = it.next();
+      if (change.getSequence() <= since) {
+        break;
+      }
+      result.add(change);
+    }
+    Collections.reverse(result);
+    return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+  }
+
+  private void retain(DocumentChange change) {
+    changes.addLast(change);
+    while (changes.size() > retention) {
+      changes.removeFirst();
+    }
+  }
+
+  private void write(DocumentChange change, boolean flush) {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.write(format(change));
+      if (flush) {
+        writer.flush();
+      }
+      if (++lines >= 2 * retention) {
+        rewrite();
+      }
+    } catch (IOException e) {
+      LOG.error("Error while writing " + file, e);
+    }
+  }
+
+  private void flush() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      LOG.error("Error while writing " + file, e);
+    }
+  }
+
+  /**
+   * Replaces the file with the retained changes.
+   */
+  private void rewrite() throws IOException {
+    writer.close();
+    writer = null;
+    Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp.toFile());
+         Writer temporary = new OutputStreamWriter(new BufferedOutputStream(out), StandardCharsets.UTF_8)) {
+      for (DocumentChange change : changes) {
+        temporary.write(format(change));
+      }
+      temporary.flush();
+      out.getFD().sync();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    lines = changes.size();
+    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  private static String format(DocumentChange change) {
+    return change.getSequence() + "\t" + change.getType() + "\t" + change.getUuid() + "\t" + change.getTime().getTime() + "\n";
+  }
+
+  private static DocumentChange parse(String line) {
+    String[] fields = line.split("\t");
+    if (fields.length != 4) {
+      return null;
+    }
+    try {
+      return new DocumentChange(Long.parseLong(fields[0]), DocumentChange.Type.valueOf(fields[1]), fields[2], new Date(Long.parseLong(fields[3])));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
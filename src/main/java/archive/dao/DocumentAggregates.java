@@ -0,0 +1,262 @@
+package archive.dao;
+
+import archive.model.ArchiveAggregates;
+import archive.model.DocumentMetadata;
+import archive.model.FacetCount;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneId;
+import java.util.*;
+
+/**
+ * Counters of the documents in an archive per person, content type and month.
+ * <p>
+ * The counters are maintained incrementally by the {@link IDocumentDao} on every
+ * insert and delete, so reading them costs O(number of buckets) instead of a scan
+ * of all documents. The bytes of the archive and of a person include the stored old
+ * versions of their documents, so versions count to the quota. They are saved to a properties file in the archive directory
+ * and loaded again when the archive is opened.
+ * <p>
+ * The file also records the sequence of the last change of the {@link ChangeLog}
+ * included in the counters. When the archive is opened after a crash, the sequence
+ * differs from the change log and the counters are recomputed from the index.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class DocumentAggregates {
+
+  public static final String FILE_NAME = "aggregates.properties";
+
+  private static final String SEQUENCE = "sequence";
+  private static final String TOTAL = "total";
+  private static final String PERSON = "person";
+  private static final String CONTENT_TYPE = "content-type";
+  private static final String MONTH = "month";
+  private static final String UNKNOWN = "unknown";
+  private static final String COUNT = ".count";
+  private static final String BYTES = ".bytes";
+
+  private final Map<String, Map<String, long[]>> facets = new HashMap<>();
+  private long sequence;
+  private boolean dirty;
+
+  public DocumentAggregates() {
+    clear();
+  }
+
+  public synchronized void add(DocumentMetadata metadata) {
+    update(metadata, 1);
+  }
+
+  public synchronized void remove(DocumentMetadata metadata) {
+    update(metadata, -1);
+  }
+
+  /**
+   * Adds the bytes of stored old versions of a document to the bytes of the archive and
+   * of its person, without counting a document. Negative bytes release them again.
+   * The person must have a document, else the bytes are ignored.
+   *
+   * @param personName The person of the document
+   * @param bytes      The bytes of the stored versions
+   */
+  public synchronized void addVersionBytes(String personName, long bytes) {
+    addBytes(TOTAL, TOTAL, bytes);
+    addBytes(PERSON, personName, bytes);
+    dirty = true;
+  }
+
+  public synchronized void clear() {
+    facets.clear();
+    facets.put(TOTAL, new HashMap<String, long[]>());
+    facets.put(PERSON, new HashMap<String, long[]>());
+    facets.put(CONTENT_TYPE, new HashMap<String, long[]>());
+    facets.put(MONTH, new HashMap<String, long[]>());
+    dirty = true;
+  }
+
+  /**
+   * Recomputes all counters from the given documents.
+   *
+   * @param documents All documents in the archive
+   * @param sequence  The sequence of the last change
+   */
+  public synchronized void rebuild(Collection<DocumentMetadata> documents, long sequence) {
+    clear();
+    this.sequence = sequence;
+    for (DocumentMetadata metadata : documents) {
+      update(metadata, 1);
+    }
+  }
+
+  /**
+   * @return The number of documents in the archive
+   */
+  public synchronized long getCount() {
+    long[] total = facets.get(TOTAL).get(TOTAL);
+    return total == null ? 0 : total[0];
+  }
+
+  /**
+   * Records that the counters include the change with the given sequence.
+   *
+   * @param sequence The sequence of a change
+   */
+  public synchronized void setSequence(long sequence) {
+    if (sequence > this.sequence) {
+      this.sequence = sequence;
+      dirty = true;
+    }
+  }
+
+  /**
+   * @return The sequence of the last change included in the counters
+   */
+  public synchronized long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return The number of documents and bytes of the archive
+   */
+  public synchronized FacetCount getTotal() {
+    return toCount(TOTAL, facets.get(TOTAL).get(TOTAL));
+  }
+
+  /**
+   * @param personName The name of a person
+   * @return The number of documents and bytes of the person
+   */
+  public synchronized FacetCount getPerson(String personName) {
+    String key = personName == null ? UNKNOWN : personName;
+    return toCount(key, facets.get(PERSON).get(key));
+  }
+
+  public synchronized ArchiveAggregates getAggregates() {
+    long[] total = facets.get(TOTAL).get(TOTAL);
+    return new ArchiveAggregates(
+      total == null ? new FacetCount(TOTAL, 0, 0) : new FacetCount(TOTAL, total[0], total[1]),
+      toList(facets.get(PERSON)),
+      toList(facets.get(CONTENT_TYPE)),
+      toList(facets.get(MONTH)));
+  }
+
+  /**
+   * Loads the counters from the file in the given archive directory.
+   *
+   * @param directory The archive directory
+   * @return false if there are no saved counters
+   */
+  public synchronized boolean load(Path directory) throws IOException {
+    File file = directory.resolve(FILE_NAME).toFile();
+    if (!file.exists()) {
+      return false;
+    }
+    Properties props = new Properties();
+    try (InputStream input = new FileInputStream(file)) {
+      props.load(input);
+    }
+    clear();
+    sequence = Long.parseLong(props.getProperty(SEQUENCE, "0"));
+    for (String name : props.stringPropertyNames()) {
+      int facetEnd = name.indexOf('.');
+      int bucketEnd = name.lastIndexOf('.');
+      Map<String, long[]> buckets = facetEnd > 0 ? facets.get(name.substring(0, facetEnd)) : null;
+      if (buckets == null || bucketEnd <= facetEnd) {
+        continue;
+      }
+      long[] counter = bucket(buckets, name.substring(facetEnd + 1, bucketEnd));
+      counter[name.endsWith(COUNT) ? 0 : 1] = Long.parseLong(props.getProperty(name));
+    }
+    dirty = false;
+    return true;
+  }
+
+  /**
+   * Saves the counters to a file in the given archive directory if they changed.
+   * The file is replaced atomically, so a crash leaves either the old or the new counters.
+   *
+   * @param directory The archive directory
+   */
+  public void save(Path directory) throws IOException {
+    Properties props = new Properties();
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      props.setProperty(SEQUENCE, String.valueOf(sequence));
+      for (Map.Entry<String, Map<String, long[]>> facet : facets.entrySet()) {
+        for (Map.Entry<String, long[]> bucket : facet.getValue().entrySet()) {
+          String prefix = facet.getKey() + "." + bucket.getKey();
+          props.setProperty(prefix + COUNT, String.valueOf(bucket.getValue()[0]));
+          props.setProperty(prefix + BYTES, String.valueOf(bucket.getValue()[1]));
+        }
+      }
+      dirty = false;
+    }
+    Path temp = directory.resolve(FILE_NAME + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+      props.store(out, "Document aggregates");
+      out.getFD().sync();
+    }
+    Files.move(temp, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void update(DocumentMetadata metadata, int sign) {
+    long bytes = Math.max(0, metadata.getFileSize());
+    increment(TOTAL, TOTAL, sign, bytes);
+    increment(PERSON, metadata.getPersonName(), sign, bytes);
+    increment(CONTENT_TYPE, metadata.getContentType() == null ? null : metadata.getContentType().toLowerCase(Locale.ROOT), sign, bytes);
+    increment(MONTH, month(metadata.getDocumentDate()), sign, bytes);
+    dirty = true;
+  }
+
+  private void increment(String facet, String key, int sign, long bytes) {
+    Map<String, long[]> buckets = facets.get(facet);
+    String bucketKey = key == null ? UNKNOWN : key;
+    long[] counter = bucket(buckets, bucketKey);
+    counter[0] += sign;
+    counter[1] += sign * bytes;
+    if (counter[0] <= 0) {
+      buckets.remove(bucketKey);
+    }
+  }
+
+  private void addBytes(String facet, String key, long bytes) {
+    long[] counter = facets.get(facet).get(key == null ? UNKNOWN : key);
+    if (counter != null) {
+      counter[1] += bytes;
+    }
+  }
+
+  private static long[] bucket(Map<String, long[]> buckets, String key) {
+    long[] counter = buckets.get(key);
+    if (counter == null) {
+      counter = new long[2];
+      buckets.put(key, counter);
+    }
+    return counter;
+  }
+
+  private static String month(Date date) {
+    if (date == null) {
+      return null;
+    }
+    return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toString().substring(0, 7);
+  }
+
+  private static FacetCount toCount(String key, long[] counter) {
+    return counter == null ? new FacetCount(key, 0, 0) : new FacetCount(key, counter[0], counter[1]);
+  }
+
+  private static List<FacetCount> toList(Map<String, long[]> buckets) {
+    List<FacetCount> result = new ArrayList<>(buckets.size());
+    for (Map.Entry<String, long[]> bucket : new TreeMap<>(buckets).entrySet()) {
+      result.add(new FacetCount(bucket.getKey(), bucket.getValue()[0], bucket.getValue()[1]));
+    }
+    return result;
+  }
+}
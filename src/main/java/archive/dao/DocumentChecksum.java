@@ -0,0 +1,41 @@
+package archive.dao;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 checksums of document files, recorded in the meta data when a document is
+ * inserted and verified by the integrity scrubber.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public final class DocumentChecksum {
+
+  public static final String ALGORITHM = "SHA-256";
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private DocumentChecksum() {
+  }
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(ALGORITHM + " is not supported", e);
+    }
+  }
+
+  public static String of(byte[] data) {
+    return toHex(newDigest().digest(data));
+  }
+
+  public static String toHex(byte[] hash) {
+    char[] chars = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      chars[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[hash[i] & 0xf];
+    }
+    return new String(chars);
+  }
+}
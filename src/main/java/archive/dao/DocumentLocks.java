@@ -0,0 +1,118 @@
+package archive.dao;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read and write locks of single documents and of the whole archive.
+ * <p>
+ * Every document has its own reentrant read/write lock while it is in use, so
+ * operations on different documents never wait for each other. The locks are
+ * created on demand and removed when the last holder releases them. Operations
+ * on a document also hold a read lock of one of a few archive stripes, chosen by
+ * the uuid, which are all write locked by operations on the whole archive like
+ * changing the directories. Readers of different stripes share no lock state.
+ * <p>
+ * A thread holding a write lock may also acquire the read lock, but not the
+ * other way round.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class DocumentLocks {
+
+  private static final int STRIPES = 64;
+
+  private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  public DocumentLocks() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  /**
+   * Acquires the read lock of a document, e.g. while it is loaded or sent.
+   *
+   * @param uuid The uuid of the document
+   * @return The handle which releases the lock when closed
+   */
+  public Handle read(String uuid) {
+    return acquire(uuid, false);
+  }
+
+  /**
+   * Acquires the write lock of a document, e.g. while it is inserted or deleted.
+   *
+   * @param uuid The uuid of the document
+   * @return The handle which releases the lock when closed
+   */
+  public Handle write(String uuid) {
+    return acquire(uuid, true);
+  }
+
+  /**
+   * Waits until no operation holds a lock of a document and blocks new ones
+   * until the returned handle is closed.
+   *
+   * @return The handle which releases the archive when closed
+   */
+  public Handle exclusive() {
+    for (ReentrantReadWriteLock stripe : stripes) {
+      stripe.writeLock().lock();
+    }
+    return () -> {
+      for (int i = STRIPES - 1; i >= 0; i--) {
+        stripes[i].writeLock().unlock();
+      }
+    };
+  }
+
+  private Handle acquire(final String uuid, boolean write) {
+    final Lock stripe = stripes[spread(uuid.hashCode()) & (STRIPES - 1)].readLock();
+    stripe.lock();
+    final Entry entry;
+    try {
+      entry = entries.compute(uuid, (key, current) -> {
+        Entry result = current != null ? current : new Entry();
+        result.users++;
+        return result;
+      });
+    } catch (RuntimeException e) {
+      stripe.unlock();
+      throw e;
+    }
+    final Lock lock = write ? entry.writeLock() : entry.readLock();
+    lock.lock();
+    return () -> {
+      lock.unlock();
+      entries.computeIfPresent(uuid, (key, current) -> --current.users == 0 ? null : current);
+      stripe.unlock();
+    };
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * A held lock.
+   */
+  public interface Handle extends AutoCloseable {
+    /**
+     * Releases the lock.
+     */
+    @Override
+    void close();
+  }
+
+  /**
+   * The lock of a document with the number of threads holding or waiting for it.
+   * Only changed inside compute of the map.
+   */
+  private static class Entry extends ReentrantReadWriteLock {
+    private static final long serialVersionUID = 1L;
+    private int users;
+  }
+}
@@ -1,18 +1,41 @@
 package archive.dao;
 
+import archive.ArchiveProperties;
+import archive.model.ArchiveAggregates;
 import archive.model.Document;
+import archive.model.DocumentChange;
 import archive.model.DocumentMetadata;
+import archive.model.DocumentOrder;
+import archive.model.DocumentQuery;
+import archive.model.FacetCount;
+import archive.model.NameMatch;
+import archive.monitor.DataWriteEvent;
+import archive.monitor.DocumentDeleteEvent;
+import archive.monitor.DocumentListEvent;
+import archive.monitor.MetadataReadEvent;
 import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.FileSystemUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.*;
 import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
 
 //import org.apache.log4j.Logger;
 
@@ -24,6 +47,23 @@ import java.util.*;
  * and a properties files with the meta data of the document.
  * Each document in the archive has a Universally Unique Identifier (UUID).
  * The name of the documents folder is the UUID of the document.
+ * <p>
+ * Documents smaller than the pack threshold are not saved in a folder. They are
+ * appended with their meta data to large segment files by the {@link PackStore},
+ * which saves the directory and inode overhead of many small files.
+ * <p>
+ * The archive may span several directories, see {@link ArchiveVolume}. Each new
+ * document is placed on one of them, the first directory also holds the state of
+ * the archive, e.g. the aggregates and the resumable uploads.
+ * <p>
+ * The meta data of all documents is indexed in memory when the DAO is initialized.
+ * Searches are answered from the index, it is kept up to date on insert and delete.
+ * <p>
+ * The index is saved as an {@link IndexSnapshot} periodically and on shutdown. At
+ * startup the snapshot is loaded and the changes logged after it are replayed, the
+ * meta data of all documents is only read if there is no usable snapshot. A
+ * background thread then reconciles the loaded index with the document folders,
+ * e.g. with documents written but not logged before a crash.
  *
  * @author Acha Bill <achabill12[at]gmail[dot]com>
  */
@@ -32,32 +72,521 @@ public class FileSystemDocumentDao implements IDocumentDao {
 
   private static final Logger LOG = Logger.getLogger(FileSystemDocumentDao.class);
 
-  public static String DIRECTORY = "file-archive";
-  public static final String META_DATA_FILE_NAME = "metadata.properties";
+  public static final String DIRECTORY = "file-archive";
+  public static final String META_DATA_FILE_NAME = "metadata.bin";
+  public static final String LEGACY_META_DATA_FILE_NAME = "metadata.properties";
+  public static final String THUMBNAIL_FILE_NAME = "thumbnail";
+  public static final String VERSIONS_DIRECTORY = ".versions";
+  private static final String DELTA_SUFFIX = ".delta";
+  private static final String COPY_SUFFIX = ".copy";
+  private static final String VERSION_META_DATA_SUFFIX = ".meta";
+  private static final String[] THUMBNAIL_FORMATS = {"jpg", "png"};
+  private static final int SMALL_RESULT_SIZE = 1024;
+  private static final int READ_BUFFER_SIZE = 65536; // ..bytes = 64KB.
+  private static final long VERIFY_CLOCK_SLACK = 2000L; // ..ms = 2 seconds.
+
+  private final Map<String, DocumentMetadata> metadataIndex = new ConcurrentHashMap<>();
+  private final PersonNameIndex personNameIndex = new PersonNameIndex();
+  private final SortedKeyIndex<Long> dateIndex = new SortedKeyIndex<>();
+  private final SortedKeyIndex<String> fileNameIndex = new SortedKeyIndex<>();
+  private final DocumentAggregates aggregates = new DocumentAggregates();
+  private final ChangeLog changeLog = new ChangeLog();
+  private final DocumentLocks locks = new DocumentLocks();
+  private final Map<String, ArchiveVolume> locations = new ConcurrentHashMap<>();
+  private volatile List<ArchiveVolume> volumes = Collections.emptyList();
+  private ForkJoinPool scanPool;
+  private final Object snapshotLock = new Object();
+  private volatile long snapshotSequence = -1;
+  private volatile long snapshotTime;
+  private volatile Thread verifier;
+
+  @Autowired
+  private ArchiveProperties properties = new ArchiveProperties();
+
+  @Autowired
+  private IoScheduler ioScheduler = new IoScheduler();
 
   @PostConstruct
   public void init() {
-    createDirectory(DIRECTORY);
+    scanPool = new ForkJoinPool(Math.max(1, properties.getScan().getParallelism()));
+    List<String> directories = properties.getDirectories();
+    setArchiveDirectories(directories.isEmpty() ? Collections.singletonList(DIRECTORY) : directories);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    Thread thread = verifier;
+    if (thread != null) {
+      thread.interrupt();
+    }
+    if (properties.getSnapshot().isEnabled() && changeLog.getSequence() != snapshotSequence) {
+      writeSnapshot();
+    }
+    saveAggregates();
+    changeLog.close();
+    closeVolumes(volumes);
+    scanPool.shutdown();
+  }
+
+  /**
+   * Copies the live documents of pack segments with many deleted documents to
+   * the active segment and deletes the old segment files.
+   */
+  @Scheduled(fixedDelay = 60000)
+  public void compactPacks() {
+    for (ArchiveVolume volume : volumes) {
+      try {
+        volume.getPackStore().compact(properties.getPacks().getMinLiveRatio());
+      } catch (IOException e) {
+        LOG.error("Error while compacting pack segments in " + volume.getDirectory(), e);
+      }
+    }
+  }
+
+  /**
+   * Releases the files of range requests which were not read for a while, also
+   * when no further range requests arrive.
+   */
+  @Scheduled(fixedDelay = 30000)
+  public void releaseReads() {
+    ReadAhead.release(false);
+  }
+
+  /**
+   * Saves the document aggregates if they changed since they were saved last.
+   */
+  @Scheduled(fixedDelay = 5000)
+  public void saveAggregates() {
+    try {
+      aggregates.save(Paths.get(getArchiveDirectory()));
+    } catch (IOException e) {
+      LOG.error("Error while saving aggregates in " + getArchiveDirectory(), e);
+    }
+  }
+
+  /**
+   * Saves a snapshot of the index if the archive changed since the last one, at most
+   * once per interval unless the changes to replay approach the retention of the
+   * change log, after which the snapshot could not be used anymore.
+   */
+  @Scheduled(fixedDelay = 60000)
+  public void saveSnapshot() {
+    long sequence = changeLog.getSequence();
+    if (!properties.getSnapshot().isEnabled() || sequence == snapshotSequence) {
+      return;
+    }
+    if (sequence - snapshotSequence >= properties.getChanges().getRetention() / 2
+      || System.currentTimeMillis() - snapshotTime >= properties.getSnapshot().getInterval()) {
+      writeSnapshot();
+    }
+  }
+
+  /**
+   * Returns the document counts and total bytes per person, content type and month.
+   *
+   * @return The aggregates of the archive
+   */
+  @Override
+  public ArchiveAggregates getAggregates() {
+    return aggregates.getAggregates();
+  }
+
+  /**
+   * Returns the number of documents and bytes of a person, or of the whole archive
+   * if the person is null, from the aggregates.
+   */
+  @Override
+  public FacetCount getUsage(String personName) {
+    return personName == null ? aggregates.getTotal() : aggregates.getPerson(personName);
   }
 
   /**
    * Inserts a document to the archive by creating a folder with the UUID
    * of the document. In the folder the document is saved and a properties file
-   * with the meta data of the document.
+   * with the meta data of the document. Documents smaller than the pack threshold
+   * are appended to a pack segment instead.
    */
   @Override
   public void insert(Document document) {
-    try {
-      createDirectory(document);
-      saveFileData(document);
-      saveMetaData(document);
-    } catch (IOException e) {
-      String message = "Error while inserting document";
-      LOG.error(message, e);
-      throw new RuntimeException(message, e);
+    try (DocumentLocks.Handle lock = locks.write(document.getUuid())) {
+      ArchiveVolume volume = place(document);
+      DataWriteEvent event = new DataWriteEvent();
+      event.begin();
+      try {
+        document.setChecksum(DocumentChecksum.of(document.getFileData()));
+        event.packed = document.getFileData().length < properties.getPacks().getThreshold();
+        if (event.packed) {
+          volume.getPackStore().append(document.getUuid(), encodeMetadata(document), document.getFileData());
+        } else {
+          createDirectory(document);
+          saveFileData(document);
+          saveMetaData(document);
+        }
+        commit(event, document);
+        DocumentMetadata metadata = document.getMetadata();
+        addToIndex(metadata);
+        changed(DocumentChange.Type.INSERT, metadata);
+      } catch (IOException e) {
+        locations.remove(document.getUuid());
+        String message = "Error while inserting document";
+        LOG.error(message, e);
+        throw new RuntimeException(message, e);
+      } finally {
+        volume.endWrite();
+      }
+    }
+  }
+
+  /**
+   * Inserts a document to the archive by moving the given file into the folder
+   * of the document, e.g. the file of a resumable upload. The file is renamed if it
+   * is on the same file system as the volume of the document, else it is copied.
+   */
+  @Override
+  public void insert(Document document, Path file) {
+    try (DocumentLocks.Handle lock = locks.write(document.getUuid())) {
+      ArchiveVolume volume = place(document);
+      DataWriteEvent event = new DataWriteEvent();
+      event.begin();
+      try {
+        createDirectory(document);
+        document.setFileSize(Files.size(file));
+        document.setChecksum(checksum(file));
+        Path target = Paths.get(getFilePath(document));
+        try {
+          Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(file, target);
+        }
+        saveMetaData(document);
+        commit(event, document);
+        DocumentMetadata metadata = document.getMetadata();
+        addToIndex(metadata);
+        changed(DocumentChange.Type.INSERT, metadata);
+      } catch (IOException e) {
+        locations.remove(document.getUuid());
+        String message = "Error while inserting document";
+        LOG.error(message, e);
+        throw new RuntimeException(message, e);
+      } finally {
+        volume.endWrite();
+      }
+    }
+  }
+
+  /**
+   * Imports a file into the folder of a new document. A hard link shares the data
+   * of the source file, so the source must not be changed afterwards; if the source
+   * is on another file system it is copied. The checksum is computed while copying.
+   * The document is only indexed by {@link #indexImported(List)}, so imports are
+   * indexed in batches. A document which was saved before, indexed or not, is not
+   * imported again.
+   */
+  @Override
+  public void importFile(Document document, Path source, boolean link) throws IOException {
+    try (DocumentLocks.Handle lock = locks.write(document.getUuid())) {
+      if (isSaved(document.getUuid())) {
+        throw new FileAlreadyExistsException(document.getUuid(), null, "The document was imported before");
+      }
+      ArchiveVolume volume = place(document);
+      DataWriteEvent event = new DataWriteEvent();
+      event.begin();
+      Path directory = Paths.get(createDirectory(document));
+      try {
+        Path target = directory.resolve(document.getFileName());
+        Files.deleteIfExists(target);
+        boolean linked = false;
+        if (link) {
+          try {
+            Files.createLink(target, source);
+            document.setChecksum(checksum(target));
+            linked = true;
+          } catch (UnsupportedOperationException | FileSystemException e) {
+            LOG.debug("Copying " + source + ", it cannot be linked: " + e.getMessage());
+          }
+        }
+        if (!linked) {
+          MessageDigest digest = DocumentChecksum.newDigest();
+          InputStream data = ioScheduler.wrap(Files.newInputStream(source), ioScheduler.classify(Files.size(source)));
+          try (InputStream input = new DigestInputStream(data, digest)) {
+            Files.copy(input, target, StandardCopyOption.REPLACE_EXISTING);
+          }
+          document.setChecksum(DocumentChecksum.toHex(digest.digest()));
+        }
+        document.setFileSize(Files.size(target));
+        saveMetaData(document);
+        commit(event, document);
+      } catch (IOException | RuntimeException e) {
+        locations.remove(document.getUuid());
+        FileSystemUtils.deleteRecursively(directory.toFile());
+        throw e;
+      } finally {
+        volume.endWrite();
+      }
+    }
+  }
+
+  /**
+   * @return True if the document is indexed or the folder of one of the volumes has its meta data
+   */
+  private boolean isSaved(String uuid) {
+    if (metadataIndex.containsKey(uuid)) {
+      return true;
+    }
+    for (ArchiveVolume volume : volumes) {
+      if (getMetadataModified(volume, uuid) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Indexes imported documents and appends them to the change log with a single write.
+   */
+  @Override
+  public void indexImported(List<DocumentMetadata> documents) {
+    List<String> uuids = new ArrayList<>(documents.size());
+    for (DocumentMetadata metadata : documents) {
+      addToIndex(metadata);
+      aggregates.add(metadata);
+      uuids.add(metadata.getUuid());
+    }
+    DocumentChange last = changeLog.append(DocumentChange.Type.INSERT, uuids);
+    if (last != null) {
+      aggregates.setSequence(last.getSequence());
+    }
+  }
+
+  /**
+   * Replaces a document with the state received from the primary. The previous
+   * document and its older versions are deleted first, all under the write lock of
+   * the document, so readers see either the old or the new document. A document
+   * whose data does not match the checksum of the primary is not kept.
+   */
+  @Override
+  public void replicate(Document document, Path file) throws IOException {
+    String uuid = document.getUuid();
+    String expected = document.getChecksum();
+    try (DocumentLocks.Handle lock = locks.write(uuid)) {
+      if (metadataIndex.containsKey(uuid)) {
+        delete(uuid);
+      }
+      if (file == null) {
+        insert(document);
+      } else {
+        insert(document, file);
+      }
+      if (expected != null && !expected.equals(document.getChecksum())) {
+        delete(uuid);
+        throw new IOException("Checksum mismatch of replicated document " + uuid);
+      }
+    }
+  }
+
+  /**
+   * Saves a new version of an existing document. The previous version is kept as a
+   * binary delta against the new version in the versions folder of the volume, so
+   * an older version is rebuilt by applying the deltas from the latest version
+   * backwards. If either version is larger than the delta threshold, the previous
+   * version is copied instead, streaming its file, so large versions are never
+   * read into memory. The new version is stored like the current one, in a pack
+   * segment or in the folder of the document. If it cannot be stored, the files of
+   * the previous version are removed again.
+   *
+   * @param document The new version, with the uuid of the existing document
+   * @throws FileNotFoundException If the document does not exist
+   */
+  @Override
+  public void insertVersion(Document document) throws IOException {
+    String uuid = document.getUuid();
+    try (DocumentLocks.Handle lock = locks.write(uuid)) {
+      DocumentMetadata indexed = metadataIndex.get(uuid);
+      long threshold = properties.getVersions().getDeltaThreshold();
+      boolean delta = indexed != null && indexed.getFileSize() <= threshold && document.getFileData().length <= threshold;
+      Document current = delta ? load(uuid) : loadFromFileSystemWithPath(uuid);
+      if (current == null) {
+        throw new FileNotFoundException("Document not found: " + uuid);
+      }
+      ArchiveVolume volume = getVolume(uuid);
+      DataWriteEvent event = new DataWriteEvent();
+      event.begin();
+      document.setVersion(current.getVersion() + 1);
+      document.setChecksum(DocumentChecksum.of(document.getFileData()));
+      Path versions = getVersionsPath(uuid);
+      Files.createDirectories(versions);
+      Path previousFile = versions.resolve(current.getVersion() + (delta ? DELTA_SUFFIX : COPY_SUFFIX));
+      Path previousMetadata = versions.resolve(current.getVersion() + VERSION_META_DATA_SUFFIX);
+      volume.beginWrite();
+      try {
+        if (delta) {
+          writeAtomically(previousFile, BinaryDelta.create(document.getFileData(), current.getFileData()));
+        } else if (current.getPath() != null) {
+          copyAtomically(current.getPath(), previousFile);
+        } else {
+          writeAtomically(previousFile, current.getFileData());
+        }
+        writeAtomically(previousMetadata, encodeMetadata(current.getMetadata()));
+        event.packed = volume.getPackStore().contains(uuid);
+        if (event.packed) {
+          volume.getPackStore().append(uuid, encodeMetadata(document), document.getFileData());
+        } else {
+          Path directory = Paths.get(getDirectoryPath(uuid));
+          ReadAhead.release(directory.resolve(current.getFileName()));
+          writeAtomically(directory.resolve(document.getFileName()), document.getFileData());
+          saveMetaData(document);
+          if (!document.getFileName().equals(current.getFileName())) {
+            Files.deleteIfExists(directory.resolve(current.getFileName()));
+          }
+          SharedFileRead.release(directory.resolve(current.getFileName()));
+          for (String format : THUMBNAIL_FORMATS) {
+            Files.deleteIfExists(directory.resolve(THUMBNAIL_FILE_NAME + "." + format));
+          }
+        }
+        commit(event, document);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(previousFile);
+        Files.deleteIfExists(previousMetadata);
+        throw e;
+      } finally {
+        volume.endWrite();
+      }
+      long versionBytes = getVersionBytes(versions);
+      DocumentMetadata previous = removeFromIndex(uuid);
+      locations.put(uuid, volume);
+      DocumentMetadata metadata = document.getMetadata();
+      addToIndex(metadata);
+      if (previous != null) {
+        aggregates.addVersionBytes(previous.getPersonName(), Files.size(previousFile) - versionBytes);
+        aggregates.remove(previous);
+      }
+      changed(DocumentChange.Type.UPDATE, metadata);
+      aggregates.addVersionBytes(metadata.getPersonName(), versionBytes);
+    }
+  }
+
+  /**
+   * Returns the meta data of all versions of a document, the oldest first.
+   * Returns null if no document was found.
+   *
+   * @param uuid The id of the document
+   * @return The meta data of the versions
+   */
+  @Override
+  public List<DocumentMetadata> getVersions(String uuid) throws IOException {
+    try (DocumentLocks.Handle lock = locks.read(uuid)) {
+      DocumentMetadata current = metadataIndex.get(uuid);
+      if (current == null) {
+        return null;
+      }
+      List<DocumentMetadata> versions = new ArrayList<>(current.getVersion());
+      for (int version = 1; version < current.getVersion(); version++) {
+        Path path = getVersionsPath(uuid).resolve(version + VERSION_META_DATA_SUFFIX);
+        if (Files.exists(path)) {
+          versions.add(decodeMetadata(Files.readAllBytes(path)));
+        }
+      }
+      versions.add(current);
+      return versions;
+    }
+  }
+
+  /**
+   * Returns a version of a document with the path of its file if it is stored as a
+   * file, else with the file data. A version stored as delta is rebuilt from the
+   * next copy above it or from the current version; deltas are only kept between
+   * versions below the delta threshold, so this only reads small files.
+   * Returns null if the document or version was not found.
+   *
+   * @param uuid    The id of the document
+   * @param version The number of the version
+   * @return The document
+   * @throws IOException If a delta is missing or the rebuilt file does not match its checksum
+   */
+  @Override
+  public Document loadVersion(String uuid, int version) throws IOException {
+    try (DocumentLocks.Handle lock = locks.read(uuid)) {
+      DocumentMetadata indexed = metadataIndex.get(uuid);
+      if (indexed == null || version < 1 || version > indexed.getVersion()) {
+        return null;
+      }
+      if (version == indexed.getVersion()) {
+        return loadFromFileSystemWithPath(uuid);
+      }
+      Path versions = getVersionsPath(uuid);
+      DocumentMetadata metadata = decodeMetadata(Files.readAllBytes(versions.resolve(version + VERSION_META_DATA_SUFFIX)));
+      Path copy = versions.resolve(version + COPY_SUFFIX);
+      if (Files.exists(copy)) {
+        Document document = new Document(metadata);
+        document.setPath(copy);
+        return document;
+      }
+      int base = version + 1;
+      while (base < indexed.getVersion() && !Files.exists(versions.resolve(base + COPY_SUFFIX))) {
+        base++;
+      }
+      byte[] data;
+      if (base < indexed.getVersion()) {
+        data = Files.readAllBytes(versions.resolve(base + COPY_SUFFIX));
+      } else {
+        Document current = load(uuid);
+        if (current == null) {
+          return null;
+        }
+        data = current.getFileData();
+      }
+      for (int v = base - 1; v >= version; v--) {
+        data = BinaryDelta.apply(data, Files.readAllBytes(versions.resolve(v + DELTA_SUFFIX)));
+      }
+      if (metadata.getChecksum() != null && !metadata.getChecksum().equals(DocumentChecksum.of(data))) {
+        throw new IOException("Checksum mismatch of version " + version + " of document " + uuid);
+      }
+      Document document = new Document(metadata);
+      document.setFileData(data);
+      return document;
     }
   }
 
+  private Path getVersionsPath(String uuid) {
+    return Paths.get(getVolume(uuid).getDirectory(), VERSIONS_DIRECTORY, uuid);
+  }
+
+  /**
+   * @return The bytes of the stored old versions in a versions directory, 0 if it does not exist
+   */
+  private static long getVersionBytes(Path versions) throws IOException {
+    if (!Files.isDirectory(versions)) {
+      return 0;
+    }
+    long bytes = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(versions)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(DELTA_SUFFIX) || name.endsWith(COPY_SUFFIX)) {
+          bytes += Files.size(file);
+        }
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Chooses the volume of a new document and starts a write on it.
+   */
+  private ArchiveVolume place(Document document) {
+    ArchiveVolume volume = ArchiveVolume.place(document.getUuid(), volumes);
+    locations.put(document.getUuid(), volume);
+    volume.beginWrite();
+    return volume;
+  }
+
+  private static void commit(DataWriteEvent event, Document document) {
+    event.uuid = document.getUuid();
+    event.bytes = document.getFileData() != null ? document.getFileData().length : document.getFileSize();
+    event.version = document.getVersion();
+    event.commit();
+  }
+
 
   /**
    * Returns the document from the data store with the given UUID.
@@ -66,7 +595,7 @@ public class FileSystemDocumentDao implements IDocumentDao {
    */
   @Override
   public Document load(String uuid) {
-    try {
+    try (DocumentLocks.Handle lock = locks.read(uuid)) {
       return loadFromFileSystem(uuid);
     } catch (IOException e) {
       String message = "Error while loading document with id: " + uuid;
@@ -76,6 +605,30 @@ public class FileSystemDocumentDao implements IDocumentDao {
 
   }
 
+  /**
+   * Returns the meta data of the document with the given UUID from the index.
+   *
+   * @param uuid The id of the document
+   * @return The meta data, or null if no document was found
+   */
+  @Override
+  public DocumentMetadata getMetadata(String uuid) {
+    return metadataIndex.get(uuid);
+  }
+
+  /**
+   * Returns the meta data of many documents from the index, in one pass without
+   * any file system access.
+   */
+  @Override
+  public Map<String, DocumentMetadata> getMetadata(Collection<String> uuids) {
+    Map<String, DocumentMetadata> result = new LinkedHashMap<>(uuids.size() * 2);
+    for (String uuid : uuids) {
+      result.put(uuid, metadataIndex.get(uuid));
+    }
+    return result;
+  }
+
   /**
    * Returns the document from the data store with the given id setting the path property
    * The document file and meta data is returned.
@@ -86,7 +639,7 @@ public class FileSystemDocumentDao implements IDocumentDao {
    */
   @Override
   public Document loadWithPath(String uuid) {
-    try {
+    try (DocumentLocks.Handle lock = locks.read(uuid)) {
       return loadFromFileSystemWithPath(uuid);
     } catch (IOException e) {
       String message = "Error while loading document with id: " + uuid;
@@ -95,6 +648,50 @@ public class FileSystemDocumentDao implements IDocumentDao {
     }
   }
 
+  @Override
+  public DocumentLocks.Handle lockForRead(String uuid) {
+    return locks.read(uuid);
+  }
+
+  /**
+   * Saves the thumbnail of a document in the folder of the document.
+   *
+   * @param uuid   The uuid of the document
+   * @param data   The encoded thumbnail
+   * @param format The image format of the thumbnail, jpg or png
+   */
+  @Override
+  public void saveThumbnail(String uuid, byte[] data, String format) throws IOException {
+    try (DocumentLocks.Handle lock = locks.write(uuid)) {
+      File dir = new File(getDirectoryPath(uuid));
+      if (!dir.isDirectory()) {
+        throw new FileNotFoundException("Document not found: " + uuid);
+      }
+      Path path = dir.toPath().resolve(THUMBNAIL_FILE_NAME + "." + format);
+      Path temp = dir.toPath().resolve(THUMBNAIL_FILE_NAME + "." + format + ".tmp");
+      Files.write(temp, data);
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /**
+   * Returns the path of the thumbnail of a document.
+   * Returns null if the document has no thumbnail.
+   *
+   * @param uuid The uuid of the document
+   * @return The path of the thumbnail
+   */
+  @Override
+  public Path getThumbnailPath(String uuid) {
+    for (String format : THUMBNAIL_FORMATS) {
+      Path path = Paths.get(getDirectoryPath(uuid), THUMBNAIL_FILE_NAME + "." + format);
+      if (Files.isRegularFile(path)) {
+        return path;
+      }
+    }
+    return null;
+  }
+
   /**
    * Sets the filename of the archive directory
    *
@@ -102,7 +699,32 @@ public class FileSystemDocumentDao implements IDocumentDao {
    */
   @Override
   public void setArchiveDirectory(String filename) {
-    DIRECTORY = filename;
+    setArchiveDirectories(Collections.singletonList(filename));
+  }
+
+  /**
+   * Sets the directories of the archive and indexes the documents in all of them.
+   * The first directory holds the state of the archive. The new volumes replace the
+   * old ones in one assignment before the old pack stores are closed, so callers which
+   * do not take a lock always see a complete list of volumes.
+   *
+   * @param directories The filenames of the dirs.
+   */
+  @Override
+  public void setArchiveDirectories(List<String> directories) {
+    try (DocumentLocks.Handle lock = locks.exclusive()) {
+      synchronized (snapshotLock) {
+        List<ArchiveVolume> opened = new ArrayList<>(directories.size());
+        for (String directory : directories) {
+          createDirectory(directory);
+          opened.add(new ArchiveVolume(directory, new PackStore(Paths.get(directory, PackStore.PACKS_DIRECTORY), properties.getPacks().getSegmentSize())));
+        }
+        List<ArchiveVolume> previous = volumes;
+        volumes = Collections.unmodifiableList(opened);
+        closeVolumes(previous);
+        rebuildIndex();
+      }
+    }
   }
 
   /**
@@ -112,7 +734,63 @@ public class FileSystemDocumentDao implements IDocumentDao {
    */
   @Override
   public String getArchiveDirectory() {
-    return DIRECTORY;
+    List<ArchiveVolume> current = volumes;
+    return current.isEmpty() ? DIRECTORY : current.get(0).getDirectory();
+  }
+
+  /**
+   * Gets the filenames of all archive dirs.
+   *
+   * @return The filenames
+   */
+  @Override
+  public List<String> getArchiveDirectories() {
+    List<String> directories = new ArrayList<>();
+    for (ArchiveVolume volume : volumes) {
+      directories.add(volume.getDirectory());
+    }
+    return directories;
+  }
+
+  private static void closeVolumes(List<ArchiveVolume> closed) {
+    for (ArchiveVolume volume : closed) {
+      volume.getPackStore().close();
+    }
+  }
+
+  /**
+   * Returns the changes after the given sequence. Inserts carry the meta data of
+   * the document if it still exists.
+   *
+   * @param since The sequence of the last change seen by the caller
+   * @param limit The maximum number of changes
+   * @return The changes, or null if they are no longer retained
+   */
+  @Override
+  public List<DocumentChange> getChanges(long since, int limit) {
+    List<DocumentChange> changes = changeLog.since(since, limit);
+    if (changes == null) {
+      return null;
+    }
+    List<DocumentChange> result = new ArrayList<>(changes.size());
+    for (DocumentChange change : changes) {
+      DocumentChange copy = new DocumentChange(change.getSequence(), change.getType(), change.getUuid(), change.getTime());
+      if (change.getType() != DocumentChange.Type.DELETE) {
+        copy.setMetadata(metadataIndex.get(change.getUuid()));
+      }
+      result.add(copy);
+    }
+    return result;
+  }
+
+  @Override
+  public long getChangeSequence() {
+    return changeLog.getSequence();
+  }
+
+  @Override
+  public void addChangeListener(ChangeLog.Listener listener) {
+    changeLog.addListener(listener);
   }
 
   /**
@@ -124,12 +802,46 @@ public class FileSystemDocumentDao implements IDocumentDao {
   @Override
   public String delete(String uuid) throws IOException {
 
-    File f = new File(getDirectoryPath(uuid));
-    if(!f.exists()) {
-      throw new FileNotFoundException("File not found");
-    }else {
-      if (FileSystemUtils.deleteRecursively(f)) ;
-      return uuid;
+    try (DocumentLocks.Handle lock = locks.write(uuid)) {
+      DocumentDeleteEvent event = new DocumentDeleteEvent();
+      event.begin();
+      event.uuid = uuid;
+      File f = new File(getDirectoryPath(uuid));
+      Path versions = getVersionsPath(uuid);
+      long versionBytes = getVersionBytes(versions);
+      FileSystemUtils.deleteRecursively(versions.toFile());
+      DocumentMetadata owner = metadataIndex.get(uuid);
+      if (owner != null) {
+        aggregates.addVersionBytes(owner.getPersonName(), -versionBytes);
+      }
+      if (getVolume(uuid).getPackStore().delete(uuid)) {
+        DocumentMetadata metadata = removeFromIndex(uuid);
+        if (metadata != null) {
+          changed(DocumentChange.Type.DELETE, metadata);
+          event.bytes = metadata.getFileSize();
+        }
+        event.packed = true;
+        event.commit();
+        return uuid;
+      } else if(!f.exists()) {
+        throw new FileNotFoundException("File not found");
+      }else {
+        DocumentMetadata indexed = metadataIndex.get(uuid);
+        if (indexed != null) {
+          ReadAhead.release(Paths.get(getFilePath(indexed)));
+        }
+        if (FileSystemUtils.deleteRecursively(f)) ;
+        if (indexed != null) {
+          SharedFileRead.release(Paths.get(getFilePath(indexed)));
+        }
+        DocumentMetadata metadata = removeFromIndex(uuid);
+        if (metadata != null) {
+          changed(DocumentChange.Type.DELETE, metadata);
+          event.bytes = metadata.getFileSize();
+        }
+        event.commit();
+        return uuid;
+      }
     }
   }
 
@@ -140,14 +852,16 @@ public class FileSystemDocumentDao implements IDocumentDao {
    */
   @Override
   public void deleteAll() throws IOException {
-    List<DocumentMetadata> docs = findByPersonNameDateContentType(null,null,null);
-    docs.forEach(doc -> {
-      try {
-        delete(doc.getUuid());
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    });
+    try (DocumentLocks.Handle lock = locks.exclusive()) {
+      List<DocumentMetadata> docs = findByPersonNameDateContentType(null,null,null);
+      docs.forEach(doc -> {
+        try {
+          delete(doc.getUuid());
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      });
+    }
   }
 
   /**
@@ -163,29 +877,493 @@ public class FileSystemDocumentDao implements IDocumentDao {
    */
   @Override
   public List<DocumentMetadata> findByPersonNameDateContentType(String personName, Date date, String contentType) {
+    return findByPersonNameDateContentType(personName, NameMatch.EXACT, date, contentType);
+  }
+
+  /**
+   * Finds documents in the data store matching the given parameter.
+   * The person name is looked up in the name index with the given match strategy.
+   *
+   * @param personName  The name of a person, may be null
+   * @param match       The strategy to match the person name, may be null for exact matches
+   * @param date        The date of a document, may be null
+   * @param contentType Contenttype
+   * @return A list of document meta data
+   */
+  @Override
+  public List<DocumentMetadata> findByPersonNameDateContentType(String personName, NameMatch match, Date date, String contentType) {
+    return find(new DocumentQuery(personName, match, date, contentType));
+  }
+
+  /**
+   * Finds documents in the data store matching the given query.
+   * <p>
+   * The documents are read from the sorted date or file name index if the query
+   * has a date range or an order, so the first results of a query with a limit are
+   * found without sorting all documents. Small sets of documents from the person
+   * name index are filtered and sorted directly.
+   *
+   * @param query The query
+   * @return A list of document meta data
+   */
+  @Override
+  public List<DocumentMetadata> find(DocumentQuery query) {
+    NameMatch match = query.getNameMatch() == null ? NameMatch.EXACT : query.getNameMatch();
+    String exactName = match == NameMatch.EXACT ? query.getPersonName() : null;
+    Set<String> candidates = null;
+    if (query.getPersonName() != null) {
+      candidates = personNameIndex.lookup(query.getPersonName(), match);
+    }
+    DocumentOrder order = query.getOrder();
+    int limit = query.getLimit() == null ? Integer.MAX_VALUE : Math.max(0, query.getLimit());
+
+    Iterator<String> uuids;
+    boolean ordered = false;
+    if (candidates != null && (candidates.size() <= SMALL_RESULT_SIZE || (order == null && !query.hasDateRange()))) {
+      uuids = candidates.iterator();
+      candidates = null;
+    } else if (order != null && !order.isByDate()) {
+      uuids = fileNameIndex.uuids(null, null, order.isDescending());
+      ordered = true;
+    } else if (order != null || query.hasDateRange()) {
+      uuids = dateIndex.uuids(dateKey(query.getDateFrom()), dateKey(query.getDateTo()), order != null && order.isDescending());
+      ordered = order != null;
+    } else if (query.getContentType() != null) {
+      return scan(metadata -> isMatched(metadata, null, null, null, query.getContentType()), null, query.getLimit());
+    } else {
+      uuids = metadataIndex.keySet().iterator();
+    }
+
+    boolean stopAtLimit = ordered || order == null;
+    List<DocumentMetadata> metadataList = new ArrayList<DocumentMetadata>();
+    while (uuids.hasNext() && (!stopAtLimit || metadataList.size() < limit)) {
+      String uuid = uuids.next();
+      if (candidates != null && !candidates.contains(uuid)) {
+        continue;
+      }
+      DocumentMetadata metadata = metadataIndex.get(uuid);
+      if (isMatched(metadata, exactName, query.getDateFrom(), query.getDateTo(), query.getContentType())) {
+        metadataList.add(metadata);
+      }
+    }
+    if (!stopAtLimit) {
+      Collections.sort(metadataList, order.comparator());
+      if (metadataList.size() > limit) {
+        metadataList = new ArrayList<>(metadataList.subList(0, limit));
+      }
+    }
+    return metadataList;
+  }
+
+  /**
+   * Finds the documents matching a predicate with a parallel scan of the index.
+   * The index is split across a fork/join pool, so scans scale with the cores.
+   *
+   * @param filter The predicate, e.g. parsed by {@link MetadataFilter}
+   * @param order  The order of the results, may be null
+   * @param limit  The maximum number of results, may be null
+   * @return A list of document meta data
+   */
+  @Override
+  public List<DocumentMetadata> scan(Predicate<DocumentMetadata> filter, DocumentOrder order, Integer limit) {
+    int max = limit == null ? Integer.MAX_VALUE : Math.max(0, limit);
+    DocumentMetadata[] snapshot = metadataIndex.values().toArray(new DocumentMetadata[0]);
+    List<DocumentMetadata> metadataList = scanPool.invoke(new MetadataScan(snapshot, filter, order == null ? max : Integer.MAX_VALUE));
+    if (order != null) {
+      Collections.sort(metadataList, order.comparator());
+    }
+    if (metadataList.size() > max) {
+      metadataList = new ArrayList<>(metadataList.subList(0, max));
+    }
+    return metadataList;
+  }
+
+  /**
+   * Builds the index from the snapshot and the journal, or from the meta data of all
+   * documents if there is no usable snapshot. The pack segments are read in both cases.
+   */
+  private void rebuildIndex() {
+    clearIndex();
+    snapshotSequence = -1;
+    snapshotTime = 0;
+    List<ArchiveVolume> current = volumes;
     try {
-      return findInFileSystem(personName, date,contentType);
+      changeLog.open(Paths.get(getArchiveDirectory()), properties.getChanges().getRetention());
     } catch (IOException e) {
-      String message = "Error while finding document, person name: " + personName + ", date:" + date;
+      String message = "Error while opening the change log in " + getArchiveDirectory();
       LOG.error(message, e);
       throw new RuntimeException(message, e);
     }
+    IndexSnapshot snapshot = properties.getSnapshot().isEnabled() ? loadSnapshot(current) : null;
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, current.size()));
+      try {
+        for (final ArchiveVolume volume : current) {
+          futures.add(executor.submit(() -> {
+            if (snapshot == null) {
+              indexFolders(volume);
+            }
+            indexPacks(volume);
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while indexing archive", e);
+    } catch (ExecutionException e) {
+      String message = "Error while indexing archive directories: " + getArchiveDirectories();
+      LOG.error(message, e.getCause());
+      throw new RuntimeException(message, e.getCause());
+    }
+    LOG.info("Indexed " + metadataIndex.size() + " documents in " + getArchiveDirectories());
+    loadAggregates();
+    if (snapshot != null && properties.getSnapshot().isVerify()) {
+      startVerifier(current, snapshot.getTime());
+    }
+  }
+
+  private void clearIndex() {
+    metadataIndex.clear();
+    personNameIndex.clear();
+    dateIndex.clear();
+    fileNameIndex.clear();
+    locations.clear();
+  }
+
+  /**
+   * Loads the documents of the snapshot into the index and replays the changes of
+   * the documents which changed after it from their folders.
+   *
+   * @return The snapshot, null if there is none or it cannot be used
+   */
+  private IndexSnapshot loadSnapshot(List<ArchiveVolume> current) {
+    long start = System.currentTimeMillis();
+    IndexSnapshot snapshot;
+    try {
+      snapshot = IndexSnapshot.open(Paths.get(getArchiveDirectory()));
+    } catch (IOException e) {
+      LOG.warn("Reading all documents, the index snapshot cannot be loaded: " + e.getMessage());
+      return null;
+    }
+    if (snapshot == null) {
+      return null;
+    }
+    if (!snapshot.getDirectories().equals(getDirectories(current))) {
+      LOG.info("Reading all documents, the index snapshot is of the directories " + snapshot.getDirectories());
+      return null;
+    }
+    List<DocumentChange> journal = changeLog.since(snapshot.getSequence(), Integer.MAX_VALUE);
+    if (journal == null) {
+      LOG.info("Reading all documents, the change log does not contain the changes after the index snapshot");
+      return null;
+    }
+    try {
+      snapshot.read((volume, data) -> {
+        DocumentMetadata metadata = decodeMetadata(data);
+        locations.put(metadata.getUuid(), current.get(volume));
+        addToIndex(metadata);
+      });
+      Set<String> changed = new LinkedHashSet<>();
+      for (DocumentChange change : journal) {
+        changed.add(change.getUuid());
+      }
+      for (String uuid : changed) {
+        reloadFromFolder(uuid, current);
+      }
+      LOG.info("Loaded " + snapshot.getCount() + " documents from the index snapshot at sequence " + snapshot.getSequence()
+        + " and replayed " + changed.size() + " changed documents in " + (System.currentTimeMillis() - start) + " ms");
+    } catch (IOException | RuntimeException e) {
+      LOG.error("Reading all documents, error while loading the index snapshot", e);
+      clearIndex();
+      return null;
+    }
+    snapshotSequence = snapshot.getSequence();
+    snapshotTime = System.currentTimeMillis();
+    return snapshot;
   }
 
+  /**
+   * Replaces a document in the index by the meta data in its folder, or removes it if
+   * it has no folder. Documents in pack segments are indexed when the packs are read.
+   */
+  private DocumentMetadata reloadFromFolder(String uuid, List<ArchiveVolume> current) throws IOException {
+    removeFromIndex(uuid);
+    for (ArchiveVolume volume : current) {
+      if (Files.isDirectory(Paths.get(volume.getDirectory(), uuid))) {
+        locations.put(uuid, volume);
+        DocumentMetadata metadata = loadMetadataFromFileSystem(uuid);
+        if (metadata != null && metadata.getUuid() != null) {
+          addToIndex(metadata);
+          return metadata;
+        }
+        locations.remove(uuid);
+        return null;
+      }
+    }
+    return null;
+  }
 
-  private List<DocumentMetadata> findInFileSystem(String personName, Date date, String contentType) throws IOException {
-    List<String> uuidList = getUuidList();
-    List<DocumentMetadata> metadataList = new ArrayList<DocumentMetadata>(uuidList.size());
-    for (String uuid : uuidList) {
+  private void indexFolders(ArchiveVolume volume) throws IOException {
+    for (String uuid : getUuidList(volume.getDirectory())) {
+      locations.put(uuid, volume);
       DocumentMetadata metadata = loadMetadataFromFileSystem(uuid);
-      if (isMatched(metadata, personName, date,contentType)) {
-        metadataList.add(metadata);
+      if (metadata != null && metadata.getUuid() != null) {
+        addToIndex(metadata);
+      } else {
+        locations.remove(uuid);
+      }
+    }
+  }
+
+  private void indexPacks(final ArchiveVolume volume) throws IOException {
+    volume.getPackStore().open(new PackStore.RecordHandler() {
+      @Override
+      public void document(String uuid, byte[] metadata, long dataLength) {
+        removeFromIndex(uuid);
+        DocumentMetadata document = decodeMetadata(metadata);
+        document.setFileSize(dataLength);
+        locations.put(uuid, volume);
+        addToIndex(document);
+      }
+
+      @Override
+      public void deleted(String uuid) {
+        removeFromIndex(uuid);
+      }
+    });
+  }
+
+  /**
+   * Writes a snapshot of the documents in folders; the documents in pack segments
+   * are indexed from the segments at startup anyway. The sequence is taken before
+   * the index is iterated, a change made meanwhile may be in the snapshot already
+   * and is replayed again, which does not change the result.
+   */
+  private void writeSnapshot() {
+    synchronized (snapshotLock) {
+      List<ArchiveVolume> current = volumes;
+      if (current.isEmpty()) {
+        return;
+      }
+      long time = System.currentTimeMillis();
+      long sequence = changeLog.getSequence();
+      Path directory = Paths.get(current.get(0).getDirectory());
+      try {
+        int count = IndexSnapshot.save(directory, sequence, time, getDirectories(current), handler -> {
+          for (DocumentMetadata metadata : metadataIndex.values()) {
+            ArchiveVolume volume = locations.get(metadata.getUuid());
+            int index = volume != null ? current.indexOf(volume) : -1;
+            if (index >= 0 && !volume.getPackStore().contains(metadata.getUuid())) {
+              handler.document(index, encodeMetadata(metadata));
+            }
+          }
+        });
+        snapshotSequence = sequence;
+        snapshotTime = time;
+        LOG.info("Saved index snapshot of " + count + " documents at sequence " + sequence + " in "
+          + (System.currentTimeMillis() - time) + " ms");
+      } catch (IOException e) {
+        LOG.error("Error while saving the index snapshot in " + directory, e);
+      }
+    }
+  }
+
+  private static List<String> getDirectories(List<ArchiveVolume> volumes) {
+    List<String> directories = new ArrayList<>(volumes.size());
+    for (ArchiveVolume volume : volumes) {
+      directories.add(volume.getDirectory());
+    }
+    return directories;
+  }
+
+  private void startVerifier(List<ArchiveVolume> current, long snapshotTime) {
+    Thread thread = new Thread(() -> {
+      IoScheduler.markBackground();
+      verify(current, snapshotTime);
+    }, "index-verifier");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    verifier = thread;
+    thread.start();
+  }
+
+  /**
+   * Reconciles the index loaded from a snapshot with the document folders: folders
+   * which are not indexed are added, meta data which changed after the snapshot is
+   * reloaded and documents whose folder is gone are removed. Every correction is a
+   * change in the change log. Folders written after the verification started are
+   * skipped, their writes update the index themselves.
+   */
+  private void verify(List<ArchiveVolume> current, long snapshotTime) {
+    long start = System.currentTimeMillis();
+    long modifiedAfter = snapshotTime - VERIFY_CLOCK_SLACK;
+    int folders = 0;
+    int added = 0;
+    int reloaded = 0;
+    int removed = 0;
+    try {
+      for (ArchiveVolume volume : current) {
+        for (String uuid : getUuidList(volume.getDirectory())) {
+          if (volumes != current || Thread.currentThread().isInterrupted()) {
+            return;
+          }
+          folders++;
+          DocumentMetadata indexed = metadataIndex.get(uuid);
+          if (indexed != null && locations.get(uuid) == volume && getMetadataModified(volume, uuid) < modifiedAfter
+            || volume.getPackStore().contains(uuid)) {
+            continue;
+          }
+          try (DocumentLocks.Handle lock = locks.write(uuid)) {
+            long modified = getMetadataModified(volume, uuid);
+            if (modified < 0 || modified >= start || volume.getPackStore().contains(uuid)) {
+              continue; // deleted or written after the start
+            }
+            DocumentMetadata previous = metadataIndex.get(uuid);
+            DocumentMetadata metadata = reloadFromFolder(uuid, current);
+            if (metadata == null) {
+              if (previous != null) {
+                changed(DocumentChange.Type.DELETE, previous);
+                removed++;
+              }
+            } else if (previous == null) {
+              changed(DocumentChange.Type.INSERT, metadata);
+              added++;
+            } else if (!Arrays.equals(encodeMetadata(previous), encodeMetadata(metadata))) {
+              aggregates.remove(previous);
+              changed(DocumentChange.Type.UPDATE, metadata);
+              reloaded++;
+            }
+          } catch (IOException | RuntimeException e) {
+            LOG.warn("Error while verifying document " + uuid, e);
+          }
+        }
+      }
+      for (DocumentMetadata metadata : metadataIndex.values()) {
+        if (volumes != current || Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        String uuid = metadata.getUuid();
+        ArchiveVolume volume = locations.get(uuid);
+        if (volume == null || volume.getPackStore().contains(uuid) || Files.isDirectory(Paths.get(volume.getDirectory(), uuid))) {
+          continue;
+        }
+        try (DocumentLocks.Handle lock = locks.write(uuid)) {
+          if (metadataIndex.get(uuid) == metadata && !volume.getPackStore().contains(uuid)
+            && !Files.isDirectory(Paths.get(volume.getDirectory(), uuid))) {
+            removeFromIndex(uuid);
+            changed(DocumentChange.Type.DELETE, metadata);
+            removed++;
+          }
+        }
+      }
+      LOG.info("Verified the index snapshot with " + folders + " document folders in " + (System.currentTimeMillis() - start)
+        + " ms: " + added + " added, " + reloaded + " reloaded, " + removed + " removed");
+    } finally {
+      if (verifier == Thread.currentThread()) {
+        verifier = null;
+      }
+    }
+  }
+
+  /**
+   * @return The last modification time of the meta data file of a document folder, -1 if there is none
+   */
+  private static long getMetadataModified(ArchiveVolume volume, String uuid) {
+    Path folder = Paths.get(volume.getDirectory(), uuid);
+    File binary = folder.resolve(META_DATA_FILE_NAME).toFile();
+    long modified = binary.lastModified();
+    if (modified == 0) {
+      modified = folder.resolve(LEGACY_META_DATA_FILE_NAME).toFile().lastModified();
+    }
+    return modified > 0 ? modified : -1;
+  }
+
+  private static byte[] encodeMetadata(DocumentMetadata metadata) {
+    return MetadataCodec.encode(metadata);
+  }
+
+  private static DocumentMetadata decodeMetadata(byte[] data) {
+    try {
+      return MetadataCodec.decode(data);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void loadAggregates() {
+    try {
+      if (aggregates.load(Paths.get(getArchiveDirectory())) && aggregates.getCount() == metadataIndex.size()
+        && aggregates.getSequence() == changeLog.getSequence()) {
+        return;
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.error("Error while loading aggregates in " + getArchiveDirectory(), e);
+    }
+    LOG.info("Recomputing aggregates of " + metadataIndex.size() + " documents");
+    aggregates.rebuild(metadataIndex.values(), changeLog.getSequence());
+    for (ArchiveVolume volume : volumes) {
+      Path directory = Paths.get(volume.getDirectory(), VERSIONS_DIRECTORY);
+      if (!Files.isDirectory(directory)) {
+        continue;
+      }
+      try (DirectoryStream<Path> versions = Files.newDirectoryStream(directory)) {
+        for (Path path : versions) {
+          DocumentMetadata metadata = metadataIndex.get(path.getFileName().toString());
+          if (metadata != null) {
+            aggregates.addVersionBytes(metadata.getPersonName(), getVersionBytes(path));
+          }
+        }
+      } catch (IOException e) {
+        LOG.error("Error while counting the versions in " + directory, e);
       }
     }
-    return metadataList;
   }
 
-  private boolean isMatched(DocumentMetadata metadata, String personName, Date date, String contentType) {
+  /**
+   * Updates the aggregates with an insert, update or delete and appends it to the change log.
+   * The aggregates are updated first, so their saved sequence never runs ahead of the counters.
+   * For an update the previous version must be removed from the aggregates before.
+   */
+  private void changed(DocumentChange.Type type, DocumentMetadata metadata) {
+    if (type == DocumentChange.Type.DELETE) {
+      aggregates.remove(metadata);
+    } else {
+      aggregates.add(metadata);
+    }
+    aggregates.setSequence(changeLog.append(type, metadata.getUuid()).getSequence());
+  }
+
+  private void addToIndex(DocumentMetadata metadata) {
+    String uuid = metadata.getUuid();
+    metadataIndex.put(uuid, metadata);
+    personNameIndex.add(metadata.getPersonName(), uuid);
+    dateIndex.add(DocumentOrder.dateKey(metadata), uuid);
+    fileNameIndex.add(DocumentOrder.fileNameKey(metadata), uuid);
+  }
+
+  private DocumentMetadata removeFromIndex(String uuid) {
+    locations.remove(uuid);
+    DocumentMetadata metadata = metadataIndex.remove(uuid);
+    if (metadata != null) {
+      personNameIndex.remove(metadata.getPersonName(), uuid);
+      dateIndex.remove(DocumentOrder.dateKey(metadata), uuid);
+      fileNameIndex.remove(DocumentOrder.fileNameKey(metadata), uuid);
+    }
+    return metadata;
+  }
+
+  private static Long dateKey(Date date) {
+    return date == null ? null : date.getTime();
+  }
+
+  private boolean isMatched(DocumentMetadata metadata, String personName, Date from, Date to, String contentType) {
     if (metadata == null) {
       return false;
     }
@@ -193,8 +1371,11 @@ public class FileSystemDocumentDao implements IDocumentDao {
     if (personName != null) {
       match = (personName.equals(metadata.getPersonName()));
     }
-    if (match && date != null) {
-      match = (date.equals(metadata.getDocumentDate()));
+    if (match && (from != null || to != null)) {
+      Date date = metadata.getDocumentDate();
+      match = date != null
+        && (from == null || !date.before(from))
+        && (to == null || !date.after(to));
     }
     if(match && contentType != null){
       match = metadata.getContentType().contains(contentType.toLowerCase());
@@ -207,25 +1388,56 @@ public class FileSystemDocumentDao implements IDocumentDao {
     String dirPath = getDirectoryPath(uuid);
     File file = new File(dirPath);
     if (file.exists()) {
-      Properties properties = readProperties(uuid);
-      document = new DocumentMetadata(properties);
-
+      MetadataReadEvent event = new MetadataReadEvent();
+      event.begin();
+      File binary = new File(file, META_DATA_FILE_NAME);
+      if (binary.exists()) {
+        byte[] data;
+        try (IoScheduler.Permit permit = ioScheduler.acquire(IoScheduler.IoClass.METADATA, binary.length())) {
+          data = Files.readAllBytes(binary.toPath());
+        }
+        document = decodeMetadata(data);
+        event.bytes = data.length;
+      } else {
+        document = new DocumentMetadata(readProperties(uuid));
+        event.legacy = true;
+        if (event.isEnabled()) {
+          event.bytes = new File(file, LEGACY_META_DATA_FILE_NAME).length();
+        }
+      }
+      event.uuid = uuid;
+      event.commit();
+      if (document.getFileSize() < 0 && document.getFileName() != null) {
+        document.setFileSize(new File(getFilePath(document)).length());
+      }
     }
     return document;
   }
 
   private Document loadFromFileSystem(String uuid) throws IOException {
+    if (getVolume(uuid).getPackStore().contains(uuid)) {
+      return loadFromPack(uuid);
+    }
     DocumentMetadata metadata = loadMetadataFromFileSystem(uuid);
     if (metadata == null) {
       return null;
     }
     Path path = Paths.get(getFilePath(metadata));
     Document document = new Document(metadata);
-    document.setFileData(Files.readAllBytes(path));
+    long size = Files.size(path);
+    try (InputStream input = ioScheduler.wrap(Files.newInputStream(path), ioScheduler.classify(size))) {
+      document.setFileData(readFully(input, size));
+    }
     return document;
   }
 
+  /**
+   * Documents in a pack segment have no path, their file data is returned instead.
+   */
   private Document loadFromFileSystemWithPath(String uuid) throws IOException {
+    if (getVolume(uuid).getPackStore().contains(uuid)) {
+      return loadFromPack(uuid);
+    }
     DocumentMetadata metadata = loadMetadataFromFileSystem(uuid);
     if (metadata == null) {
       return null;
@@ -236,6 +1448,38 @@ public class FileSystemDocumentDao implements IDocumentDao {
     return document;
   }
 
+  private Document loadFromPack(String uuid) throws IOException {
+    DocumentMetadata metadata = metadataIndex.get(uuid);
+    PackStore packStore = getVolume(uuid).getPackStore();
+    long length = packStore.length(uuid);
+    InputStream stream = packStore.newInputStream(uuid);
+    if (metadata == null || stream == null) {
+      return null;
+    }
+    Document document = new Document(metadata);
+    try (InputStream input = ioScheduler.wrap(stream, ioScheduler.classify(length))) {
+      document.setFileData(readFully(input, length));
+    }
+    return document;
+  }
+
+  /**
+   * Reads a stream of the given length in buffers, so a read through the I/O scheduler
+   * takes a slot per buffer rather than one for the whole file.
+   */
+  private static byte[] readFully(InputStream input, long length) throws IOException {
+    byte[] data = new byte[(int) length];
+    int offset = 0;
+    while (offset < data.length) {
+      int n = input.read(data, offset, Math.min(READ_BUFFER_SIZE, data.length - offset));
+      if (n < 0) {
+        return Arrays.copyOf(data, offset);
+      }
+      offset += n;
+    }
+    return data;
+  }
+
   private String getFilePath(DocumentMetadata metadata) {
     String dirPath = getDirectoryPath(metadata.getUuid());
     StringBuilder sb = new StringBuilder();
@@ -246,35 +1490,118 @@ public class FileSystemDocumentDao implements IDocumentDao {
   private void saveFileData(Document document) throws IOException {
     String path = getDirectoryPath(document);
     LOG.debug(path);
-    BufferedOutputStream stream = new BufferedOutputStream(new FileOutputStream(new File(new File(path), document.getFileName())));
-    stream.write(document.getFileData());
+    byte[] data = document.getFileData();
+    OutputStream stream = ioScheduler.wrap(new FileOutputStream(new File(new File(path), document.getFileName())), ioScheduler.classify(data.length));
+    stream.write(data);
     stream.close();
     System.out.println("File data saved");
   }
 
+  /**
+   * Computes the checksum of a file, reading it through the I/O scheduler.
+   */
+  private String checksum(Path file) throws IOException {
+    MessageDigest digest = DocumentChecksum.newDigest();
+    byte[] buffer = new byte[READ_BUFFER_SIZE];
+    try (InputStream input = ioScheduler.wrap(Files.newInputStream(file), ioScheduler.classify(Files.size(file)))) {
+      int n;
+      while ((n = input.read(buffer)) > 0) {
+        digest.update(buffer, 0, n);
+      }
+    }
+    return DocumentChecksum.toHex(digest.digest());
+  }
+
   public void saveMetaData(Document document) throws IOException {
-    String path = getDirectoryPath(document);
-    Properties props = document.createProperties();
-    File f = new File(new File(path), META_DATA_FILE_NAME);
-    OutputStream out = new FileOutputStream(f);
-    props.store(out, "Document meta data");
-    System.out.println("Metadat saved");
+    writeMetadata(Paths.get(getDirectoryPath(document)), encodeMetadata(document));
+  }
+
+  /**
+   * Writes the meta data file of a document folder. The file is replaced atomically.
+   */
+  private static void writeMetadata(Path directory, byte[] data) throws IOException {
+    writeAtomically(directory.resolve(META_DATA_FILE_NAME), data);
+  }
+
+  private static void writeAtomically(Path path, byte[] data) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      Files.write(temp, data);
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+  }
+
+  /**
+   * Copies a file like {@link #writeAtomically(Path, byte[])}, streaming it through the I/O scheduler.
+   */
+  private void copyAtomically(Path source, Path path) throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (InputStream input = ioScheduler.wrap(Files.newInputStream(source), ioScheduler.classify(Files.size(source)))) {
+      Files.copy(input, temp, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temp);
+      throw e;
+    }
   }
 
-  private List<String> getUuidList() {
-    File file = new File(DIRECTORY);
+  /**
+   * Converts the meta data of all documents saved in the properties format to the
+   * binary format. The volumes are converted in parallel.
+   *
+   * @return The number of converted documents
+   */
+  @Override
+  public int convertMetadata() {
+    return volumes.parallelStream().mapToInt(volume -> {
+      int converted = 0;
+      for (String uuid : getUuidList(volume.getDirectory())) {
+        Path directory = Paths.get(volume.getDirectory(), uuid);
+        Path legacy = directory.resolve(LEGACY_META_DATA_FILE_NAME);
+        try (DocumentLocks.Handle lock = locks.write(uuid)) {
+          DocumentMetadata metadata = metadataIndex.get(uuid);
+          if (!Files.exists(legacy) || Files.exists(directory.resolve(META_DATA_FILE_NAME))) {
+            continue;
+          }
+          if (metadata == null) {
+            metadata = decodeMetadata(Files.readAllBytes(legacy));
+          }
+          writeMetadata(directory, encodeMetadata(metadata));
+          Files.delete(legacy);
+          converted++;
+        } catch (IOException | UncheckedIOException e) {
+          LOG.error("Error while converting the meta data of document " + uuid, e);
+        }
+      }
+      return converted;
+    }).sum();
+  }
+
+  private List<String> getUuidList(String directory) {
+    File file = new File(directory);
+    if (!file.isDirectory()) {
+      return Collections.emptyList();
+    }
+    DocumentListEvent event = new DocumentListEvent();
+    event.begin();
     String[] directories = file.list(new FilenameFilter() {
       @Override
       public boolean accept(File current, String name) {
-        return new File(current, name).isDirectory();
+        return !name.startsWith(".") && new File(current, name).isDirectory();
       }
     });
+    event.directory = directory;
+    event.count = directories.length;
+    event.commit();
     return Arrays.asList(directories);
   }
 
   private Properties readProperties(String uuid) throws IOException {
     Properties prop = new Properties();
-    try (InputStream input = new FileInputStream(new File(getDirectoryPath(uuid), META_DATA_FILE_NAME))){
+    try (InputStream input = new FileInputStream(new File(getDirectoryPath(uuid), LEGACY_META_DATA_FILE_NAME))){
       prop.load(input);
     }catch(FileNotFoundException e){
       e.printStackTrace();
@@ -296,11 +1623,19 @@ public class FileSystemDocumentDao implements IDocumentDao {
 
   private String getDirectoryPath(String uuid) {
     StringBuilder sb = new StringBuilder();
-    sb.append(DIRECTORY).append(File.separator).append(uuid);
+    sb.append(getVolume(uuid).getDirectory()).append(File.separator).append(uuid);
     String path = sb.toString();
     return path;
   }
 
+  /**
+   * Returns the volume of a document. Unknown documents are looked up on the first volume.
+   */
+  private ArchiveVolume getVolume(String uuid) {
+    ArchiveVolume volume = locations.get(uuid);
+    return volume != null ? volume : volumes.get(0);
+  }
+
   private void createDirectory(String path) {
     File file = new File(path);
     file.mkdirs();
@@ -0,0 +1,243 @@
+package archive.dao;
+
+import archive.ArchiveProperties;
+import archive.model.DocumentMetadata;
+import archive.model.UploadSession;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Data access object for resumable uploads.
+ * <p>
+ * FileSystemUploadSessionDao keeps each upload in a folder in the uploads directory
+ * of the archive. The folder contains the file of the upload, which is preallocated
+ * with the size of the upload, and a properties file with the state of the session.
+ * Chunks are written with positional writes, so they can arrive in parallel and in
+ * any order. A chunk is recorded in the state only after it is written to disk, so
+ * an interrupted upload resumes with the missing chunks.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("uploadSessionDao")
+public class FileSystemUploadSessionDao implements IUploadSessionDao {
+
+  private static final Logger LOG = Logger.getLogger(FileSystemUploadSessionDao.class);
+
+  public static final String UPLOADS_DIRECTORY = ".uploads";
+  public static final String SESSION_FILE_NAME = "session.properties";
+  public static final String DATA_FILE_NAME = "data";
+
+  private static final String PROP_ID = "id";
+  private static final String PROP_SIZE = "size";
+  private static final String PROP_CHUNK_SIZE = "chunk-size";
+  private static final String PROP_CREATED = "created";
+  private static final String PROP_RECEIVED = "received";
+  private static final String PROP_DOCUMENT = "document";
+  private static final int BUFFER_SIZE = 65536;
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Deletes upload sessions which were not committed in time.
+   */
+  @Scheduled(fixedDelay = 3600000)
+  public void deleteExpiredSessions() {
+    try {
+      deleteExpired(System.currentTimeMillis() - properties.getUploads().getExpiryHours() * 3600000L);
+    } catch (IOException e) {
+      LOG.error("Error while deleting expired upload sessions", e);
+    }
+  }
+
+  @Override
+  public void create(UploadSession session) throws IOException {
+    Path dir = getSessionPath(session.getId());
+    Files.createDirectories(dir);
+    try (RandomAccessFile file = new RandomAccessFile(dir.resolve(DATA_FILE_NAME).toFile(), "rw")) {
+      file.setLength(session.getSize());
+    }
+    saveSession(session);
+    sessions.put(session.getId(), session);
+  }
+
+  @Override
+  public UploadSession load(String id) throws IOException {
+    UploadSession session = sessions.get(id);
+    if (session == null) {
+      session = loadSession(id);
+      if (session != null) {
+        UploadSession existing = sessions.putIfAbsent(id, session);
+        session = existing != null ? existing : session;
+      }
+    }
+    return session;
+  }
+
+  @Override
+  public void update(UploadSession session) throws IOException {
+    synchronized (session) {
+      saveSession(session);
+    }
+  }
+
+  @Override
+  public void writeChunk(UploadSession session, int index, InputStream data, long checksum) throws IOException {
+    if (index < 0 || index >= session.getChunkCount()) {
+      throw new IllegalArgumentException("Invalid chunk number: " + index);
+    }
+    if (session.isReceived(index)) {
+      // The chunk is sent again and overwritten, it is missing until the new data is verified
+      session.setMissing(index);
+      synchronized (session) {
+        saveSession(session);
+      }
+    }
+    long position = session.getChunkOffset(index);
+    int length = session.getChunkLength(index);
+    CRC32 crc = new CRC32();
+    long written = 0;
+    Path path = getSessionPath(session.getId()).resolve(DATA_FILE_NAME);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = data.read(buffer)) > 0) {
+        if (written + read > length) {
+          throw new IllegalArgumentException("Chunk " + index + " is longer than " + length + " bytes");
+        }
+        crc.update(buffer, 0, read);
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+        while (byteBuffer.hasRemaining()) {
+          written += channel.write(byteBuffer, position + written);
+        }
+      }
+      if (written != length) {
+        throw new IllegalArgumentException("Chunk " + index + " has " + written + " bytes, expected " + length);
+      }
+      if (crc.getValue() != checksum) {
+        throw new IllegalArgumentException("Checksum mismatch for chunk " + index);
+      }
+      channel.force(false);
+    }
+    session.setReceived(index);
+    synchronized (session) {
+      saveSession(session);
+    }
+  }
+
+  @Override
+  public Path getFile(UploadSession session) {
+    return getSessionPath(session.getId()).resolve(DATA_FILE_NAME);
+  }
+
+  @Override
+  public void delete(String id) throws IOException {
+    sessions.remove(id);
+    FileSystemUtils.deleteRecursively(getSessionPath(id).toFile());
+  }
+
+  @Override
+  public void deleteExpired(long before) throws IOException {
+    File[] dirs = getUploadsPath().toFile().listFiles(File::isDirectory);
+    if (dirs == null) {
+      return;
+    }
+    for (File dir : dirs) {
+      UploadSession session = load(dir.getName());
+      if (session == null || session.getCreated().getTime() < before) {
+        LOG.info("Deleting expired upload session: " + dir.getName());
+        delete(dir.getName());
+      }
+    }
+  }
+
+  private void saveSession(UploadSession session) throws IOException {
+    Properties props = new Properties();
+    props.setProperty(PROP_ID, session.getId());
+    props.setProperty(DocumentMetadata.PROP_FILE_NAME, session.getFileName());
+    props.setProperty(DocumentMetadata.PROP_PERSON_NAME, session.getPersonName());
+    props.setProperty(DocumentMetadata.PROP_CONTENT_TYPE, session.getContentType());
+    props.setProperty(DocumentMetadata.PROP_DOCUMENT_DATE, new SimpleDateFormat(DocumentMetadata.DATE_FORMAT_PATTERN).format(session.getDocumentDate()));
+    props.setProperty(PROP_SIZE, String.valueOf(session.getSize()));
+    props.setProperty(PROP_CHUNK_SIZE, String.valueOf(session.getChunkSize()));
+    props.setProperty(PROP_CREATED, String.valueOf(session.getCreated().getTime()));
+    props.setProperty(PROP_RECEIVED, Base64.getEncoder().encodeToString(session.getReceivedBits()));
+    if (session.getDocumentUuid() != null) {
+      props.setProperty(PROP_DOCUMENT, session.getDocumentUuid());
+    }
+    Path dir = getSessionPath(session.getId());
+    Path temp = dir.resolve(SESSION_FILE_NAME + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+      props.store(out, "Upload session");
+      out.getFD().sync();
+    }
+    Files.move(temp, dir.resolve(SESSION_FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private UploadSession loadSession(String id) throws IOException {
+    File file = getSessionPath(id).resolve(SESSION_FILE_NAME).toFile();
+    if (!file.exists()) {
+      return null;
+    }
+    Properties props = new Properties();
+    try (InputStream input = new FileInputStream(file)) {
+      props.load(input);
+    }
+    try {
+      UploadSession session = new UploadSession(props.getProperty(PROP_ID),
+        props.getProperty(DocumentMetadata.PROP_FILE_NAME),
+        new SimpleDateFormat(DocumentMetadata.DATE_FORMAT_PATTERN).parse(props.getProperty(DocumentMetadata.PROP_DOCUMENT_DATE)),
+        props.getProperty(DocumentMetadata.PROP_PERSON_NAME),
+        props.getProperty(DocumentMetadata.PROP_CONTENT_TYPE),
+        Long.parseLong(props.getProperty(PROP_SIZE)),
+        Integer.parseInt(props.getProperty(PROP_CHUNK_SIZE)));
+      session.setCreated(new Date(Long.parseLong(props.getProperty(PROP_CREATED))));
+      session.setReceivedBits(Base64.getDecoder().decode(props.getProperty(PROP_RECEIVED)));
+      session.setDocumentUuid(props.getProperty(PROP_DOCUMENT));
+      return session;
+    } catch (ParseException | RuntimeException e) {
+      LOG.error("Error while reading upload session: " + id, e);
+      return null;
+    }
+  }
+
+  private Path getUploadsPath() {
+    return Paths.get(documentDao.getArchiveDirectory(), UPLOADS_DIRECTORY);
+  }
+
+  private Path getSessionPath(String id) {
+    if (id.contains("/") || id.contains("\\") || id.startsWith(".")) {
+      throw new IllegalArgumentException("Invalid upload id: " + id);
+    }
+    return getUploadsPath().resolve(id);
+  }
+
+  public IDocumentDao getDocumentDao() {
+    return documentDao;
+  }
+
+  public void setDocumentDao(IDocumentDao documentDao) {
+    this.documentDao = documentDao;
+  }
+}
@@ -2,11 +2,22 @@ package archive.dao;
 
 
 import archive.model.Document;
+import archive.model.ArchiveAggregates;
+import archive.model.DocumentChange;
 import archive.model.DocumentMetadata;
+import archive.model.DocumentOrder;
+import archive.model.DocumentQuery;
+import archive.model.FacetCount;
+import archive.model.NameMatch;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * Data access object to insert, find and load {@link Document}s
@@ -22,6 +33,43 @@ public interface IDocumentDao {
    */
   void insert(Document document);
 
+  /**
+   * Inserts a document in the data store moving the given file as the document file.
+   *
+   * @param document A Document without file data
+   * @param file     The file of the document
+   */
+  void insert(Document document, Path file);
+
+  /**
+   * Saves the file of an imported document as a hard link to the source file or as
+   * a copy of it, and writes its meta data. The document is not found by searches
+   * until it is indexed with {@link #indexImported(List)}.
+   *
+   * @param document A Document without file data
+   * @param source   The file to import, which is not changed
+   * @param link     True to link the file if the source is on the same file system
+   * @throws java.nio.file.FileAlreadyExistsException If a document with the uuid was saved before
+   */
+  void importFile(Document document, Path source, boolean link) throws IOException;
+
+  /**
+   * Adds imported documents to the index and the change log at once.
+   *
+   * @param documents The meta data of documents saved with {@link #importFile(Document, Path, boolean)}
+   */
+  void indexImported(List<DocumentMetadata> documents);
+
+  /**
+   * Saves a document received from the primary archive, replacing the document
+   * with the same uuid. The uuid, version and checksum are kept.
+   *
+   * @param document A Document with the meta data of the primary, with file data if file is null
+   * @param file     The received file of the document, or null
+   * @throws IOException If the received data does not match the checksum of the primary
+   */
+  void replicate(Document document, Path file) throws IOException;
+
 
 
   /**
@@ -34,9 +82,58 @@ public interface IDocumentDao {
    */
   Document load(String uuid);
 
+  /**
+   * Saves a new version of an existing document. Older versions remain available.
+   *
+   * @param document The new version, with the uuid of the existing document
+   * @throws FileNotFoundException If the document does not exist
+   */
+  void insertVersion(Document document) throws IOException;
+
+  /**
+   * Returns the meta data of all versions of a document, the oldest first.
+   * Returns null if no document was found.
+   *
+   * @param uuid The id of the document
+   * @return The meta data of the versions
+   */
+  List<DocumentMetadata> getVersions(String uuid) throws IOException;
+
+  /**
+   * Returns a version of a document with the path of its file, or with the file
+   * data if it is packed or rebuilt from deltas.
+   * Returns null if the document or version was not found.
+   *
+   * @param uuid    The id of the document
+   * @param version The number of the version, starting at 1
+   * @return The document
+   */
+  Document loadVersion(String uuid, int version) throws IOException;
+
+  /**
+   * Returns the meta data of the document with the given UUID without reading the file.
+   * Returns null if no document was found.
+   *
+   * @param uuid The id of the document
+   * @return The meta data of the document
+   */
+  DocumentMetadata getMetadata(String uuid);
+
+  /**
+   * Returns the meta data of many documents at once without reading their files.
+   * The map has an entry for every uuid in the given order, null if the document
+   * was not found.
+   *
+   * @param uuids The ids of the documents
+   * @return The meta data by uuid
+   */
+  Map<String, DocumentMetadata> getMetadata(Collection<String> uuids);
+
   /**
    * Returns the document from the data store with the given id setting the path property
    * The document file and meta data is returned.
+   * Small documents which are not stored in a file of their own have no path,
+   * their file data is set instead.
    * Returns null if no document was found.
    *
    * @param uuid The id of the document
@@ -44,6 +141,31 @@ public interface IDocumentDao {
    */
   Document loadWithPath(String uuid);
 
+  /**
+   * Acquires the read lock of a document. While it is held the document is not
+   * deleted or replaced, e.g. while the file of the path of a document is sent.
+   *
+   * @param uuid The id of the document
+   * @return The handle which releases the lock when closed
+   */
+  DocumentLocks.Handle lockForRead(String uuid);
+
+  /**
+   * Saves the thumbnail of a document beside the document.
+   * @param uuid   The uuid of the document
+   * @param data   The encoded thumbnail
+   * @param format The image format of the thumbnail, jpg or png
+   */
+  void saveThumbnail(String uuid, byte[] data, String format) throws IOException;
+
+  /**
+   * Returns the path of the thumbnail of a document.
+   * Returns null if the document has no thumbnail.
+   * @param uuid The uuid of the document
+   * @return The path of the thumbnail
+   */
+  Path getThumbnailPath(String uuid);
+
   /**
    * Sets the filename of the archive directory
    * @param filename The filename of the dir.
@@ -56,6 +178,19 @@ public interface IDocumentDao {
    */
   String getArchiveDirectory();
 
+  /**
+   * Sets the filenames of the archive directories. Documents are spread over all
+   * directories, the first directory also holds the state of the archive.
+   * @param directories The filenames of the dirs.
+   */
+  void setArchiveDirectories(List<String> directories);
+
+  /**
+   * Gets the filenames of all archive dirs.
+   * @return The filenames
+   */
+  List<String> getArchiveDirectories();
+
   /**
    * Deletes the document with the specified uuid
    * @param uuid The uuid of the document
@@ -81,5 +216,78 @@ public interface IDocumentDao {
    * @return A list of document meta data
    */
   List<DocumentMetadata> findByPersonNameDateContentType(String personName, Date date, String contentType);
-}
 
+  /**
+   * Finds documents in the data store matching the given parameter.
+   * The person name is matched with the given strategy, e.g. case-insensitive or by prefix.
+   * Returns an empty list if no document was found.
+   *
+   * @param personName  The name of a person, may be null
+   * @param match       The strategy to match the person name, may be null for exact matches
+   * @param date        The date of a document, may be null
+   * @param contentType Contenttype
+   * @return A list of document meta data
+   */
+  List<DocumentMetadata> findByPersonNameDateContentType(String personName, NameMatch match, Date date, String contentType);
+
+  /**
+   * Finds documents in the data store matching the given query.
+   * The query may restrict the document dates to a range, order the results
+   * by date or file name and limit the number of results.
+   *
+   * @param query The query
+   * @return A list of document meta data
+   */
+  List<DocumentMetadata> find(DocumentQuery query);
+
+  /**
+   * Finds the documents matching an arbitrary predicate with a full scan in parallel.
+   *
+   * @param filter The predicate, e.g. parsed by {@link MetadataFilter}
+   * @param order  The order of the results, may be null
+   * @param limit  The maximum number of results, may be null
+   * @return A list of document meta data
+   */
+  List<DocumentMetadata> scan(Predicate<DocumentMetadata> filter, DocumentOrder order, Integer limit);
+
+  /**
+   * Returns the document counts and total bytes of the archive, in total and
+   * per person, content type and month.
+   *
+   * @return The aggregates of the archive
+   */
+  ArchiveAggregates getAggregates();
+
+  /**
+   * Returns the number of documents and total bytes of a person in constant time.
+   *
+   * @param personName The name of a person, null for the whole archive
+   * @return The usage of the person or archive
+   */
+  FacetCount getUsage(String personName);
+
+  /**
+   * Returns the inserts and deletes after the given sequence in order.
+   * @param since The sequence of the last change seen by the caller
+   * @param limit The maximum number of changes
+   * @return The changes, or null if changes after the sequence are no longer retained
+   */
+  List<DocumentChange> getChanges(long since, int limit);
+
+  /**
+   * @return The sequence of the last change
+   */
+  long getChangeSequence();
+
+  /**
+   * Registers a listener which is called after every insert and delete.
+   * @param listener The listener
+   */
+  void addChangeListener(ChangeLog.Listener listener);
+
+  /**
+   * Converts the meta data of documents saved by earlier versions to the current format.
+   * @return The number of converted documents
+   */
+  int convertMetadata();
+}
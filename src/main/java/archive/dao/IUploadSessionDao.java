@@ -0,0 +1,71 @@
+package archive.dao;
+
+import archive.model.UploadSession;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Data access object for the state and the data of resumable uploads.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public interface IUploadSessionDao {
+
+  /**
+   * Creates a new upload session and reserves space for its file.
+   *
+   * @param session The new session
+   */
+  void create(UploadSession session) throws IOException;
+
+  /**
+   * Returns the upload session with the given id.
+   * Returns null if there is no such session.
+   *
+   * @param id The id of the session
+   * @return The session
+   */
+  UploadSession load(String id) throws IOException;
+
+  /**
+   * Saves the state of an upload session, e.g. when it is committed.
+   *
+   * @param session The session
+   */
+  void update(UploadSession session) throws IOException;
+
+  /**
+   * Writes a chunk of an upload at its position in the file of the upload.
+   * The chunk is recorded as received only if its length and CRC32 checksum match.
+   *
+   * @param session  The session
+   * @param index    The number of the chunk, starting at 0
+   * @param data     The data of the chunk
+   * @param checksum The expected CRC32 checksum of the chunk
+   */
+  void writeChunk(UploadSession session, int index, InputStream data, long checksum) throws IOException;
+
+  /**
+   * Returns the path of the file of a complete upload.
+   *
+   * @param session The session
+   * @return The path of the assembled file
+   */
+  Path getFile(UploadSession session);
+
+  /**
+   * Deletes an upload session and its data.
+   *
+   * @param id The id of the session
+   */
+  void delete(String id) throws IOException;
+
+  /**
+   * Deletes upload sessions which were created before the given time.
+   *
+   * @param before Time in milliseconds
+   */
+  void deleteExpired(long before) throws IOException;
+}
@@ -0,0 +1,199 @@
+package archive.dao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A snapshot of the meta data index of an archive, so the archive can start
+ * without reading the meta data file of every document.
+ * <p>
+ * The snapshot records the sequence of the change log when it was taken; the
+ * changes after it are the journal which is replayed after loading. The file is
+ * memory mapped when it is loaded and verified with a CRC32 before any record is
+ * used, a snapshot which is torn or corrupt is not loaded at all. It is written
+ * to a temporary file which replaces the previous snapshot atomically.
+ * <p>
+ * Layout: magic (4), format (4), sequence (8), time (8), number of directories (4),
+ * directories as length (4) and UTF-8, records as volume (2), meta data length (4)
+ * and meta data, number of records (4), CRC32 of everything before (4). The records
+ * are written while the index is iterated, so the number follows them.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class IndexSnapshot {
+
+  public static final String FILE_NAME = "index.snapshot";
+
+  private static final int MAGIC = 0x41524958; // ARIX
+  private static final int FORMAT = 1;
+  private static final int CRC_SIZE = 4;
+  private static final int COUNT_SIZE = 4;
+
+  /**
+   * Receives the records of a snapshot.
+   */
+  public interface RecordHandler {
+    void document(int volume, byte[] metadata) throws IOException;
+  }
+
+  /**
+   * Passes the documents to write to a snapshot.
+   */
+  public interface RecordSource {
+    void forEach(RecordHandler handler) throws IOException;
+  }
+
+  private final long sequence;
+  private final long time;
+  private final List<String> directories;
+  private final int count;
+  private final ByteBuffer records;
+
+  private IndexSnapshot(long sequence, long time, List<String> directories, int count, ByteBuffer records) {
+    this.sequence = sequence;
+    this.time = time;
+    this.directories = directories;
+    this.count = count;
+    this.records = records;
+  }
+
+  /**
+   * Maps and verifies the snapshot in an archive directory.
+   *
+   * @param directory The archive directory
+   * @return The snapshot, null if there is none
+   * @throws IOException If the snapshot cannot be read or is corrupt
+   */
+  public static IndexSnapshot open(Path directory) throws IOException {
+    Path file = directory.resolve(FILE_NAME);
+    if (!Files.exists(file)) {
+      return null;
+    }
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < COUNT_SIZE + CRC_SIZE || size > Integer.MAX_VALUE) {
+        throw new IOException("Invalid size of " + file + ": " + size);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    int end = buffer.limit() - CRC_SIZE;
+    ByteBuffer content = buffer.duplicate();
+    ((Buffer) content).limit(end);
+    CRC32 crc = new CRC32();
+    crc.update(content);
+    if ((int) crc.getValue() != buffer.getInt(end)) {
+      throw new IOException("Checksum mismatch of " + file);
+    }
+    int count = buffer.getInt(end - COUNT_SIZE);
+    ((Buffer) buffer).limit(end - COUNT_SIZE);
+    if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+      throw new IOException("Unknown format of " + file);
+    }
+    long sequence = buffer.getLong();
+    long time = buffer.getLong();
+    int directoryCount = buffer.getInt();
+    List<String> directories = new ArrayList<>(directoryCount);
+    for (int i = 0; i < directoryCount; i++) {
+      byte[] name = new byte[buffer.getInt()];
+      buffer.get(name);
+      directories.add(new String(name, StandardCharsets.UTF_8));
+    }
+    return new IndexSnapshot(sequence, time, Collections.unmodifiableList(directories), count, buffer.slice());
+  }
+
+  /**
+   * Writes a snapshot to an archive directory, replacing the previous one.
+   *
+   * @param directory   The archive directory
+   * @param sequence    The sequence of the change log before the records were collected
+   * @param time        The time in ms before the records were collected
+   * @param directories The directories of the volumes
+   * @param records     Passes the documents
+   * @return The number of documents written
+   */
+  public static int save(Path directory, long sequence, long time, List<String> directories, RecordSource records) throws IOException {
+    Path file = directory.resolve(FILE_NAME);
+    Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+    CRC32 crc = new CRC32();
+    int[] count = new int[1];
+    try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+      DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(out, crc), 65536));
+      data.writeInt(MAGIC);
+      data.writeInt(FORMAT);
+      data.writeLong(sequence);
+      data.writeLong(time);
+      data.writeInt(directories.size());
+      for (String name : directories) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+      }
+      records.forEach((volume, metadata) -> {
+        data.writeShort(volume);
+        data.writeInt(metadata.length);
+        data.write(metadata);
+        count[0]++;
+      });
+      data.writeInt(count[0]);
+      data.flush();
+      new DataOutputStream(out).writeInt((int) crc.getValue());
+      out.getFD().sync();
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return count[0];
+  }
+
+  /**
+   * Passes all records to the handler in the order they were written.
+   */
+  public void read(RecordHandler handler) throws IOException {
+    ByteBuffer buffer = records.duplicate();
+    for (int i = 0; i < count; i++) {
+      if (buffer.remaining() < 6) {
+        throw new IOException("Snapshot ends after " + i + " of " + count + " records");
+      }
+      int volume = buffer.getShort();
+      byte[] metadata = new byte[buffer.getInt()];
+      buffer.get(metadata);
+      handler.document(volume, metadata);
+    }
+  }
+
+  /**
+   * @return The sequence of the change log when the snapshot was taken, the changes after it are replayed
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return The time in ms when the snapshot was taken
+   */
+  public long getTime() {
+    return time;
+  }
+
+  public List<String> getDirectories() {
+    return directories;
+  }
+
+  public int getCount() {
+    return count;
+  }
+}
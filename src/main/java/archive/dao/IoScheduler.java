@@ -0,0 +1,313 @@
+package archive.dao;
+
+import archive.ArchiveProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Shares the disks between interactive requests, bulk transfers and background jobs.
+ * <p>
+ * Every read or write of the storage layer takes one of a fixed number of slots
+ * for the duration of the operation, streams take a slot per buffer rather than
+ * for the whole transfer, so a slot is never held while a client is slow. While
+ * slots are free operations start at once. When all slots are taken, the waiting
+ * operations are started by start-time fair queuing: each operation is tagged
+ * with the virtual time of its class, which advances by the bytes of the
+ * operation divided by the weight of the class, and the operation with the
+ * lowest tag goes next. Classes therefore get shares of the disk bandwidth in
+ * proportion to their weights while they compete, and a class which was idle
+ * does not save up a share. A few slots are reserved for meta data and small
+ * reads, so a burst of bulk transfers cannot take all slots.
+ * <p>
+ * Threads of background jobs mark themselves with {@link #markBackground()}, all
+ * their operations are scheduled as {@link IoClass#BACKGROUND}.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Component
+@ManagedResource(objectName = "archive:name=IoScheduler", description = "Fair scheduling of disk operations")
+public class IoScheduler {
+
+  private static final ThreadLocal<Boolean> BACKGROUND = new ThreadLocal<>();
+
+  /**
+   * The classes of operations, by decreasing priority.
+   */
+  public enum IoClass {
+    /** Reads of meta data files. */
+    METADATA,
+    /** Reads and writes of documents up to the small threshold. */
+    SMALL,
+    /** Reads and writes of larger documents. */
+    BULK,
+    /** Operations of background jobs, e.g. the scrubber and imports. */
+    BACKGROUND
+  }
+
+  /**
+   * A slot taken by an operation, which is released when the permit is closed.
+   */
+  public interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  @Autowired
+  private ArchiveProperties properties = new ArchiveProperties();
+
+  private final Deque<Waiter>[] queues;
+  private final double[] tags = new double[IoClass.values().length];
+  private final long[] operations = new long[IoClass.values().length];
+  private final long[] bytes = new long[IoClass.values().length];
+  private final long[] waitNanos = new long[IoClass.values().length];
+  private double virtualTime;
+  private int inFlight;
+  private int inFlightBulk;
+  private int waiting;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public IoScheduler() {
+    queues = new Deque[IoClass.values().length];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new ArrayDeque<>();
+    }
+  }
+
+  /**
+   * Marks the current thread as a thread of a background job.
+   */
+  public static void markBackground() {
+    BACKGROUND.set(Boolean.TRUE);
+  }
+
+  /**
+   * @param bytes The size of a read or write of a document
+   * @return The class of the operation on the current thread
+   */
+  public IoClass classify(long bytes) {
+    return bytes <= properties.getIo().getSmallThreshold() ? IoClass.SMALL : IoClass.BULK;
+  }
+
+  /**
+   * Waits for a slot for an operation.
+   *
+   * @param ioClass The class of the operation, replaced by background on background threads
+   * @param bytes   The number of bytes the operation reads or writes
+   * @return The permit, which must be closed after the operation
+   * @throws InterruptedIOException If the thread was interrupted while waiting
+   */
+  public Permit acquire(IoClass ioClass, long bytes) throws InterruptedIOException {
+    IoClass effective = BACKGROUND.get() != null ? IoClass.BACKGROUND : ioClass;
+    long start = System.nanoTime();
+    Waiter waiter = new Waiter(effective, bytes);
+    synchronized (this) {
+      double weight = getWeight(effective);
+      waiter.tag = Math.max(virtualTime, tags[effective.ordinal()]);
+      tags[effective.ordinal()] = waiter.tag + Math.max(1, bytes) / weight;
+      queues[effective.ordinal()].addLast(waiter);
+      waiting++;
+      dispatch();
+      try {
+        while (!waiter.granted) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        if (waiter.granted) {
+          release(effective);
+        } else {
+          queues[effective.ordinal()].remove(waiter);
+          waiting--;
+          dispatch();
+        }
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the disk");
+      }
+      waitNanos[effective.ordinal()] += System.nanoTime() - start;
+    }
+    return () -> release(effective);
+  }
+
+  /**
+   * Wraps a stream, each read of it waits for a slot.
+   */
+  public InputStream wrap(InputStream input, IoClass ioClass) {
+    return new FilterInputStream(input) {
+      @Override
+      public int read() throws IOException {
+        try (Permit permit = acquire(ioClass, 1)) {
+          return super.read();
+        }
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        try (Permit permit = acquire(ioClass, len)) {
+          return super.read(b, off, len);
+        }
+      }
+    };
+  }
+
+  /**
+   * Wraps a stream, large writes are split in chunks and each chunk waits for a slot.
+   */
+  public OutputStream wrap(OutputStream output, IoClass ioClass) {
+    return new FilterOutputStream(output) {
+      @Override
+      public void write(int b) throws IOException {
+        try (Permit permit = acquire(ioClass, 1)) {
+          out.write(b);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        int chunk = Math.max(1, properties.getIo().getChunkSize());
+        for (int offset = 0; offset < len; offset += chunk) {
+          int n = Math.min(chunk, len - offset);
+          try (Permit permit = acquire(ioClass, n)) {
+            out.write(b, off + offset, n);
+          }
+        }
+      }
+    };
+  }
+
+  private synchronized void release(IoClass ioClass) {
+    inFlight--;
+    if (ioClass == IoClass.BULK || ioClass == IoClass.BACKGROUND) {
+      inFlightBulk--;
+    }
+    dispatch();
+  }
+
+  /**
+   * Starts the waiting operations with the lowest tags while slots are free.
+   */
+  private void dispatch() {
+    ArchiveProperties.Io settings = properties.getIo();
+    int slots = Math.max(1, settings.getConcurrency());
+    int bulkSlots = Math.max(1, slots - settings.getReserved());
+    boolean started = false;
+    while (inFlight < slots && waiting > 0) {
+      Waiter next = null;
+      for (Deque<Waiter> queue : queues) {
+        Waiter head = queue.peekFirst();
+        if (head != null && (!head.isBulk() || inFlightBulk < bulkSlots) && (next == null || head.tag < next.tag)) {
+          next = head;
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      queues[next.ioClass.ordinal()].removeFirst();
+      waiting--;
+      inFlight++;
+      if (next.isBulk()) {
+        inFlightBulk++;
+      }
+      virtualTime = Math.max(virtualTime, next.tag);
+      operations[next.ioClass.ordinal()]++;
+      bytes[next.ioClass.ordinal()] += next.bytes;
+      next.granted = true;
+      started = true;
+    }
+    if (started) {
+      notifyAll();
+    }
+  }
+
+  private double getWeight(IoClass ioClass) {
+    ArchiveProperties.Io settings = properties.getIo();
+    switch (ioClass) {
+      case METADATA:
+        return Math.max(1, settings.getMetadataWeight());
+      case SMALL:
+        return Math.max(1, settings.getSmallWeight());
+      case BULK:
+        return Math.max(1, settings.getBulkWeight());
+      default:
+        return Math.max(1, settings.getBackgroundWeight());
+    }
+  }
+
+  @ManagedAttribute(description = "Number of disk operations in progress")
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @ManagedAttribute(description = "Number of disk operations waiting for a slot")
+  public synchronized int getWaiting() {
+    return waiting;
+  }
+
+  @ManagedAttribute(description = "Average ms meta data reads waited for a slot")
+  public double getMetadataWaitMillis() {
+    return getAverageWait(IoClass.METADATA);
+  }
+
+  @ManagedAttribute(description = "Average ms small reads and writes waited for a slot")
+  public double getSmallWaitMillis() {
+    return getAverageWait(IoClass.SMALL);
+  }
+
+  @ManagedAttribute(description = "Average ms bulk reads and writes waited for a slot")
+  public double getBulkWaitMillis() {
+    return getAverageWait(IoClass.BULK);
+  }
+
+  @ManagedAttribute(description = "Average ms background operations waited for a slot")
+  public double getBackgroundWaitMillis() {
+    return getAverageWait(IoClass.BACKGROUND);
+  }
+
+  @ManagedAttribute(description = "Bytes of small reads and writes")
+  public synchronized long getSmallBytes() {
+    return bytes[IoClass.SMALL.ordinal()];
+  }
+
+  @ManagedAttribute(description = "Bytes of bulk reads and writes")
+  public synchronized long getBulkBytes() {
+    return bytes[IoClass.BULK.ordinal()];
+  }
+
+  @ManagedAttribute(description = "Bytes of background operations")
+  public synchronized long getBackgroundBytes() {
+    return bytes[IoClass.BACKGROUND.ordinal()];
+  }
+
+  private synchronized double getAverageWait(IoClass ioClass) {
+    long count = operations[ioClass.ordinal()];
+    return count == 0 ? 0 : waitNanos[ioClass.ordinal()] / 1e6 / count;
+  }
+
+  /**
+   * An operation waiting for a slot.
+   */
+  private static class Waiter {
+    private final IoClass ioClass;
+    private final long bytes;
+    private double tag;
+    private boolean granted;
+
+    private Waiter(IoClass ioClass, long bytes) {
+      this.ioClass = ioClass;
+      this.bytes = bytes;
+    }
+
+    private boolean isBulk() {
+      return ioClass == IoClass.BULK || ioClass == IoClass.BACKGROUND;
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package archive.dao;
+
+import archive.model.DocumentMetadata;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Compact binary encoding of document meta data.
+ * <p>
+ * An encoded record starts with a magic number and a version byte, followed by a
+ * byte of flags for the optional fields. Uuids are stored as 16 bytes, strings as
+ * varint length and UTF-8, numbers as zigzag varints and the checksum as raw bytes.
+ * Records are a fraction of the size of a properties file and are decoded without
+ * parsing dates or text. The magic number starts with a zero byte, which never
+ * starts a properties file, so {@link #decode(byte[])} also reads the meta data of
+ * documents archived before this encoding. The codec is stateless and thread safe.
+ * <p>
+ * Version 2 adds the version number of the document; records of version 1 are
+ * decoded as the first version.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public final class MetadataCodec {
+
+  public static final int VERSION = 2;
+
+  private static final byte[] MAGIC = {0, 'A', 'M', 'D'};
+  private static final int HAS_DATE = 1;
+  private static final int HAS_SIZE = 2;
+  private static final int HAS_CHECKSUM = 4;
+  private static final int BINARY_UUID = 8;
+
+  private MetadataCodec() {
+  }
+
+  public static byte[] encode(DocumentMetadata metadata) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+      UUID uuid = parseUuid(metadata.getUuid());
+      byte[] checksum = parseHex(metadata.getChecksum());
+      int flags = (metadata.getDocumentDate() != null ? HAS_DATE : 0)
+        | (metadata.getFileSize() >= 0 ? HAS_SIZE : 0)
+        | (checksum != null ? HAS_CHECKSUM : 0)
+        | (uuid != null ? BINARY_UUID : 0);
+      out.writeByte(flags);
+      if (uuid != null) {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+      } else {
+        writeString(out, metadata.getUuid());
+      }
+      writeString(out, metadata.getFileName());
+      writeString(out, metadata.getPersonName());
+      writeString(out, metadata.getContentType());
+      if (metadata.getDocumentDate() != null) {
+        writeVarLong(out, zigzag(metadata.getDocumentDate().getTime()));
+      }
+      if (metadata.getFileSize() >= 0) {
+        writeVarLong(out, metadata.getFileSize());
+      }
+      if (checksum != null) {
+        writeVarLong(out, checksum.length);
+        out.write(checksum);
+      }
+      writeVarLong(out, metadata.getVersion());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // not thrown by a byte array
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes binary meta data or a properties file written by earlier versions.
+   *
+   * @param data The encoded meta data
+   * @return The meta data
+   * @throws IOException If the data is truncated or of an unknown version
+   */
+  public static DocumentMetadata decode(byte[] data) throws IOException {
+    if (!isBinary(data)) {
+      Properties properties = new Properties();
+      properties.load(new ByteArrayInputStream(data));
+      return new DocumentMetadata(properties);
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, MAGIC.length, data.length - MAGIC.length));
+    int version = in.readUnsignedByte();
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported meta data version: " + version);
+    }
+    int flags = in.readUnsignedByte();
+    String uuid = (flags & BINARY_UUID) != 0 ? new UUID(in.readLong(), in.readLong()).toString() : readString(in);
+    DocumentMetadata metadata = new DocumentMetadata(uuid, readString(in), null, readString(in), readString(in));
+    if ((flags & HAS_DATE) != 0) {
+      metadata.setDocumentDate(new Date(unzigzag(readVarLong(in))));
+    }
+    if ((flags & HAS_SIZE) != 0) {
+      metadata.setFileSize(readVarLong(in));
+    }
+    if ((flags & HAS_CHECKSUM) != 0) {
+      byte[] checksum = new byte[(int) readVarLong(in)];
+      in.readFully(checksum);
+      metadata.setChecksum(DocumentChecksum.toHex(checksum));
+    }
+    if (version >= 2) {
+      metadata.setVersion((int) readVarLong(in));
+    }
+    return metadata;
+  }
+
+  /**
+   * @return true if the data is in the binary encoding, false for a properties file
+   */
+  public static boolean isBinary(byte[] data) {
+    if (data.length < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (data[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      writeVarLong(out, 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, bytes.length + 1L);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    long length = readVarLong(in);
+    if (length == 0) {
+      return null;
+    }
+    if (length - 1 > in.available()) {
+      throw new EOFException("Truncated meta data");
+    }
+    byte[] bytes = new byte[(int) (length - 1)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in meta data");
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static UUID parseUuid(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      UUID uuid = UUID.fromString(value);
+      return uuid.toString().equals(value) ? uuid : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static byte[] parseHex(String value) {
+    if (value == null || value.length() % 2 != 0 || !value.matches("[0-9a-f]*")) {
+      return null;
+    }
+    byte[] bytes = new byte[value.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(value.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+}
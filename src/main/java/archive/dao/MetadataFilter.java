@@ -0,0 +1,274 @@
+package archive.dao;
+
+import archive.model.DocumentMetadata;
+
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Filter expressions over document meta data, evaluated by the scan of the
+ * {@link IDocumentDao}.
+ * <p>
+ * An expression compares fields with values and combines the comparisons with
+ * and, or, not and parentheses, e.g.
+ * <pre>
+ * contentType ~ "pdf" and (fileName glob "*.jpg" or fileSize &gt; 1000000) and not personName = "Bob"
+ * </pre>
+ * The fields are uuid, fileName, personName, contentType, checksum, documentDate
+ * (yyyy-MM-dd) and fileSize. The operators are =, !=, &lt;, &lt;=, &gt;, &gt;=,
+ * ~ (contains, ignoring case), glob (file name pattern, ignoring case) and matches
+ * (regular expression). Keywords and field names ignore case. Parsed filters are
+ * immutable and thread safe.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public final class MetadataFilter {
+
+  private static final List<String> COMPARISONS = Arrays.asList("=", "!=", "<", "<=", ">", ">=");
+
+  private final List<String> tokens;
+  private int position;
+
+  private MetadataFilter(List<String> tokens) {
+    this.tokens = tokens;
+  }
+
+  /**
+   * Parses a filter expression.
+   *
+   * @param expression The expression
+   * @return The predicate of the expression
+   * @throws IllegalArgumentException If the expression is invalid
+   */
+  public static Predicate<DocumentMetadata> parse(String expression) {
+    MetadataFilter parser = new MetadataFilter(tokenize(expression));
+    Predicate<DocumentMetadata> predicate = parser.or();
+    if (parser.position < parser.tokens.size()) {
+      throw new IllegalArgumentException("Unexpected '" + parser.tokens.get(parser.position) + "' in filter");
+    }
+    return predicate;
+  }
+
+  private Predicate<DocumentMetadata> or() {
+    Predicate<DocumentMetadata> predicate = and();
+    while (accept("or")) {
+      predicate = predicate.or(and());
+    }
+    return predicate;
+  }
+
+  private Predicate<DocumentMetadata> and() {
+    Predicate<DocumentMetadata> predicate = unary();
+    while (accept("and")) {
+      predicate = predicate.and(unary());
+    }
+    return predicate;
+  }
+
+  private Predicate<DocumentMetadata> unary() {
+    if (accept("not")) {
+      return unary().negate();
+    }
+    if (accept("(")) {
+      Predicate<DocumentMetadata> predicate = or();
+      expect(")");
+      return predicate;
+    }
+    return comparison();
+  }
+
+  private Predicate<DocumentMetadata> comparison() {
+    String field = next("field");
+    String operator = next("operator").toLowerCase(Locale.ROOT);
+    String value = value(next("value"));
+    switch (field.toLowerCase(Locale.ROOT)) {
+      case "uuid":
+        return text(DocumentMetadata::getUuid, operator, value);
+      case "filename":
+        return text(DocumentMetadata::getFileName, operator, value);
+      case "personname":
+        return text(DocumentMetadata::getPersonName, operator, value);
+      case "contenttype":
+        return text(DocumentMetadata::getContentType, operator, value);
+      case "checksum":
+        return text(DocumentMetadata::getChecksum, operator, value);
+      case "filesize":
+        return number(metadata -> metadata.getFileSize() < 0 ? null : metadata.getFileSize(), operator, parseLong(value));
+      case "documentdate":
+        return number(metadata -> metadata.getDocumentDate() == null ? null : metadata.getDocumentDate().getTime(), operator, parseDate(value));
+      default:
+        throw new IllegalArgumentException("Unknown field in filter: " + field);
+    }
+  }
+
+  private static Predicate<DocumentMetadata> text(Function<DocumentMetadata, String> field, String operator, String value) {
+    switch (operator) {
+      case "~":
+        String lower = value.toLowerCase(Locale.ROOT);
+        return metadata -> {
+          String text = field.apply(metadata);
+          return text != null && text.toLowerCase(Locale.ROOT).contains(lower);
+        };
+      case "glob":
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + value.toLowerCase(Locale.ROOT));
+        return metadata -> {
+          String text = field.apply(metadata);
+          try {
+            return text != null && matcher.matches(Paths.get(text.toLowerCase(Locale.ROOT)));
+          } catch (InvalidPathException e) {
+            return false;
+          }
+        };
+      case "matches":
+        try {
+          Pattern pattern = Pattern.compile(value);
+          return metadata -> {
+            String text = field.apply(metadata);
+            return text != null && pattern.matcher(text).find();
+          };
+        } catch (PatternSyntaxException e) {
+          throw new IllegalArgumentException("Invalid regular expression in filter: " + value, e);
+        }
+      default:
+        checkComparison(operator, "text");
+        return metadata -> compare(field.apply(metadata), value, operator);
+    }
+  }
+
+  private static Predicate<DocumentMetadata> number(Function<DocumentMetadata, Long> field, String operator, long value) {
+    checkComparison(operator, "number");
+    return metadata -> compare(field.apply(metadata), value, operator);
+  }
+
+  /**
+   * Checks an operator when the comparison is parsed, so an invalid filter fails before the scan.
+   */
+  private static void checkComparison(String operator, String type) {
+    if (!COMPARISONS.contains(operator)) {
+      throw new IllegalArgumentException("Operator '" + operator + "' is not supported for " + type + " fields in filter");
+    }
+  }
+
+  private static <T extends Comparable<T>> boolean compare(T actual, T expected, String operator) {
+    if (actual == null) {
+      return operator.equals("!=");
+    }
+    int c = actual.compareTo(expected);
+    switch (operator) {
+      case "=":
+        return c == 0;
+      case "!=":
+        return c != 0;
+      case "<":
+        return c < 0;
+      case "<=":
+        return c <= 0;
+      case ">":
+        return c > 0;
+      case ">=":
+        return c >= 0;
+      default:
+        throw new IllegalArgumentException("Unknown operator in filter: " + operator);
+    }
+  }
+
+  private static long parseLong(String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number in filter: " + value, e);
+    }
+  }
+
+  private static long parseDate(String value) {
+    try {
+      Date date = DocumentMetadata.parseDate(value);
+      return date.getTime();
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid date in filter, format is yyyy-MM-dd: " + value, e);
+    }
+  }
+
+  private boolean accept(String token) {
+    if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(token)) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  private void expect(String token) {
+    if (!accept(token)) {
+      throw new IllegalArgumentException("Expected '" + token + "' in filter");
+    }
+  }
+
+  private String next(String expected) {
+    if (position >= tokens.size()) {
+      throw new IllegalArgumentException("Expected " + expected + " at end of filter");
+    }
+    return tokens.get(position++);
+  }
+
+  /**
+   * Removes the quotes of a string value.
+   */
+  private static String value(String token) {
+    if (token.length() >= 2 && token.charAt(0) == '"') {
+      return token.substring(1, token.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+    }
+    return token;
+  }
+
+  private static List<String> tokenize(String expression) {
+    List<String> tokens = new ArrayList<>();
+    int i = 0;
+    while (i < expression.length()) {
+      char c = expression.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '(' || c == ')' || c == '~') {
+        tokens.add(String.valueOf(c));
+        i++;
+      } else if (c == '=' || c == '!' || c == '<' || c == '>') {
+        boolean twoChars = i + 1 < expression.length() && expression.charAt(i + 1) == '=';
+        String operator = expression.substring(i, twoChars ? i + 2 : i + 1);
+        if (operator.equals("!")) {
+          throw new IllegalArgumentException("Unexpected '!' in filter");
+        }
+        tokens.add(operator);
+        i += operator.length();
+      } else if (c == '"') {
+        int end = i + 1;
+        while (end < expression.length() && expression.charAt(end) != '"') {
+          end += expression.charAt(end) == '\\' ? 2 : 1;
+        }
+        if (end >= expression.length()) {
+          throw new IllegalArgumentException("Unterminated string in filter");
+        }
+        tokens.add(expression.substring(i, end + 1));
+        i = end + 1;
+      } else {
+        int end = i;
+        while (end < expression.length() && !Character.isWhitespace(expression.charAt(end))
+          && "()~=!<>\"".indexOf(expression.charAt(end)) < 0) {
+          end++;
+        }
+        tokens.add(expression.substring(i, end));
+        i = end;
+      }
+    }
+    return tokens;
+  }
+}
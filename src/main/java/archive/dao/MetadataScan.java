@@ -0,0 +1,77 @@
+package archive.dao;
+
+import archive.model.DocumentMetadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Fork/join task which evaluates a predicate over a range of a snapshot of the
+ * meta data index. Ranges are split in halves until they are small enough for
+ * one task, the results of the halves are merged in order.
+ * <p>
+ * If the scan is unordered, it stops early once the limit is reached, the
+ * result then contains at least limit documents.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+class MetadataScan extends RecursiveTask<List<DocumentMetadata>> {
+
+  private static final long serialVersionUID = 8346029714265331803L;
+  private static final int THRESHOLD = 2048;
+
+  private final DocumentMetadata[] documents;
+  private final int from;
+  private final int to;
+  private final Predicate<DocumentMetadata> predicate;
+  private final AtomicInteger found;
+  private final int stopAt;
+
+  /**
+   * @param documents The snapshot of the index
+   * @param predicate The filter
+   * @param stopAt    The number of matches after which the scan may stop, Integer.MAX_VALUE for all
+   */
+  MetadataScan(DocumentMetadata[] documents, Predicate<DocumentMetadata> predicate, int stopAt) {
+    this(documents, 0, documents.length, predicate, new AtomicInteger(), stopAt);
+  }
+
+  private MetadataScan(DocumentMetadata[] documents, int from, int to, Predicate<DocumentMetadata> predicate,
+                       AtomicInteger found, int stopAt) {
+    this.documents = documents;
+    this.from = from;
+    this.to = to;
+    this.predicate = predicate;
+    this.found = found;
+    this.stopAt = stopAt;
+  }
+
+  @Override
+  protected List<DocumentMetadata> compute() {
+    if (found.get() >= stopAt) {
+      return new ArrayList<>();
+    }
+    if (to - from > THRESHOLD) {
+      int middle = (from + to) >>> 1;
+      MetadataScan left = new MetadataScan(documents, from, middle, predicate, found, stopAt);
+      MetadataScan right = new MetadataScan(documents, middle, to, predicate, found, stopAt);
+      left.fork();
+      List<DocumentMetadata> result = right.compute();
+      List<DocumentMetadata> merged = left.join();
+      merged.addAll(result);
+      return merged;
+    }
+    List<DocumentMetadata> result = new ArrayList<>();
+    for (int i = from; i < to && found.get() < stopAt; i++) {
+      DocumentMetadata metadata = documents[i];
+      if (predicate.test(metadata)) {
+        result.add(metadata);
+        found.incrementAndGet();
+      }
+    }
+    return result;
+  }
+}
@@ -1,5 +1,8 @@
 package archive.dao;
 
+import archive.monitor.HeaderEvaluationEvent;
+import archive.monitor.NotModifiedEvent;
+import archive.monitor.RangeCopyEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,6 +19,7 @@ import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -27,7 +31,14 @@ public class MultipartFileSender {
   private static final long DEFAULT_EXPIRE_TIME = 604800000L; // ..ms = 1 week.
   private static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
   protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+  String id;
+  IoScheduler scheduler;
+  DocumentLocks.Handle lock;
   Path filepath;
+  byte[] data;
+  String dataFileName;
+  String dataContentType;
+  long dataLastModified;
   HttpServletRequest request;
   HttpServletResponse response;
 
@@ -46,12 +57,64 @@ public class MultipartFileSender {
     return new MultipartFileSender().setFilepath(Paths.get(uri));
   }
 
+  public static MultipartFileSender fromData(byte[] data, String fileName, String contentType, long lastModified) {
+    MultipartFileSender sender = new MultipartFileSender();
+    sender.data = data;
+    sender.dataFileName = fileName;
+    sender.dataContentType = contentType;
+    sender.dataLastModified = lastModified;
+    return sender;
+  }
+
   //** internal setter **//
   private MultipartFileSender setFilepath(Path filepath) {
     this.filepath = filepath;
     return this;
   }
 
+  /**
+   * Sets the id of the document which is sent, for the flight recorder events.
+   */
+  public MultipartFileSender withId(String id) {
+    this.id = id;
+    return this;
+  }
+
+  /**
+   * Sets the name a file is sent with, if it is stored under another name.
+   */
+  public MultipartFileSender withFileName(String fileName) {
+    this.dataFileName = fileName;
+    return this;
+  }
+
+  /**
+   * Sets the content type of a file, so it is not probed.
+   */
+  public MultipartFileSender withContentType(String contentType) {
+    this.dataContentType = contentType;
+    return this;
+  }
+
+  /**
+   * Sets the scheduler the reads of the file wait for, small downloads are
+   * scheduled before large ones.
+   */
+  public MultipartFileSender withScheduler(IoScheduler scheduler) {
+    this.scheduler = scheduler;
+    return this;
+  }
+
+  /**
+   * Sets the lock of the document, which is released as soon as the file is opened.
+   * An open file stays readable when it is deleted or replaced, so the lock is not
+   * held while the file is sent to a slow client.
+   */
+  public MultipartFileSender withLock(DocumentLocks.Handle lock) {
+    this.lock = lock;
+    return this;
+  }
+
   public MultipartFileSender with(HttpServletRequest httpRequest) {
     request = httpRequest;
     return this;
@@ -62,27 +125,51 @@ public class MultipartFileSender {
     return this;
   }
 
+  /**
+   * Sends the file or data. The lock is released in any case.
+   */
   public void serveResource() throws Exception {
+    try {
+      send();
+    } finally {
+      unlock();
+    }
+  }
+
+  private void unlock() {
+    if (lock != null) {
+      lock.close();
+      lock = null;
+    }
+  }
+
+  private void send() throws Exception {
     if (response == null || request == null) {
       return;
     }
+    HeaderEvaluationEvent event = new HeaderEvaluationEvent();
+    event.begin();
 
-    if (!Files.exists(filepath)) {
+    if (data == null && !Files.exists(filepath)) {
       logger.error("File doesn't exist at URI : {}", filepath.toAbsolutePath().toString());
+      evaluated(event, HttpServletResponse.SC_NOT_FOUND);
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
 
-    Long length = Files.size(filepath);
-    String fileName = filepath.getFileName().toString();
-    FileTime lastModifiedObj = Files.getLastModifiedTime(filepath);
+    Long length = data != null ? data.length : Files.size(filepath);
+    String fileName = data != null || dataFileName != null ? dataFileName : filepath.getFileName().toString();
+    event.fileName = fileName;
+    event.length = length;
+    FileTime lastModifiedObj = data != null ? FileTime.fromMillis(dataLastModified) : Files.getLastModifiedTime(filepath);
 
     if (fileName == "" || lastModifiedObj == null) {
+      evaluated(event, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       return;
     }
     long lastModified = LocalDateTime.ofInstant(lastModifiedObj.toInstant(), ZoneId.of(ZoneOffset.systemDefault().getId())).toEpochSecond(ZoneOffset.UTC);
-    String contentType = Files.probeContentType(filepath);
+    String contentType = data != null || dataContentType != null ? dataContentType : Files.probeContentType(filepath);
 
     // Validate request headers for caching ---------------------------------------------------
 
@@ -90,6 +177,8 @@ public class MultipartFileSender {
     String ifNoneMatch = request.getHeader("If-None-Match");
     if (ifNoneMatch != null && HttpUtils.matches(ifNoneMatch, fileName)) {
       response.setHeader("ETag", fileName); // Required in 304.
+      evaluated(event, HttpServletResponse.SC_NOT_MODIFIED);
+      notModified("If-None-Match");
       response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
       return;
     }
@@ -99,6 +188,8 @@ public class MultipartFileSender {
     long ifModifiedSince = request.getDateHeader("If-Modified-Since");
     if (ifNoneMatch == null && ifModifiedSince != -1 && ifModifiedSince + 1000 > lastModified) {
       response.setHeader("ETag", fileName); // Required in 304.
+      evaluated(event, HttpServletResponse.SC_NOT_MODIFIED);
+      notModified("If-Modified-Since");
       response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
       return;
     }
@@ -108,6 +199,7 @@ public class MultipartFileSender {
     // If-Match header should contain "*" or ETag. If not, then return 412.
     String ifMatch = request.getHeader("If-Match");
     if (ifMatch != null && !HttpUtils.matches(ifMatch, fileName)) {
+      evaluated(event, HttpServletResponse.SC_PRECONDITION_FAILED);
       response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
       return;
     }
@@ -115,6 +207,7 @@ public class MultipartFileSender {
     // If-Unmodified-Since header should be greater than LastModified. If not, then return 412.
     long ifUnmodifiedSince = request.getDateHeader("If-Unmodified-Since");
     if (ifUnmodifiedSince != -1 && ifUnmodifiedSince + 1000 <= lastModified) {
+      evaluated(event, HttpServletResponse.SC_PRECONDITION_FAILED);
       response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
       return;
     }
@@ -132,6 +225,7 @@ public class MultipartFileSender {
       // Range header should match format "bytes=n-n,n-n,n-n...". If not, then return 416.
       if (!range.matches("^bytes=\\d*-\\d*(,\\d*-\\d*)*$")) {
         response.setHeader("Content-Range", "bytes */" + length); // Required in 416.
+        evaluated(event, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
         response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
         return;
       }
@@ -166,6 +260,7 @@ public class MultipartFileSender {
           // Check if Range is syntactically valid. If not, then return 416.
           if (start > end) {
             response.setHeader("Content-Range", "bytes */" + length); // Required in 416.
+            evaluated(event, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
             response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
             return;
           }
@@ -204,11 +299,15 @@ public class MultipartFileSender {
     response.setDateHeader("Last-Modified", lastModified);
     response.setDateHeader("Expires", System.currentTimeMillis() + DEFAULT_EXPIRE_TIME);
 
+    event.ranges = ranges.size();
+    evaluated(event, ranges.isEmpty() || ranges.get(0) == full ? HttpServletResponse.SC_OK : HttpServletResponse.SC_PARTIAL_CONTENT);
+
     // Send requested file (part(s)) to client ------------------------------------------------
 
     // Prepare streams.
-    try (InputStream input = new BufferedInputStream(Files.newInputStream(filepath));
+    try (InputStream input = open(ranges, full, length, lastModifiedObj.toMillis());
          OutputStream output = response.getOutputStream()) {
+      unlock();
 
       if (ranges.isEmpty() || ranges.get(0) == full) {
 
@@ -217,7 +316,7 @@ public class MultipartFileSender {
         response.setContentType(contentType);
         response.setHeader("Content-Range", "bytes " + full.start + "-" + full.end + "/" + full.total);
         response.setHeader("Content-Length", String.valueOf(full.length));
-        Range.copy(input, output, length, full.start, full.length);
+        copy(input, output, length, full);
 
       } else if (ranges.size() == 1) {
 
@@ -230,7 +329,7 @@ public class MultipartFileSender {
         response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
 
         // Copy single part range.
-        Range.copy(input, output, length, r.start, r.length);
+        copy(input, output, length, r);
 
       } else {
 
@@ -251,7 +350,7 @@ public class MultipartFileSender {
           sos.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
 
           // Copy single part range of multi part range.
-          Range.copy(input, output, length, r.start, r.length);
+          copy(input, output, length, r);
         }
 
         // End with multipart boundary.
@@ -262,6 +361,54 @@ public class MultipartFileSender {
 
   }
 
+  /**
+   * Opens the data or file. Single ranges of a file are read with read-ahead,
+   * as players fetch media as a sequence of ranges, other downloads of a file
+   * share the reads of concurrent downloads. Reads of a file wait for the
+   * scheduler in the class of the number of bytes sent. The file is opened
+   * before the stream is returned.
+   */
+  private InputStream open(List<Range> ranges, Range full, long length, long lastModified) throws IOException {
+    if (data != null) {
+      return new ByteArrayInputStream(data);
+    }
+    InputStream input;
+    long bytes = 0;
+    if (ranges.size() == 1 && ranges.get(0) != full) {
+      input = ReadAhead.open(filepath, length, lastModified, ranges.get(0).end + 1);
+      bytes = ranges.get(0).length;
+    } else {
+      input = SharedFileRead.open(filepath, length, lastModified);
+      for (Range range : ranges.isEmpty() ? Collections.singletonList(full) : ranges) {
+        bytes += range.length;
+      }
+    }
+    return scheduler != null ? scheduler.wrap(input, scheduler.classify(bytes)) : input;
+  }
+
+  private void evaluated(HeaderEvaluationEvent event, int status) {
+    event.uuid = id;
+    event.status = status;
+    event.commit();
+  }
+
+  private void notModified(String header) {
+    NotModifiedEvent event = new NotModifiedEvent();
+    event.uuid = id;
+    event.header = header;
+    event.commit();
+  }
+
+  private void copy(InputStream input, OutputStream output, long length, Range range) throws IOException {
+    RangeCopyEvent event = new RangeCopyEvent();
+    event.begin();
+    Range.copy(input, output, length, range.start, range.length);
+    event.uuid = id;
+    event.start = range.start;
+    event.bytes = range.length;
+    event.commit();
+  }
+
   private static class Range {
     long start;
     long end;
@@ -0,0 +1,481 @@
+package archive.dao;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Storage of small documents in large append-only segment files.
+ * <p>
+ * A document is appended to the active segment as one record with its uuid, its
+ * meta data and its file data. A delete appends a tombstone record. The location
+ * of each live record is kept in memory and rebuilt by reading the segments in
+ * order when the store is opened. Documents are read with positional reads, so
+ * reads never block each other or appends.
+ * <p>
+ * Deleted records leave garbage in their segment. The compactor copies the live
+ * records of segments with little live data to the active segment and deletes
+ * the old segment file. A tombstone is copied along as long as an older segment
+ * exists, since an earlier record of the document, e.g. of a previous version,
+ * may still be there and would come back when the store is opened.
+ * <p>
+ * Appended documents are not forced to disk, like the files of documents in
+ * folders, so the last documents may be lost in a crash of the machine. Deletes
+ * are forced, so a deleted document does not come back, and so are the records
+ * copied by the compactor before the old segment file is deleted.
+ * <p>
+ * Record layout: magic (4), type (1), uuid length (2), meta data length (4),
+ * data length (4), uuid, meta data, data, CRC32 of everything after the magic (4).
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class PackStore {
+
+  private static final Logger LOG = Logger.getLogger(PackStore.class);
+
+  public static final String PACKS_DIRECTORY = ".packs";
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".pack";
+
+  private static final int MAGIC = 0x41524350; // ARCP
+  private static final byte TYPE_DOCUMENT = 1;
+  private static final byte TYPE_TOMBSTONE = 2;
+  private static final int HEADER_SIZE = 15;
+  private static final int CRC_SIZE = 4;
+
+  /**
+   * Receives the records of a pack store when it is opened.
+   */
+  public interface RecordHandler {
+    void document(String uuid, byte[] metadata, long dataLength);
+
+    void deleted(String uuid);
+  }
+
+  private final Path directory;
+  private final long maxSegmentSize;
+  private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+  private final Object appendLock = new Object();
+  private Segment active;
+
+  /**
+   * @param directory      The directory of the segment files
+   * @param maxSegmentSize The size after which a new segment is started
+   */
+  public PackStore(Path directory, long maxSegmentSize) {
+    this.directory = directory;
+    this.maxSegmentSize = maxSegmentSize;
+  }
+
+  /**
+   * Opens the store and reads all records in order. The handler receives every
+   * document and every delete in the order they were written. A torn record at
+   * the end of the last segment, e.g. after a crash, is truncated.
+   *
+   * @param handler Receives the records
+   */
+  public void open(RecordHandler handler) throws IOException {
+    Files.createDirectories(directory);
+    File[] files = directory.toFile().listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    List<Integer> ids = new ArrayList<>();
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+    }
+    Collections.sort(ids);
+    for (int i = 0; i < ids.size(); i++) {
+      Segment segment = openSegment(ids.get(i));
+      segments.put(segment.id, segment);
+      scan(segment, handler, i == ids.size() - 1);
+    }
+    synchronized (appendLock) {
+      active = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+    }
+    LOG.info("Opened " + segments.size() + " pack segments with " + entries.size() + " documents in " + directory);
+  }
+
+  /**
+   * Closes all segment files.
+   */
+  public void close() {
+    segmentsLock.writeLock().lock();
+    try {
+      for (Segment segment : segments.values()) {
+        closeQuietly(segment);
+      }
+      segments.clear();
+      entries.clear();
+    } finally {
+      segmentsLock.writeLock().unlock();
+    }
+  }
+
+  public boolean contains(String uuid) {
+    return entries.containsKey(uuid);
+  }
+
+  /**
+   * Appends a document to the active segment.
+   *
+   * @param uuid     The uuid of the document
+   * @param metadata The encoded meta data of the document
+   * @param data     The file data of the document
+   */
+  public void append(String uuid, byte[] metadata, byte[] data) throws IOException {
+    synchronized (appendLock) {
+      Entry previous = entries.get(uuid);
+      Entry entry = write(TYPE_DOCUMENT, uuid, metadata, data);
+      entries.put(uuid, entry);
+      if (previous != null) {
+        release(previous);
+      }
+    }
+  }
+
+  /**
+   * Opens a stream of the file data of a document, which reads from the segment in
+   * positional reads of the size the caller asks for. A record which the compactor
+   * moves while it is read is followed to its new segment. The caller holds the lock
+   * of the document, so it is not replaced or deleted meanwhile.
+   * Returns null if the document is not in the store.
+   *
+   * @param uuid The uuid of the document
+   * @return The stream
+   */
+  public InputStream newInputStream(String uuid) {
+    Entry entry = entries.get(uuid);
+    return entry == null ? null : new RecordStream(uuid, entry.dataLength);
+  }
+
+  /**
+   * Returns the length of the file data of a document, -1 if the document is not in the store.
+   */
+  public long length(String uuid) {
+    Entry entry = entries.get(uuid);
+    return entry == null ? -1 : entry.dataLength;
+  }
+
+  /**
+   * Deletes a document by appending a tombstone record.
+   *
+   * @param uuid The uuid of the document
+   * @return false if the document is not in the store
+   */
+  public boolean delete(String uuid) throws IOException {
+    synchronized (appendLock) {
+      Entry entry = entries.remove(uuid);
+      if (entry == null) {
+        return false;
+      }
+      Entry tombstone = write(TYPE_TOMBSTONE, uuid, ByteBuffer.allocate(4).putInt(entry.segment).array(), new byte[0]);
+      segments.get(tombstone.segment).tombstones.put(uuid, entry.segment);
+      active.channel.force(false);
+      release(entry);
+      return true;
+    }
+  }
+
+  /**
+   * Compacts segments whose share of live data is below the given ratio.
+   * The live records are copied to the active segment and the old segment file is deleted.
+   *
+   * @param minLiveRatio Segments with less live data are compacted, e.g. 0.5
+   * @return The number of compacted segments
+   */
+  public int compact(double minLiveRatio) throws IOException {
+    int compacted = 0;
+    for (Segment segment : new ArrayList<>(segments.values())) {
+      if (segment == active || segment.size == 0 || (double) segment.liveBytes / segment.size >= minLiveRatio) {
+        continue;
+      }
+      LOG.info("Compacting pack segment " + segment.path + ", live bytes: " + segment.liveBytes + " of " + segment.size);
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        if (e.getValue().segment == segment.id) {
+          moveRecord(e.getKey(), e.getValue());
+        }
+      }
+      for (Map.Entry<String, Integer> tombstone : new ArrayList<>(segment.tombstones.entrySet())) {
+        moveTombstone(tombstone.getKey(), tombstone.getValue(), segment.id);
+      }
+      for (Segment newer : segments.tailMap(segment.id, false).values()) {
+        newer.channel.force(false);
+      }
+      segmentsLock.writeLock().lock();
+      try {
+        segments.remove(segment.id);
+        closeQuietly(segment);
+        Files.deleteIfExists(segment.path);
+      } finally {
+        segmentsLock.writeLock().unlock();
+      }
+      compacted++;
+    }
+    return compacted;
+  }
+
+  private void moveRecord(String uuid, Entry entry) throws IOException {
+    synchronized (appendLock) {
+      if (entries.get(uuid) != entry) {
+        return;
+      }
+      Segment segment = segments.get(entry.segment);
+      ByteBuffer record = ByteBuffer.allocate(entry.recordLength);
+      while (record.hasRemaining()) {
+        if (segment.channel.read(record, entry.offset + record.position()) < 0) {
+          throw new IOException("Unexpected end of segment " + segment.path);
+        }
+      }
+      ((Buffer) record).flip();
+      long offset = reserve(entry.recordLength);
+      writeFully(active, record, offset);
+      Entry moved = new Entry(active.id, offset, offset + (entry.dataOffset - entry.offset), entry.dataLength, entry.recordLength);
+      active.liveBytes += entry.recordLength;
+      entries.put(uuid, moved);
+      release(entry);
+    }
+  }
+
+  /**
+   * Copies a tombstone out of a segment which is compacted, unless the document was
+   * added again or no older segment is left which could hold a record of it. The
+   * segment of the deleted record is not enough, older versions of the document may
+   * be in other segments.
+   */
+  private void moveTombstone(String uuid, int deletedSegment, int segment) throws IOException {
+    synchronized (appendLock) {
+      if (segments.lowerKey(segment) == null || entries.containsKey(uuid)) {
+        return;
+      }
+      Entry tombstone = write(TYPE_TOMBSTONE, uuid, ByteBuffer.allocate(4).putInt(deletedSegment).array(), new byte[0]);
+      segments.get(tombstone.segment).tombstones.put(uuid, deletedSegment);
+    }
+  }
+
+  private Entry write(byte type, String uuid, byte[] metadata, byte[] data) throws IOException {
+    byte[] uuidBytes = uuid.getBytes(StandardCharsets.UTF_8);
+    int recordLength = HEADER_SIZE + uuidBytes.length + metadata.length + data.length + CRC_SIZE;
+    ByteBuffer record = ByteBuffer.allocate(recordLength);
+    record.putInt(MAGIC).put(type).putShort((short) uuidBytes.length).putInt(metadata.length).putInt(data.length);
+    record.put(uuidBytes).put(metadata).put(data);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, record.position() - 4);
+    record.putInt((int) crc.getValue());
+    ((Buffer) record).flip();
+    long offset = reserve(recordLength);
+    writeFully(active, record, offset);
+    long dataOffset = offset + HEADER_SIZE + uuidBytes.length + metadata.length;
+    if (type == TYPE_DOCUMENT) {
+      active.liveBytes += recordLength;
+    }
+    return new Entry(active.id, offset, dataOffset, data.length, recordLength);
+  }
+
+  /**
+   * Reserves space for a record at the end of the active segment, starting a new segment if it is full.
+   */
+  private long reserve(int recordLength) throws IOException {
+    if (active.size > 0 && active.size + recordLength > maxSegmentSize) {
+      active = createSegment(active.id + 1);
+    }
+    long offset = active.size;
+    active.size += recordLength;
+    return offset;
+  }
+
+  private void release(Entry entry) {
+    Segment segment = segments.get(entry.segment);
+    if (segment != null) {
+      segment.liveBytes -= entry.recordLength;
+    }
+  }
+
+  private void scan(Segment segment, RecordHandler handler, boolean last) throws IOException {
+    long size = segment.channel.size();
+    long offset = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (offset < size) {
+      ((Buffer) header).clear();
+      if (!readFully(segment.channel, header, offset)) {
+        break;
+      }
+      ((Buffer) header).flip();
+      int magic = header.getInt();
+      byte type = header.get();
+      int uuidLength = header.getShort();
+      int metadataLength = header.getInt();
+      int dataLength = header.getInt();
+      long recordLength = (long) HEADER_SIZE + uuidLength + metadataLength + dataLength + CRC_SIZE;
+      if (magic != MAGIC || uuidLength <= 0 || metadataLength < 0 || dataLength < 0 || offset + recordLength > size) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate((int) recordLength - HEADER_SIZE);
+      if (!readFully(segment.channel, body, offset + HEADER_SIZE)) {
+        break;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(header.array(), 4, HEADER_SIZE - 4);
+      crc.update(body.array(), 0, body.capacity() - CRC_SIZE);
+      ((Buffer) body).position(body.capacity() - CRC_SIZE);
+      if ((int) crc.getValue() != body.getInt()) {
+        break;
+      }
+      String uuid = new String(body.array(), 0, uuidLength, StandardCharsets.UTF_8);
+      byte[] metadata = Arrays.copyOfRange(body.array(), uuidLength, uuidLength + metadataLength);
+      if (type == TYPE_DOCUMENT) {
+        Entry previous = entries.put(uuid, new Entry(segment.id, offset, offset + HEADER_SIZE + uuidLength + metadataLength, dataLength, (int) recordLength));
+        segment.liveBytes += recordLength;
+        if (previous != null) {
+          release(previous);
+        }
+        handler.document(uuid, metadata, dataLength);
+      } else if (type == TYPE_TOMBSTONE) {
+        Entry previous = entries.remove(uuid);
+        if (previous != null) {
+          release(previous);
+        }
+        segment.tombstones.put(uuid, ByteBuffer.wrap(metadata).getInt());
+        handler.deleted(uuid);
+      }
+      offset += recordLength;
+    }
+    if (offset < size) {
+      if (last) {
+        LOG.warn("Truncating torn record at " + offset + " in pack segment " + segment.path);
+        segment.channel.truncate(offset);
+      } else {
+        LOG.error("Corrupt record at " + offset + " in pack segment " + segment.path + ", ignoring the rest of the segment");
+      }
+    }
+    segment.size = offset;
+  }
+
+  private Segment openSegment(int id) throws IOException {
+    Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    return new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+  }
+
+  private Segment createSegment(int id) throws IOException {
+    Segment segment = openSegment(id);
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeFully(Segment segment, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      segment.channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  private static void closeQuietly(Segment segment) {
+    try {
+      segment.channel.close();
+    } catch (IOException e) {
+      LOG.error("Error while closing pack segment " + segment.path, e);
+    }
+  }
+
+  private static final class Segment {
+    final int id;
+    final Path path;
+    final FileChannel channel;
+    final Map<String, Integer> tombstones = new ConcurrentHashMap<>();
+    long size;
+    long liveBytes;
+
+    Segment(int id, Path path, FileChannel channel) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * A stream of the file data of a record.
+   */
+  private final class RecordStream extends InputStream {
+    private final String uuid;
+    private final int length;
+    private int position;
+
+    private RecordStream(String uuid, int length) {
+      this.uuid = uuid;
+      this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= length) {
+        return -1;
+      }
+      segmentsLock.readLock().lock();
+      try {
+        Entry entry = entries.get(uuid);
+        if (entry == null || entry.dataLength != length) {
+          throw new IOException("Document " + uuid + " changed while it was read");
+        }
+        int n = segments.get(entry.segment).channel.read(ByteBuffer.wrap(b, off, Math.min(len, length - position)),
+          entry.dataOffset + position);
+        if (n < 0) {
+          throw new IOException("Unexpected end of segment " + segments.get(entry.segment).path);
+        }
+        position += n;
+        return n;
+      } finally {
+        segmentsLock.readLock().unlock();
+      }
+    }
+
+    @Override
+    public int available() {
+      return length - position;
+    }
+  }
+
+  private static final class Entry {
+    final int segment;
+    final long offset;
+    final long dataOffset;
+    final int dataLength;
+    final int recordLength;
+
+    Entry(int segment, long offset, long dataOffset, int dataLength, int recordLength) {
+      this.segment = segment;
+      this.offset = offset;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+      this.recordLength = recordLength;
+    }
+  }
+}
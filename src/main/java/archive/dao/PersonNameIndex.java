@@ -0,0 +1,166 @@
+package archive.dao;
+
+import archive.model.NameMatch;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory index of the person names of the documents in an archive.
+ * <p>
+ * Names and the words of names are kept lower case in sorted maps. This way
+ * case-insensitive and prefix lookups are a range query on the map instead of
+ * a scan of all documents. The index is maintained incrementally by the
+ * {@link IDocumentDao} on every insert and delete.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class PersonNameIndex {
+
+  private final NavigableMap<String, Set<String>> names = new TreeMap<>();
+  private final NavigableMap<String, Set<String>> tokens = new TreeMap<>();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * Adds the document with the given uuid to the index.
+   *
+   * @param personName The name of the person, may be null
+   * @param uuid       The uuid of the document
+   */
+  public void add(String personName, String uuid) {
+    if (personName == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      put(names, normalize(personName), uuid);
+      for (String token : tokenize(personName)) {
+        put(tokens, token, uuid);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes the document with the given uuid from the index.
+   *
+   * @param personName The name of the person, may be null
+   * @param uuid       The uuid of the document
+   */
+  public void remove(String personName, String uuid) {
+    if (personName == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      remove(names, normalize(personName), uuid);
+      for (String token : tokenize(personName)) {
+        remove(tokens, token, uuid);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes all documents from the index.
+   */
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      names.clear();
+      tokens.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the uuids of the documents with a person name matching the given name.
+   * For {@link NameMatch#EXACT} the caller still has to compare the case of the
+   * names since the index only stores lower case keys.
+   *
+   * @param personName The name to look up
+   * @param match      The strategy to match names
+   * @return The uuids of the matching documents
+   */
+  public Set<String> lookup(String personName, NameMatch match) {
+    String key = normalize(personName);
+    lock.readLock().lock();
+    try {
+      switch (match) {
+        case PREFIX:
+          return union(prefixMap(names, key));
+        case TOKEN:
+          return lookupTokens(personName);
+        case EXACT:
+        case IGNORE_CASE:
+        default:
+          Set<String> uuids = names.get(key);
+          return uuids == null ? Collections.<String>emptySet() : new HashSet<>(uuids);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private Set<String> lookupTokens(String personName) {
+    Set<String> result = null;
+    for (String token : tokenize(personName)) {
+      Set<String> uuids = union(prefixMap(tokens, token));
+      if (result == null) {
+        result = uuids;
+      } else {
+        result.retainAll(uuids);
+      }
+      if (result.isEmpty()) {
+        break;
+      }
+    }
+    return result == null ? new HashSet<String>() : result;
+  }
+
+  private static SortedMap<String, Set<String>> prefixMap(NavigableMap<String, Set<String>> map, String prefix) {
+    return map.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+  }
+
+  private static Set<String> union(SortedMap<String, Set<String>> map) {
+    Set<String> result = new HashSet<>();
+    for (Set<String> uuids : map.values()) {
+      result.addAll(uuids);
+    }
+    return result;
+  }
+
+  private static void put(Map<String, Set<String>> map, String key, String uuid) {
+    Set<String> uuids = map.get(key);
+    if (uuids == null) {
+      uuids = new HashSet<>(2);
+      map.put(key, uuids);
+    }
+    uuids.add(uuid);
+  }
+
+  private static void remove(Map<String, Set<String>> map, String key, String uuid) {
+    Set<String> uuids = map.get(key);
+    if (uuids != null && uuids.remove(uuid) && uuids.isEmpty()) {
+      map.remove(key);
+    }
+  }
+
+  static String normalize(String name) {
+    return name.trim().toLowerCase(Locale.ROOT);
+  }
+
+  static List<String> tokenize(String name) {
+    List<String> result = new ArrayList<>();
+    for (String token : normalize(name).split("[^\\p{L}\\p{N}]+")) {
+      if (!token.isEmpty()) {
+        result.add(token);
+      }
+    }
+    return result;
+  }
+}
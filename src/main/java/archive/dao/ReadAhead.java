@@ -0,0 +1,329 @@
+package archive.dao;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead for files which are fetched as a sequence of consecutive range
+ * requests, e.g. by video and audio players.
+ * <p>
+ * The file channel of a file stays open between the requests. When a range
+ * starts where the previous range of the file ended, the next window after it
+ * is read in the background, so the following request is copied from memory.
+ * The window doubles with every sequential request up to a maximum and falls
+ * back to the minimum when the access is not sequential. Prefetched windows
+ * share a bounded budget of memory, a window which does not fit is not read.
+ * The channel and window of a file are released when the file was not read
+ * for a while, and when the file is deleted or replaced, so the open channel
+ * does not hold on to the disk space of a file which is gone. The channel is
+ * opened before a stream is returned, so a range which is being read is
+ * finished from the open file even if the file is deleted meanwhile.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ReadAhead {
+
+  private static final Logger LOG = Logger.getLogger(ReadAhead.class);
+  private static final int MIN_WINDOW = 262144; // ..bytes = 256KB.
+  private static final int MAX_WINDOW = 4194304; // ..bytes = 4MB.
+  private static final long POOL_SIZE = 67108864L; // ..bytes = 64MB.
+  private static final long IDLE_TIME = 30000L; // ..ms = 30 seconds.
+  private static final Map<Path, ReadAhead> READS = new ConcurrentHashMap<>();
+  private static final AtomicLong POOLED = new AtomicLong();
+  private static final ExecutorService PREFETCH = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+    new LinkedBlockingQueue<>(64), runnable -> {
+    Thread thread = new Thread(runnable, "read-ahead");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Path path;
+  private final long length;
+  private final long modified;
+  private FileChannel channel;
+  private long expected = -1;
+  private int window = MIN_WINDOW;
+  private byte[] buffer;
+  private long bufferStart;
+  private boolean prefetching;
+  private boolean closed;
+  private boolean released;
+  private int active;
+  private long lastUsed = System.currentTimeMillis();
+
+  private ReadAhead(Path path, long length, long modified) {
+    this.path = path;
+    this.length = length;
+    this.modified = modified;
+  }
+
+  /**
+   * Opens a stream of a range of a file, which is read from the prefetched
+   * window if the range continues the previous one. The position of the stream
+   * starts at 0, skip to the start of the range. The stream ends after the range.
+   *
+   * @param path     The path of the file
+   * @param length   The length of the file
+   * @param modified The last modification time of the file in ms, to detect replaced files
+   * @param end      The position after the range
+   * @return The stream, which must be closed
+   * @throws IOException If the file cannot be opened
+   */
+  public static InputStream open(Path path, long length, long modified, long end) throws IOException {
+    release(false);
+    ReadAhead[] opened = new ReadAhead[1];
+    READS.compute(path, (key, read) -> {
+      if (read == null || read.length != length || read.modified != modified) {
+        if (read != null) {
+          read.close();
+        }
+        read = new ReadAhead(path, length, modified);
+      }
+      read.join();
+      opened[0] = read;
+      return read;
+    });
+    Stream stream = opened[0].new Stream(Math.min(end, length));
+    try {
+      opened[0].channel();
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+    return stream;
+  }
+
+  /**
+   * Closes the channels and drops the windows of the files which were not read
+   * for a while, or of all files.
+   *
+   * @param all True to release all files
+   */
+  public static void release(boolean all) {
+    long idle = System.currentTimeMillis() - IDLE_TIME;
+    for (ReadAhead read : READS.values()) {
+      if (READS.computeIfPresent(read.path, (key, current) -> current == read && read.isIdle(all ? Long.MAX_VALUE : idle) ? null : current) == null) {
+        read.close();
+      }
+    }
+  }
+
+  /**
+   * Releases the channel and window of a file which is deleted or replaced. Ranges
+   * which are being read are finished first.
+   *
+   * @param path The path of the file
+   */
+  public static void release(Path path) {
+    ReadAhead read = READS.remove(path);
+    if (read != null) {
+      read.release();
+    }
+  }
+
+  private synchronized void release() {
+    released = true;
+    if (active == 0) {
+      close();
+    }
+  }
+
+  private synchronized void join() {
+    active++;
+    lastUsed = System.currentTimeMillis();
+  }
+
+  private synchronized boolean isIdle(long before) {
+    return active == 0 && lastUsed < before;
+  }
+
+  /**
+   * Copies the data at a position from the window if it is there.
+   *
+   * @return The number of bytes copied, 0 if the position is not in the window
+   */
+  private synchronized int copy(long position, byte[] b, int off, int len) {
+    if (buffer == null || position < bufferStart || position >= bufferStart + buffer.length) {
+      return 0;
+    }
+    int offset = (int) (position - bufferStart);
+    int n = Math.min(len, buffer.length - offset);
+    System.arraycopy(buffer, offset, b, off, n);
+    return n;
+  }
+
+  private synchronized FileChannel channel() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+    if (channel == null) {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+    return channel;
+  }
+
+  /**
+   * Records a range which was read and prefetches the next window if the range
+   * continued the previous one.
+   */
+  private void finished(long start, long end) {
+    final long from;
+    final int size;
+    synchronized (this) {
+      active--;
+      lastUsed = System.currentTimeMillis();
+      if (released && active == 0) {
+        close();
+        return;
+      }
+      boolean sequential = start == expected;
+      window = sequential ? Math.min(MAX_WINDOW, window * 2) : MIN_WINDOW;
+      expected = end;
+      if (!sequential || end >= length || prefetching || closed
+        || buffer != null && end >= bufferStart && end + window <= bufferStart + buffer.length) {
+        return;
+      }
+      from = end;
+      size = (int) Math.min(window, length - end);
+      prefetching = true;
+    }
+    if (POOLED.addAndGet(size) > POOL_SIZE) {
+      POOLED.addAndGet(-size);
+      done(null, 0);
+      return;
+    }
+    try {
+      PREFETCH.execute(() -> prefetch(from, size));
+    } catch (RejectedExecutionException e) {
+      POOLED.addAndGet(-size);
+      done(null, 0);
+    }
+  }
+
+  private void prefetch(long from, int size) {
+    byte[] data = new byte[size];
+    try {
+      ByteBuffer target = ByteBuffer.wrap(data);
+      while (target.hasRemaining()) {
+        if (channel().read(target, from + target.position()) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("Read-ahead of " + path + " failed", e);
+      POOLED.addAndGet(-size);
+      done(null, 0);
+      return;
+    }
+    done(data, from);
+  }
+
+  private synchronized void done(byte[] data, long from) {
+    prefetching = false;
+    if (data == null) {
+      return;
+    }
+    if (closed) {
+      POOLED.addAndGet(-data.length);
+      return;
+    }
+    if (buffer != null) {
+      POOLED.addAndGet(-buffer.length);
+    }
+    buffer = data;
+    bufferStart = from;
+  }
+
+  private synchronized void close() {
+    closed = true;
+    if (buffer != null) {
+      POOLED.addAndGet(-buffer.length);
+      buffer = null;
+    }
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.debug("Error while closing " + path, e);
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * The stream of one range request.
+   */
+  private class Stream extends InputStream {
+    private final long end;
+    private long position;
+    private long start = -1;
+    private boolean done;
+
+    private Stream(long end) {
+      this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (start < 0) {
+        start = position;
+      }
+      len = (int) Math.min(len, end - position);
+      int n = copy(position, b, off, len);
+      if (n == 0) {
+        n = channel().read(ByteBuffer.wrap(b, off, len), position);
+      }
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public void close() {
+      if (!done) {
+        finished(start < 0 ? position : start, position);
+      }
+      done = true;
+    }
+  }
+}
@@ -0,0 +1,268 @@
+package archive.dao;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One read of a file shared by the streams of concurrent downloads of it.
+ * <p>
+ * The file is read in chunks by whichever stream first needs a chunk, the
+ * other streams copy it from memory. A chunk is dropped when every stream has
+ * passed it, so a single download holds one chunk. If a stream falls more than
+ * the window behind the fastest one its chunks are dropped anyway and it
+ * detaches: it continues with reads of its own from its position, so a slow
+ * client neither holds memory nor slows the others down.
+ * <p>
+ * The file is opened before a stream is returned and closed when the last
+ * stream, attached or detached, is closed, so the downloads which started
+ * finish from the open file even if the file is deleted meanwhile.
+ * <p>
+ * A download joins the shared read of its file while the first chunk is still
+ * held, i.e. while the other downloads have just started, and the file has the
+ * same length and modification time, else it starts a new shared read. When a
+ * file is deleted or replaced its shared read is released, so new downloads do
+ * not join the open file which is gone.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class SharedFileRead {
+
+  private static final int CHUNK_SIZE = 65536; // ..bytes = 64KB.
+  private static final int WINDOW = 32; // ..chunks = 2MB.
+  private static final Map<Path, SharedFileRead> READS = new ConcurrentHashMap<>();
+
+  private final Path path;
+  private final long length;
+  private final long modified;
+  private final Map<Long, byte[]> chunks = new HashMap<>();
+  private final List<Stream> streams = new ArrayList<>();
+  private FileChannel channel;
+  private int users;
+  private long first;
+  private long next;
+
+  private SharedFileRead(Path path, long length, long modified) {
+    this.path = path;
+    this.length = length;
+    this.modified = modified;
+  }
+
+  /**
+   * Opens a stream of a file which shares its disk reads with the concurrent
+   * streams of the same file.
+   *
+   * @param path   The path of the file
+   * @param length   The length of the file
+   * @param modified The last modification time of the file in ms, to detect replaced files
+   * @return The stream, which must be closed
+   * @throws IOException If the file cannot be opened
+   */
+  public static InputStream open(Path path, long length, long modified) throws IOException {
+    Stream[] opened = new Stream[1];
+    SharedFileRead shared = READS.compute(path, (key, read) -> {
+      if (read == null || !read.join(length, modified)) {
+        read = new SharedFileRead(path, length, modified);
+      }
+      opened[0] = read.add();
+      return read;
+    });
+    try {
+      shared.channel();
+    } catch (IOException e) {
+      opened[0].close();
+      throw e;
+    }
+    return opened[0];
+  }
+
+  /**
+   * Releases the shared read of a file which is deleted or replaced, so new streams
+   * start a read of the new file. The streams which are open finish from the open file.
+   *
+   * @param path The path of the file
+   */
+  public static void release(Path path) {
+    READS.remove(path);
+  }
+
+  /**
+   * @return True if a new stream of the given file can start with the chunks held
+   */
+  private synchronized boolean join(long length, long modified) {
+    return this.length == length && this.modified == modified && first == 0 && !streams.isEmpty();
+  }
+
+  private synchronized Stream add() {
+    Stream stream = new Stream();
+    streams.add(stream);
+    users++;
+    return stream;
+  }
+
+  private synchronized FileChannel channel() throws IOException {
+    if (channel == null) {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+    return channel;
+  }
+
+  /**
+   * Returns a chunk, reading the chunks up to it if no stream did yet.
+   * Returns null if the chunk was dropped and the stream must read on its own.
+   */
+  private synchronized byte[] chunk(Stream stream, long index) throws IOException {
+    if (index < first) {
+      return null;
+    }
+    stream.chunk = index;
+    if (index > next && behind(index) == index) {
+      // skipped ahead of all streams, the chunks in between are not needed
+      chunks.clear();
+      first = next = index;
+    }
+    while (next <= index) {
+      chunks.put(next, readChunk(next));
+      next++;
+    }
+    byte[] chunk = chunks.get(index);
+    drop();
+    return chunk;
+  }
+
+  private byte[] readChunk(long index) throws IOException {
+    long position = index * CHUNK_SIZE;
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, length - position));
+    while (buffer.hasRemaining()) {
+      if (channel().read(buffer, position + buffer.position()) < 0) {
+        break;
+      }
+    }
+    ((Buffer) buffer).flip();
+    byte[] chunk = new byte[buffer.remaining()];
+    buffer.get(chunk);
+    return chunk;
+  }
+
+  /**
+   * Drops the chunks all streams have passed and the chunks behind the window.
+   */
+  private void drop() {
+    long needed = Math.max(behind(next), next - WINDOW);
+    while (first < needed) {
+      chunks.remove(first++);
+    }
+  }
+
+  /**
+   * @return The chunk of the stream furthest behind, at most the given one
+   */
+  private long behind(long index) {
+    for (Stream stream : streams) {
+      index = Math.min(index, stream.chunk);
+    }
+    return index;
+  }
+
+  /**
+   * Removes a stream from the shared chunks, it reads from the channel on its own.
+   */
+  private synchronized FileChannel detach(Stream stream) throws IOException {
+    streams.remove(stream);
+    drop();
+    return channel();
+  }
+
+  private void leave(Stream stream) throws IOException {
+    synchronized (this) {
+      streams.remove(stream);
+      if (--users > 0) {
+        drop();
+        return;
+      }
+      chunks.clear();
+      first = next;
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    }
+    READS.remove(path, this);
+  }
+
+  /**
+   * The stream of one download.
+   */
+  private class Stream extends InputStream {
+    private long chunk;
+    private long position;
+    private FileChannel own;
+    private boolean closed;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= length) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (own == null) {
+        byte[] data = chunk(this, position / CHUNK_SIZE);
+        if (data != null) {
+          int offset = (int) (position % CHUNK_SIZE);
+          int n = Math.min(len, data.length - offset);
+          if (n <= 0) {
+            return -1;
+          }
+          System.arraycopy(data, offset, b, off, n);
+          position += n;
+          return n;
+        }
+        own = detach(this);
+      }
+      int n = own.read(ByteBuffer.wrap(b, off, (int) Math.min(len, length - position)), position);
+      if (n > 0) {
+        position += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, length - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, length - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      leave(this);
+    }
+
+  }
+}
@@ -0,0 +1,117 @@
+package archive.dao;
+
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory index of document uuids sorted by a key, e.g. the document date or the file name.
+ * <p>
+ * Entries are kept in a concurrent skip list. Range queries and iteration in
+ * ascending or descending order are lazy, so reading the first K entries of a
+ * range costs O(K + log N).
+ *
+ * @param <K> The type of the key
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class SortedKeyIndex<K extends Comparable<K>> {
+
+  private final NavigableSet<Entry<K>> entries = new ConcurrentSkipListSet<>();
+
+  public void add(K key, String uuid) {
+    entries.add(new Entry<>(key, uuid));
+  }
+
+  public void remove(K key, String uuid) {
+    entries.remove(new Entry<>(key, uuid));
+  }
+
+  public void clear() {
+    entries.clear();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns the uuids with a key in the given range in key order.
+   *
+   * @param from       The lowest key, inclusive, may be null
+   * @param to         The highest key, inclusive, may be null
+   * @param descending Iterate from the highest to the lowest key
+   * @return The uuids in key order
+   */
+  public Iterator<String> uuids(K from, K to, boolean descending) {
+    NavigableSet<Entry<K>> range = entries;
+    if (from != null && to != null) {
+      range = entries.subSet(Entry.lowest(from), true, Entry.highest(to), true);
+    } else if (from != null) {
+      range = entries.tailSet(Entry.lowest(from), true);
+    } else if (to != null) {
+      range = entries.headSet(Entry.highest(to), true);
+    }
+    final Iterator<Entry<K>> iterator = descending ? range.descendingIterator() : range.iterator();
+    return new Iterator<String>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public String next() {
+        return iterator.next().uuid;
+      }
+    };
+  }
+
+  private static final class Entry<K extends Comparable<K>> implements Comparable<Entry<K>> {
+    private final K key;
+    private final String uuid;
+
+    private Entry(K key, String uuid) {
+      this.key = key;
+      this.uuid = uuid;
+    }
+
+    /** Sorts before all entries with the given key. */
+    static <K extends Comparable<K>> Entry<K> lowest(K key) {
+      return new Entry<>(key, null);
+    }
+
+    /** Sorts after all entries with the given key. */
+    static <K extends Comparable<K>> Entry<K> highest(K key) {
+      return new Entry<>(key, String.valueOf(Character.MAX_VALUE));
+    }
+
+    @Override
+    public int compareTo(Entry<K> other) {
+      int result = key.compareTo(other.key);
+      if (result != 0) {
+        return result;
+      }
+      if (uuid == null) {
+        return other.uuid == null ? 0 : -1;
+      }
+      if (other.uuid == null) {
+        return 1;
+      }
+      return uuid.compareTo(other.uuid);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?> other = (Entry<?>) o;
+      return key.equals(other.key) && Objects.equals(uuid, other.uuid);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * key.hashCode() + (uuid == null ? 0 : uuid.hashCode());
+    }
+  }
+}
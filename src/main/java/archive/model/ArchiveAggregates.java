@@ -0,0 +1,42 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Document counts and total bytes of an archive, in total and per person, content type and month.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ArchiveAggregates implements Serializable {
+
+  private static final long serialVersionUID = -6598804410712440356L;
+
+  private FacetCount total;
+  private List<FacetCount> persons;
+  private List<FacetCount> contentTypes;
+  private List<FacetCount> months;
+
+  public ArchiveAggregates(FacetCount total, List<FacetCount> persons, List<FacetCount> contentTypes, List<FacetCount> months) {
+    this.total = total;
+    this.persons = persons;
+    this.contentTypes = contentTypes;
+    this.months = months;
+  }
+
+  public FacetCount getTotal() {
+    return total;
+  }
+
+  public List<FacetCount> getPersons() {
+    return persons;
+  }
+
+  public List<FacetCount> getContentTypes() {
+    return contentTypes;
+  }
+
+  public List<FacetCount> getMonths() {
+    return months;
+  }
+}
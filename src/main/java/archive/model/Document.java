@@ -20,7 +20,7 @@ public class Document extends DocumentMetadata implements Serializable {
 
   public Document(byte[] fileData, String fileName, Date documentDate, String personName, String contentType) {
     super(fileName, documentDate, personName, contentType);
-    this.fileData = fileData;
+    setFileData(fileData);
   }
 
   public Document(Properties properties) {
@@ -29,6 +29,9 @@ public class Document extends DocumentMetadata implements Serializable {
 
   public Document(DocumentMetadata metadata) {
     super(metadata.getUuid(), metadata.getFileName(), metadata.getDocumentDate(), metadata.getPersonName(), metadata.getContentType());
+    this.fileSize = metadata.getFileSize();
+    this.checksum = metadata.getChecksum();
+    this.version = metadata.getVersion();
   }
 
   public byte[] getFileData() {
@@ -37,10 +40,17 @@ public class Document extends DocumentMetadata implements Serializable {
 
   public void setFileData(byte[] fileData) {
     this.fileData = fileData;
+    if (fileData != null) {
+      this.fileSize = fileData.length;
+    }
   }
 
   public DocumentMetadata getMetadata() {
-    return new DocumentMetadata(getUuid(), getFileName(), getDocumentDate(), getPersonName(), getContentType());
+    DocumentMetadata metadata = new DocumentMetadata(getUuid(), getFileName(), getDocumentDate(), getPersonName(), getContentType());
+    metadata.setFileSize(getFileSize());
+    metadata.setChecksum(getChecksum());
+    metadata.setVersion(getVersion());
+    return metadata;
   }
 
 }
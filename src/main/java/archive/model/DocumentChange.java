@@ -0,0 +1,83 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * One entry of the change feed of the archive: a document was inserted, updated
+ * with a new version or deleted.
+ * <p>
+ * Changes are numbered by a sequence which increases by one with every change, so a
+ * client that saw change n asks for the changes after n to catch up.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class DocumentChange implements Serializable {
+
+  private static final long serialVersionUID = -2785193468254750126L;
+
+  public enum Type {
+    INSERT, UPDATE, DELETE
+  }
+
+  private long sequence;
+  private Type type;
+  private String uuid;
+  private Date time;
+  private DocumentMetadata metadata;
+
+  public DocumentChange() {
+    super();
+  }
+
+  public DocumentChange(long sequence, Type type, String uuid, Date time) {
+    this.sequence = sequence;
+    this.type = type;
+    this.uuid = uuid;
+    this.time = time;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public void setType(Type type) {
+    this.type = type;
+  }
+
+  public String getUuid() {
+    return uuid;
+  }
+
+  public void setUuid(String uuid) {
+    this.uuid = uuid;
+  }
+
+  public Date getTime() {
+    return time;
+  }
+
+  public void setTime(Date time) {
+    this.time = time;
+  }
+
+  /**
+   * @return The meta data of an inserted or updated document, null for deletes and for
+   * documents which were deleted in the meantime
+   */
+  public DocumentMetadata getMetadata() {
+    return metadata;
+  }
+
+  public void setMetadata(DocumentMetadata metadata) {
+    this.metadata = metadata;
+  }
+}
@@ -6,8 +6,10 @@ import org.apache.log4j.Logger;
 
 import java.io.Serializable;
 import java.nio.file.Path;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
 import java.util.Properties;
 import java.util.UUID;
@@ -28,7 +30,11 @@ public class DocumentMetadata implements Serializable {
   public static final String PROP_DOCUMENT_DATE = "document-date";
   public static final String DATE_FORMAT_PATTERN = "yyyy-MM-dd";
   public static final String PROP_CONTENT_TYPE = "content-type";
-  public static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(DATE_FORMAT_PATTERN);
+  public static final String PROP_FILE_SIZE = "file-size";
+  public static final String PROP_CHECKSUM = "checksum";
+  public static final String PROP_VERSION = "version";
+  /** Immutable and thread safe, unlike a shared SimpleDateFormat. */
+  public static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern(DATE_FORMAT_PATTERN);
   static final long serialVersionUID = 7283287076019483950L;
   protected String uuid;
   protected String fileName;
@@ -36,6 +42,9 @@ public class DocumentMetadata implements Serializable {
   protected String personName;
   protected Path path;
   protected String contentType;
+  protected long fileSize = -1;
+  protected String checksum;
+  protected int version = 1;
 
 
   public DocumentMetadata(String fileName, Date documentDate, String personName, String contentType) {
@@ -60,11 +69,28 @@ public class DocumentMetadata implements Serializable {
     String dateString = properties.getProperty(PROP_DOCUMENT_DATE);
     if (dateString != null) {
       try {
-        this.documentDate = DATE_FORMAT.parse(dateString);
-      } catch (ParseException e) {
+        this.documentDate = parseDate(dateString);
+      } catch (DateTimeParseException e) {
         LOG.error("Error while parsing date string: " + dateString + ", format is: yyyy-MM-dd" , e);
       }
     }
+    String sizeString = properties.getProperty(PROP_FILE_SIZE);
+    if (sizeString != null) {
+      try {
+        this.fileSize = Long.parseLong(sizeString);
+      } catch (NumberFormatException e) {
+        LOG.error("Error while parsing file size: " + sizeString, e);
+      }
+    }
+    this.checksum = properties.getProperty(PROP_CHECKSUM);
+    String versionString = properties.getProperty(PROP_VERSION);
+    if (versionString != null) {
+      try {
+        this.version = Integer.parseInt(versionString);
+      } catch (NumberFormatException e) {
+        LOG.error("Error while parsing version: " + versionString, e);
+      }
+    }
   }
 
   public String getUuid() {
@@ -107,6 +133,40 @@ public class DocumentMetadata implements Serializable {
 
   public void setContentType(String contentType){this.contentType = contentType; }
 
+  /**
+   * @return The size of the document file in bytes, -1 if unknown
+   */
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  public void setFileSize(long fileSize) {
+    this.fileSize = fileSize;
+  }
+
+  /**
+   * @return The hex encoded SHA-256 hash of the document file, null for documents
+   * archived before checksums were recorded
+   */
+  public String getChecksum() {
+    return checksum;
+  }
+
+  public void setChecksum(String checksum) {
+    this.checksum = checksum;
+  }
+
+  /**
+   * @return The number of this version of the document, starting at 1
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  public void setVersion(int version) {
+    this.version = version;
+  }
+
   public Properties createProperties() {
     Properties props = new Properties();
     props.setProperty(PROP_UUID, getUuid());
@@ -114,7 +174,27 @@ public class DocumentMetadata implements Serializable {
     props.setProperty(PROP_PERSON_NAME, getPersonName());
     props.setProperty(PROP_PERSON_NAME, getPersonName());
     props.setProperty(PROP_CONTENT_TYPE,getContentType());
-    props.setProperty(PROP_DOCUMENT_DATE, DATE_FORMAT.format(getDocumentDate()));
+    if (getDocumentDate() != null) {
+      props.setProperty(PROP_DOCUMENT_DATE, formatDate(getDocumentDate()));
+    }
+    if (getFileSize() >= 0) {
+      props.setProperty(PROP_FILE_SIZE, String.valueOf(getFileSize()));
+    }
+    if (getChecksum() != null) {
+      props.setProperty(PROP_CHECKSUM, getChecksum());
+    }
+    props.setProperty(PROP_VERSION, String.valueOf(getVersion()));
     return props;
   }
+
+  /**
+   * Parses a date in the format yyyy-MM-dd as the start of the day in the default time zone.
+   */
+  public static Date parseDate(String date) {
+    return Date.from(LocalDate.parse(date, DATE_FORMAT).atStartOfDay(ZoneId.systemDefault()).toInstant());
+  }
+
+  public static String formatDate(Date date) {
+    return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().format(DATE_FORMAT);
+  }
 }
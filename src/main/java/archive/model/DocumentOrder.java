@@ -0,0 +1,49 @@
+package archive.model;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Sort orders for the results of a document search.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public enum DocumentOrder {
+  DATE_ASC,
+  DATE_DESC,
+  FILE_NAME_ASC,
+  FILE_NAME_DESC;
+
+  public boolean isDescending() {
+    return this == DATE_DESC || this == FILE_NAME_DESC;
+  }
+
+  public boolean isByDate() {
+    return this == DATE_ASC || this == DATE_DESC;
+  }
+
+  /**
+   * Returns a comparator for this order. Documents with the same key are ordered by uuid.
+   */
+  public Comparator<DocumentMetadata> comparator() {
+    Comparator<DocumentMetadata> comparator = isByDate()
+      ? Comparator.comparing(DocumentOrder::dateKey)
+      : Comparator.comparing(DocumentOrder::fileNameKey);
+    comparator = comparator.thenComparing(DocumentMetadata::getUuid);
+    return isDescending() ? comparator.reversed() : comparator;
+  }
+
+  /**
+   * Returns the sort key of the document date. Documents without date sort first.
+   */
+  public static Long dateKey(DocumentMetadata metadata) {
+    return metadata.getDocumentDate() == null ? Long.MIN_VALUE : metadata.getDocumentDate().getTime();
+  }
+
+  /**
+   * Returns the sort key of the file name, file names are sorted ignoring case.
+   */
+  public static String fileNameKey(DocumentMetadata metadata) {
+    return metadata.getFileName() == null ? "" : metadata.getFileName().toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,151 @@
+package archive.model;
+
+import archive.service.IArchiveService;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Parameters of a document search in an archive managed by {@link IArchiveService}.
+ * All parameters may be null. A null parameter does not restrict the search.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class DocumentQuery implements Serializable {
+
+  private static final long serialVersionUID = -3120648312675923178L;
+
+  private String personName;
+  private NameMatch nameMatch;
+  private Date dateFrom;
+  private Date dateTo;
+  private String contentType;
+  private DocumentOrder order;
+  private Integer limit;
+
+  public DocumentQuery() {
+    super();
+  }
+
+  public DocumentQuery(String personName, NameMatch nameMatch, Date date, String contentType) {
+    this.personName = personName;
+    this.nameMatch = nameMatch;
+    this.dateFrom = date;
+    this.dateTo = date;
+    this.contentType = contentType;
+  }
+
+  public String getPersonName() {
+    return personName;
+  }
+
+  public void setPersonName(String personName) {
+    this.personName = personName;
+  }
+
+  public NameMatch getNameMatch() {
+    return nameMatch;
+  }
+
+  public void setNameMatch(NameMatch nameMatch) {
+    this.nameMatch = nameMatch;
+  }
+
+  /**
+   * @return The first document date to include, inclusive
+   */
+  public Date getDateFrom() {
+    return dateFrom;
+  }
+
+  public void setDateFrom(Date dateFrom) {
+    this.dateFrom = dateFrom;
+  }
+
+  /**
+   * @return The last document date to include, inclusive
+   */
+  public Date getDateTo() {
+    return dateTo;
+  }
+
+  public void setDateTo(Date dateTo) {
+    this.dateTo = dateTo;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public void setContentType(String contentType) {
+    this.contentType = contentType;
+  }
+
+  public DocumentOrder getOrder() {
+    return order;
+  }
+
+  public void setOrder(DocumentOrder order) {
+    this.order = order;
+  }
+
+  /**
+   * @return The maximum number of results, null for all
+   */
+  public Integer getLimit() {
+    return limit;
+  }
+
+  public void setLimit(Integer limit) {
+    this.limit = limit;
+  }
+
+  public boolean hasDateRange() {
+    return dateFrom != null || dateTo != null;
+  }
+
+  /**
+   * Returns a copy of the query with the defaults filled in, so queries which
+   * find the same documents are equal: the name match is EXACT, names matched
+   * ignoring case and the content type are lower case and the limit is not negative.
+   *
+   * @return The normalized query
+   */
+  public DocumentQuery normalize() {
+    DocumentQuery query = new DocumentQuery();
+    query.nameMatch = personName == null ? null : nameMatch == null ? NameMatch.EXACT : nameMatch;
+    query.personName = personName != null && query.nameMatch != NameMatch.EXACT
+      ? personName.toLowerCase(Locale.ROOT) : personName;
+    query.dateFrom = dateFrom;
+    query.dateTo = dateTo;
+    query.contentType = contentType == null ? null : contentType.toLowerCase(Locale.ROOT);
+    query.order = order;
+    query.limit = limit == null ? null : Math.max(0, limit);
+    return query;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DocumentQuery)) {
+      return false;
+    }
+    DocumentQuery other = (DocumentQuery) o;
+    return Objects.equals(personName, other.personName)
+      && nameMatch == other.nameMatch
+      && Objects.equals(dateFrom, other.dateFrom)
+      && Objects.equals(dateTo, other.dateTo)
+      && Objects.equals(contentType, other.contentType)
+      && order == other.order
+      && Objects.equals(limit, other.limit);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(personName, nameMatch, dateFrom, dateTo, contentType, order, limit);
+  }
+}
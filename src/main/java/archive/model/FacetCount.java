@@ -0,0 +1,36 @@
+package archive.model;
+
+import java.io.Serializable;
+
+/**
+ * The number of documents and their total size in bytes for one bucket of a facet,
+ * e.g. for one person, one content type or one month.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class FacetCount implements Serializable {
+
+  private static final long serialVersionUID = 4620317834196087013L;
+
+  private String key;
+  private long count;
+  private long bytes;
+
+  public FacetCount(String key, long count, long bytes) {
+    this.key = key;
+    this.count = count;
+    this.bytes = bytes;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+}
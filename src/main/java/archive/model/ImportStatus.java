@@ -0,0 +1,109 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * State of the last bulk import of a file tree.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ImportStatus implements Serializable {
+
+  private static final long serialVersionUID = -3390215748615404312L;
+
+  private String source;
+  private boolean running;
+  private Date started;
+  private Date finished;
+  private long enumerated;
+  private long skipped;
+  private long imported;
+  private long failed;
+  private long bytes;
+  private double filesPerSecond;
+  private double bytesPerSecond;
+  private String error;
+
+  public ImportStatus(String source, boolean running, Date started, Date finished, long enumerated, long skipped,
+                      long imported, long failed, long bytes, double filesPerSecond, double bytesPerSecond, String error) {
+    this.source = source;
+    this.running = running;
+    this.started = started;
+    this.finished = finished;
+    this.enumerated = enumerated;
+    this.skipped = skipped;
+    this.imported = imported;
+    this.failed = failed;
+    this.bytes = bytes;
+    this.filesPerSecond = filesPerSecond;
+    this.bytesPerSecond = bytesPerSecond;
+    this.error = error;
+  }
+
+  /**
+   * @return The imported directory, null if there was no import since the start of the archive
+   */
+  public String getSource() {
+    return source;
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  public Date getStarted() {
+    return started;
+  }
+
+  public Date getFinished() {
+    return finished;
+  }
+
+  /**
+   * @return The number of files found in the source so far
+   */
+  public long getEnumerated() {
+    return enumerated;
+  }
+
+  /**
+   * @return The number of files which were imported by a previous run according to the checkpoint
+   */
+  public long getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return The number of files imported and indexed
+   */
+  public long getImported() {
+    return imported;
+  }
+
+  public long getFailed() {
+    return failed;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return The average number of files imported per second since the start
+   */
+  public double getFilesPerSecond() {
+    return filesPerSecond;
+  }
+
+  public double getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * @return The reason why the import was aborted, null if it was not
+   */
+  public String getError() {
+    return error;
+  }
+}
@@ -0,0 +1,55 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * A document which failed the verification of the integrity scrubber.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class IntegrityFailure implements Serializable {
+
+  private static final long serialVersionUID = 3357020641908372516L;
+
+  public enum Type {
+    /** The file of the document does not exist. */
+    MISSING,
+    /** The size or checksum of the file differs from the meta data. */
+    CORRUPT
+  }
+
+  private String uuid;
+  private String fileName;
+  private Type type;
+  private String message;
+  private Date detected;
+
+  public IntegrityFailure(String uuid, String fileName, Type type, String message, Date detected) {
+    this.uuid = uuid;
+    this.fileName = fileName;
+    this.type = type;
+    this.message = message;
+    this.detected = detected;
+  }
+
+  public String getUuid() {
+    return uuid;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public Date getDetected() {
+    return detected;
+  }
+}
@@ -0,0 +1,18 @@
+package archive.model;
+
+/**
+ * Strategies for matching the person name of a document in a search.
+ * <p>
+ * EXACT       The person name must be equal to the given name
+ * IGNORE_CASE The person name must be equal to the given name ignoring case
+ * PREFIX      The person name must start with the given name ignoring case
+ * TOKEN       Every word of the given name must start a word of the person name ignoring case
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public enum NameMatch {
+  EXACT,
+  IGNORE_CASE,
+  PREFIX,
+  TOKEN
+}
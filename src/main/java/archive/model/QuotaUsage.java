@@ -0,0 +1,63 @@
+package archive.model;
+
+import java.io.Serializable;
+
+/**
+ * The stored documents and bytes of a person or of the whole archive and their limit.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class QuotaUsage implements Serializable {
+
+  private static final long serialVersionUID = -4402751883260271560L;
+
+  private String key;
+  private long count;
+  private long bytes;
+  private long reservedBytes;
+  private long limit;
+
+  public QuotaUsage(String key, long count, long bytes, long reservedBytes, long limit) {
+    this.key = key;
+    this.count = count;
+    this.bytes = bytes;
+    this.reservedBytes = reservedBytes;
+    this.limit = limit;
+  }
+
+  /**
+   * @return The name of the person, or total for the whole archive
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return The bytes of uploads which are being saved
+   */
+  public long getReservedBytes() {
+    return reservedBytes;
+  }
+
+  /**
+   * @return The maximum bytes, 0 if unlimited
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return The bytes which can still be stored, -1 if unlimited
+   */
+  public long getAvailableBytes() {
+    return limit <= 0 ? -1 : Math.max(0, limit - bytes - reservedBytes);
+  }
+}
@@ -0,0 +1,85 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * State of the replication from this archive to one replica.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ReplicaStatus implements Serializable {
+
+  private static final long serialVersionUID = 6013725281934670519L;
+
+  private String url;
+  private long acknowledged;
+  private long lag;
+  private Date lastContact;
+  private long documents;
+  private long bytes;
+  private long fullSyncs;
+  private String error;
+
+  public ReplicaStatus(String url, long acknowledged, long lag, Date lastContact, long documents, long bytes,
+                       long fullSyncs, String error) {
+    this.url = url;
+    this.acknowledged = acknowledged;
+    this.lag = lag;
+    this.lastContact = lastContact;
+    this.documents = documents;
+    this.bytes = bytes;
+    this.fullSyncs = fullSyncs;
+    this.error = error;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * @return The sequence of the last change the replica applied, -1 if it is not known
+   */
+  public long getAcknowledged() {
+    return acknowledged;
+  }
+
+  /**
+   * @return The number of changes which were not applied by the replica yet
+   */
+  public long getLag() {
+    return lag;
+  }
+
+  /**
+   * @return The time of the last batch the replica accepted
+   */
+  public Date getLastContact() {
+    return lastContact;
+  }
+
+  /**
+   * @return The number of documents shipped to the replica since the start
+   */
+  public long getDocuments() {
+    return documents;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return The number of full synchronizations, which are needed when the replica fell behind the change log
+   */
+  public long getFullSyncs() {
+    return fullSyncs;
+  }
+
+  /**
+   * @return The reason why the last batch failed, null if it did not
+   */
+  public String getError() {
+    return error;
+  }
+}
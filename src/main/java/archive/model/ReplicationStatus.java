@@ -0,0 +1,72 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * State of the replication of an archive: as a replica, the changes received from
+ * the primary, as a primary, the replicas its changes are shipped to.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ReplicationStatus implements Serializable {
+
+  private static final long serialVersionUID = -8121480713165036277L;
+
+  private boolean replica;
+  private String primary;
+  private long sequence;
+  private Date synced;
+  private long staleness;
+  private List<ReplicaStatus> replicas;
+
+  public ReplicationStatus(boolean replica, String primary, long sequence, Date synced, long staleness,
+                           List<ReplicaStatus> replicas) {
+    this.replica = replica;
+    this.primary = primary;
+    this.sequence = sequence;
+    this.synced = synced;
+    this.staleness = staleness;
+    this.replicas = replicas;
+  }
+
+  public boolean isReplica() {
+    return replica;
+  }
+
+  /**
+   * @return The id of the primary the replica follows, null if it has not completed a synchronization
+   */
+  public String getPrimary() {
+    return primary;
+  }
+
+  /**
+   * @return The sequence of the primary the replica applied
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return The last time the replica had applied all changes of the primary, null if never
+   */
+  public Date getSynced() {
+    return synced;
+  }
+
+  /**
+   * @return The age in ms of the data of the replica, -1 if it was never in sync
+   */
+  public long getStaleness() {
+    return staleness;
+  }
+
+  /**
+   * @return The replicas this archive ships its changes to
+   */
+  public List<ReplicaStatus> getReplicas() {
+    return replicas;
+  }
+}
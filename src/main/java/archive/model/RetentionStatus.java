@@ -0,0 +1,54 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * State of the deletion of documents whose retention period is over.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class RetentionStatus implements Serializable {
+
+  private static final long serialVersionUID = 2158805370471429530L;
+
+  private Map<String, Integer> years;
+  private long scheduled;
+  private long due;
+  private long purged;
+
+  public RetentionStatus(Map<String, Integer> years, long scheduled, long due, long purged) {
+    this.years = years;
+    this.scheduled = scheduled;
+    this.due = due;
+    this.purged = purged;
+  }
+
+  /**
+   * @return The retention in years by content type
+   */
+  public Map<String, Integer> getYears() {
+    return years;
+  }
+
+  /**
+   * @return The number of documents which expire in the future
+   */
+  public long getScheduled() {
+    return scheduled;
+  }
+
+  /**
+   * @return The number of expired documents waiting to be deleted
+   */
+  public long getDue() {
+    return due;
+  }
+
+  /**
+   * @return The number of documents deleted since the start of the archive
+   */
+  public long getPurged() {
+    return purged;
+  }
+}
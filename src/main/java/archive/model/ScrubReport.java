@@ -0,0 +1,80 @@
+package archive.model;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * State of the integrity scrubber and the documents which failed verification.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ScrubReport implements Serializable {
+
+  private static final long serialVersionUID = -6125896920473816247L;
+
+  private boolean running;
+  private long passes;
+  private Date lastPassStarted;
+  private Date lastPassCompleted;
+  private long documentsVerified;
+  private long bytesVerified;
+  private long bytesPerSecond;
+  private List<IntegrityFailure> failures;
+
+  public ScrubReport(boolean running, long passes, Date lastPassStarted, Date lastPassCompleted,
+                     long documentsVerified, long bytesVerified, long bytesPerSecond, List<IntegrityFailure> failures) {
+    this.running = running;
+    this.passes = passes;
+    this.lastPassStarted = lastPassStarted;
+    this.lastPassCompleted = lastPassCompleted;
+    this.documentsVerified = documentsVerified;
+    this.bytesVerified = bytesVerified;
+    this.bytesPerSecond = bytesPerSecond;
+    this.failures = failures;
+  }
+
+  /**
+   * @return true while a pass is verifying documents
+   */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * @return The number of completed passes since the start of the archive
+   */
+  public long getPasses() {
+    return passes;
+  }
+
+  public Date getLastPassStarted() {
+    return lastPassStarted;
+  }
+
+  public Date getLastPassCompleted() {
+    return lastPassCompleted;
+  }
+
+  /**
+   * @return The number of documents verified since the start of the archive
+   */
+  public long getDocumentsVerified() {
+    return documentsVerified;
+  }
+
+  public long getBytesVerified() {
+    return bytesVerified;
+  }
+
+  /**
+   * @return The current read rate of the scrubber, lowered while requests are slow
+   */
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  public List<IntegrityFailure> getFailures() {
+    return failures;
+  }
+}
@@ -0,0 +1,185 @@
+package archive.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * State of a resumable upload. The file of the upload is sent in numbered chunks
+ * of chunkSize bytes, possibly in parallel and out of order. Only the last chunk
+ * may be smaller. When all chunks are received the upload is committed as a document.
+ * The uuid of the document is recorded in the session, so a retried commit returns
+ * the same document. Chunks are not written while the upload is committed.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class UploadSession implements Serializable {
+
+  private static final long serialVersionUID = -1484163214592097532L;
+
+  private String id;
+  private String fileName;
+  private Date documentDate;
+  private String personName;
+  private String contentType;
+  private long size;
+  private int chunkSize;
+  private Date created;
+  private String documentUuid;
+  private final BitSet received = new BitSet();
+  private transient int writing;
+  private transient boolean committing;
+
+  public UploadSession(String id, String fileName, Date documentDate, String personName, String contentType, long size, int chunkSize) {
+    this.id = id;
+    this.fileName = fileName;
+    this.documentDate = documentDate;
+    this.personName = personName;
+    this.contentType = contentType;
+    this.size = size;
+    this.chunkSize = chunkSize;
+    this.created = new Date();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  public Date getDocumentDate() {
+    return documentDate;
+  }
+
+  public String getPersonName() {
+    return personName;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public void setCreated(Date created) {
+    this.created = created;
+  }
+
+  /**
+   * @return The uuid of the document the upload is committed as, null if it is not committed yet
+   */
+  public synchronized String getDocumentUuid() {
+    return documentUuid;
+  }
+
+  public synchronized void setDocumentUuid(String documentUuid) {
+    this.documentUuid = documentUuid;
+  }
+
+  /**
+   * Starts the write of a chunk, which must be ended with {@link #endWrite()}.
+   *
+   * @return false if the upload is committed or being committed
+   */
+  public synchronized boolean startWrite() {
+    if (committing || documentUuid != null) {
+      return false;
+    }
+    writing++;
+    return true;
+  }
+
+  public synchronized void endWrite() {
+    writing--;
+  }
+
+  /**
+   * Starts the commit of the upload, which must be ended with {@link #endCommit()}.
+   *
+   * @return false if chunks are being written or the upload is being committed
+   */
+  public synchronized boolean startCommit() {
+    if (committing || writing > 0) {
+      return false;
+    }
+    committing = true;
+    return true;
+  }
+
+  public synchronized void endCommit() {
+    committing = false;
+  }
+
+  public int getChunkCount() {
+    return size == 0 ? 1 : (int) ((size + chunkSize - 1) / chunkSize);
+  }
+
+  /**
+   * @param index The number of a chunk, starting at 0
+   * @return The offset of the chunk in the file
+   */
+  public long getChunkOffset(int index) {
+    return (long) index * chunkSize;
+  }
+
+  /**
+   * @param index The number of a chunk, starting at 0
+   * @return The expected length of the chunk
+   */
+  public int getChunkLength(int index) {
+    return (int) Math.min(chunkSize, size - getChunkOffset(index));
+  }
+
+  public synchronized boolean isReceived(int index) {
+    return received.get(index);
+  }
+
+  public synchronized void setReceived(int index) {
+    received.set(index);
+  }
+
+  public synchronized void setMissing(int index) {
+    received.clear(index);
+  }
+
+  @JsonIgnore
+  public synchronized byte[] getReceivedBits() {
+    return received.toByteArray();
+  }
+
+  public synchronized void setReceivedBits(byte[] bits) {
+    received.clear();
+    received.or(BitSet.valueOf(bits));
+  }
+
+  public synchronized boolean isComplete() {
+    return received.nextClearBit(0) >= getChunkCount();
+  }
+
+  /**
+   * @return The numbers of the chunks which are not received yet
+   */
+  public synchronized List<Integer> getMissingChunks() {
+    List<Integer> missing = new ArrayList<>();
+    for (int i = received.nextClearBit(0); i < getChunkCount(); i = received.nextClearBit(i + 1)) {
+      missing.add(i);
+    }
+    return missing;
+  }
+}
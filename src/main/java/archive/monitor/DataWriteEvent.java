@@ -0,0 +1,34 @@
+package archive.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of the writing of the file and meta data of a document.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Name("archive.DataWrite")
+@Label("Data Write")
+@Category({"Archive", "Documents"})
+@Description("Writes the file and meta data of a document")
+public class DataWriteEvent extends Event {
+
+  @Label("Document")
+  public String uuid;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+
+  @Label("Packed")
+  @Description("The document is appended to a pack segment")
+  public boolean packed;
+
+  @Label("Version")
+  public int version;
+}
@@ -0,0 +1,31 @@
+package archive.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of the deletion of a document.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Name("archive.DocumentDelete")
+@Label("Document Delete")
+@Category({"Archive", "Documents"})
+@Description("Deletes the files of a document and its versions")
+public class DocumentDeleteEvent extends Event {
+
+  @Label("Document")
+  public String uuid;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+
+  @Label("Packed")
+  @Description("The document was stored in a pack segment")
+  public boolean packed;
+}
@@ -0,0 +1,25 @@
+package archive.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of the listing of the document folders of a volume.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Name("archive.DocumentList")
+@Label("Document List")
+@Category({"Archive", "Documents"})
+@Description("Lists the document folders of an archive directory")
+public class DocumentListEvent extends Event {
+
+  @Label("Directory")
+  public String directory;
+
+  @Label("Documents")
+  public int count;
+}
@@ -0,0 +1,38 @@
+package archive.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of the evaluation of the request headers of a download,
+ * from the file attributes and content type to the parsed ranges.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Name("archive.HeaderEvaluation")
+@Label("Header Evaluation")
+@Category({"Archive", "Downloads"})
+@Description("Evaluates the conditional and range headers of a download")
+public class HeaderEvaluationEvent extends Event {
+
+  @Label("Document")
+  public String uuid;
+
+  @Label("File Name")
+  public String fileName;
+
+  @Label("Length")
+  @DataAmount
+  public long length;
+
+  @Label("Ranges")
+  public int ranges;
+
+  @Label("Status")
+  @Description("The status of the response if the download ends with the evaluation")
+  public int status;
+}
@@ -0,0 +1,31 @@
+package archive.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of the reading and decoding of the meta data file of a document.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Name("archive.MetadataRead")
+@Label("Metadata Read")
+@Category({"Archive", "Documents"})
+@Description("Reads the meta data file of a document folder")
+public class MetadataReadEvent extends Event {
+
+  @Label("Document")
+  public String uuid;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+
+  @Label("Legacy")
+  @Description("The meta data is a properties file")
+  public boolean legacy;
+}
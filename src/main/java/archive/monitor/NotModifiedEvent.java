@@ -0,0 +1,26 @@
+package archive.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of a download answered with 304 Not Modified.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Name("archive.NotModified")
+@Label("Not Modified")
+@Category({"Archive", "Downloads"})
+@Description("A download is answered with 304 from the conditional headers")
+public class NotModifiedEvent extends Event {
+
+  @Label("Document")
+  public String uuid;
+
+  @Label("Header")
+  @Description("The header which matched, If-None-Match or If-Modified-Since")
+  public String header;
+}
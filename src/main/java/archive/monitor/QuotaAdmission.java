@@ -0,0 +1,103 @@
+package archive.monitor;
+
+import archive.dao.IDocumentDao;
+import archive.model.DocumentMetadata;
+import archive.service.QuotaExceededException;
+import archive.service.QuotaManager;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rejects uploads which would exceed a quota before their body is read, so no
+ * bytes of them are written to disk. It runs before the admission of uploads, so
+ * such uploads do not wait in its queue either.
+ * <p>
+ * The size of an upload is taken from its Content-Length, which includes the
+ * multipart framing and so slightly overestimates the file. The person is taken
+ * from the query string, which can be read without parsing the body; the new
+ * version of a document is charged to the person of the document unless another
+ * is given. If the person is not in the query string only the quota of the archive
+ * is checked here; the controller checks the quota of the person with the exact
+ * size after the request was parsed.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class QuotaAdmission implements Filter {
+
+  private static final Logger LOG = Logger.getLogger(QuotaAdmission.class);
+
+  @Autowired
+  private QuotaManager quotaManager;
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    String uri = httpRequest.getRequestURI();
+    long length = httpRequest.getContentLengthLong();
+    if (!"POST".equals(httpRequest.getMethod()) || length < 0
+      || !uri.endsWith("/archive/upload") && !uri.matches(".*/archive/document/[^/]+/versions")) {
+      chain.doFilter(request, response);
+      return;
+    }
+    String person = getQueryParameter(httpRequest, "person");
+    if (person == null && uri.endsWith("/versions")) {
+      String[] parts = uri.split("/");
+      DocumentMetadata metadata = documentDao.getMetadata(parts[parts.length - 2]);
+      person = metadata != null ? metadata.getPersonName() : null;
+    }
+    try {
+      quotaManager.check(person, length);
+    } catch (QuotaExceededException e) {
+      LOG.info("Upload rejected before reading it. " + e.getMessage());
+      ((HttpServletResponse) response).sendError(HttpStatus.INSUFFICIENT_STORAGE.value(), e.getMessage());
+      return;
+    }
+    chain.doFilter(request, response);
+  }
+
+  @Override
+  public void destroy() {
+
+  }
+
+  /**
+   * Reads a parameter from the query string only. ServletRequest.getParameter would
+   * parse the body of a multipart request.
+   */
+  private static String getQueryParameter(HttpServletRequest request, String name) throws UnsupportedEncodingException {
+    String query = request.getQueryString();
+    if (query == null) {
+      return null;
+    }
+    for (String pair : query.split("&")) {
+      int equals = pair.indexOf('=');
+      String key = equals < 0 ? pair : pair.substring(0, equals);
+      if (name.equals(URLDecoder.decode(key, StandardCharsets.UTF_8.name()))) {
+        return equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8.name());
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,30 @@
+package archive.monitor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of the copying of one range of a download to the client.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Name("archive.RangeCopy")
+@Label("Range Copy")
+@Category({"Archive", "Downloads"})
+@Description("Copies a byte range of a document to the response")
+public class RangeCopyEvent extends Event {
+
+  @Label("Document")
+  public String uuid;
+
+  @Label("Start")
+  public long start;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+}
@@ -0,0 +1,165 @@
+package archive.monitor;
+
+import archive.ArchiveProperties;
+import archive.service.ReplicaReceiver;
+import archive.service.ReplicationSender;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests a read replica serves itself. It runs before the
+ * admission of uploads, so uploads to a replica are not received at all.
+ * <p>
+ * A replica serves searches, downloads, thumbnails and meta data while its data
+ * is not older than the maximum staleness; a client may ask for fresher data
+ * with the X-Max-Staleness header in ms. The age of the data is returned in the
+ * X-Replica-Staleness header. Reads the replica is too stale for and all other
+ * requests, e.g. uploads, deletes and versions, are redirected to the primary
+ * with 307, or rejected with 503 if no primary is configured. Batches from the
+ * primary are accepted only with the configured secret, a replica without a
+ * secret accepts none, since a batch can delete every document of the replica.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@ManagedResource(objectName = "archive:name=ReplicaRouting", description = "Routing of requests to a read replica")
+public class ReplicaRouting implements Filter {
+
+  public static final String MAX_STALENESS_HEADER = "X-Max-Staleness";
+  public static final String STALENESS_HEADER = "X-Replica-Staleness";
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  @Autowired
+  private ReplicaReceiver replicaReceiver;
+
+  private final AtomicLong served = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong redirected = new AtomicLong();
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    HttpServletResponse httpResponse = (HttpServletResponse) response;
+    String uri = httpRequest.getRequestURI();
+    if (!properties.getReplication().isReplica() || !uri.contains("/archive/")) {
+      chain.doFilter(request, response);
+      return;
+    }
+    if (uri.contains("/archive/replication")) {
+      if ("POST".equals(httpRequest.getMethod()) && !isSecret(httpRequest.getHeader(ReplicationSender.SECRET_HEADER))) {
+        httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid replication secret");
+        return;
+      }
+      chain.doFilter(request, response);
+      return;
+    }
+    if (!isRead(httpRequest)) {
+      redirected.incrementAndGet();
+      toPrimary(httpRequest, httpResponse, "This archive is a read replica");
+      return;
+    }
+    long staleness = replicaReceiver.getStaleness();
+    if (staleness > getMaxStaleness(httpRequest)) {
+      stale.incrementAndGet();
+      toPrimary(httpRequest, httpResponse, "The replica is not in sync with the primary");
+      return;
+    }
+    served.incrementAndGet();
+    httpResponse.setHeader(STALENESS_HEADER, staleness == Long.MAX_VALUE ? "-1" : String.valueOf(staleness));
+    chain.doFilter(request, response);
+  }
+
+  @Override
+  public void destroy() {
+
+  }
+
+  @ManagedAttribute(description = "Number of reads served by the replica")
+  public long getServed() {
+    return served.get();
+  }
+
+  @ManagedAttribute(description = "Number of reads sent to the primary because the replica was too stale")
+  public long getStale() {
+    return stale.get();
+  }
+
+  @ManagedAttribute(description = "Number of writes sent to the primary")
+  public long getRedirected() {
+    return redirected.get();
+  }
+
+  /**
+   * @return The staleness in ms the request accepts, Long.MAX_VALUE for any
+   */
+  private long getMaxStaleness(HttpServletRequest request) {
+    long configured = properties.getReplication().getMaxStaleness();
+    long max = configured > 0 ? configured : Long.MAX_VALUE;
+    String header = request.getHeader(MAX_STALENESS_HEADER);
+    if (header != null) {
+      try {
+        max = Math.min(max, Math.max(0, Long.parseLong(header.trim())));
+      } catch (NumberFormatException e) {
+        // the configured bound applies
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Compares the secret of a batch in constant time, so its content cannot be guessed
+   * from the time of the rejection.
+   */
+  private boolean isSecret(String header) {
+    String secret = properties.getReplication().getSecret();
+    if (secret == null || secret.isEmpty() || header == null) {
+      return false;
+    }
+    return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), header.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static boolean isRead(HttpServletRequest request) {
+    String uri = request.getRequestURI();
+    if ("POST".equals(request.getMethod())) {
+      return uri.endsWith("/archive/metadata");
+    }
+    if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+      return false;
+    }
+    return uri.endsWith("/archive/documents") || uri.endsWith("/archive/documents/scan")
+      || uri.matches(".*/archive/document/[^/]+(/thumbnail)?");
+  }
+
+  private void toPrimary(HttpServletRequest request, HttpServletResponse response, String reason) throws IOException {
+    String primary = properties.getReplication().getPrimary();
+    if (primary == null || primary.isEmpty()) {
+      response.setHeader("Retry-After", String.valueOf(Math.max(1, properties.getReplication().getHeartbeat() / 1000)));
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, reason);
+      return;
+    }
+    String query = request.getQueryString();
+    String base = primary.endsWith("/") ? primary.substring(0, primary.length() - 1) : primary;
+    response.setStatus(HttpServletResponse.SC_TEMPORARY_REDIRECT);
+    response.setHeader("Location", base + request.getRequestURI() + (query == null ? "" : "?" + query));
+  }
+}
@@ -0,0 +1,63 @@
+package archive.monitor;
+
+import org.springframework.stereotype.Component;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/**
+ * Measures the latency of the requests to the archive as an exponentially
+ * weighted moving average, so background work can yield to clients.
+ * <p>
+ * Event streams are not measured, they stay open until the client leaves.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Component
+public class RequestLatencyMonitor implements Filter {
+
+  private static final double WEIGHT = 0.1;
+  private static final long IDLE_DECAY = 5000L; // ..ms = 5 seconds.
+
+  private double average;
+  private long lastRequest;
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+    String uri = ((HttpServletRequest) request).getRequestURI();
+    if (uri.endsWith("/stream")) {
+      chain.doFilter(request, response);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      record((System.nanoTime() - start) / 1000000.0);
+    }
+  }
+
+  @Override
+  public void destroy() {
+
+  }
+
+  /**
+   * @return The average latency of the recent requests in ms, decaying to 0 when there are no requests
+   */
+  public synchronized double getAverageLatency() {
+    long idle = System.currentTimeMillis() - lastRequest;
+    return idle > IDLE_DECAY ? average * IDLE_DECAY / idle : average;
+  }
+
+  private synchronized void record(double millis) {
+    average = average + WEIGHT * (millis - average);
+    lastRequest = System.currentTimeMillis();
+  }
+}
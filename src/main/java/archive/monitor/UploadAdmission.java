@@ -0,0 +1,250 @@
+package archive.monitor;
+
+import archive.ArchiveProperties;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Limits the uploads which are received at the same time, before their body is read.
+ * It runs before the other filters because some of them parse multipart requests,
+ * only after {@link ReplicaRouting}, which sends uploads to a replica elsewhere,
+ * and {@link QuotaAdmission}, which rejects uploads over quota without queueing them.
+ * <p>
+ * Every request which writes to the archive is admitted: uploads, chunks,
+ * versions and replicated batches with their body, and the other writes, e.g.
+ * imports and deletes, against the limit of concurrent requests only. Searches,
+ * downloads and the meta data lookup pass unlimited. A request is admitted if the
+ * number of requests in flight is below the current limit and its content length
+ * fits in the byte limit, which is the smaller of the configured maximum and a
+ * share of the free heap. A chunked upload is charged the configured maximum,
+ * since its size is only known after it was read. Else it
+ * waits in a bounded queue, and is rejected with 503 and a Retry-After header if
+ * the queue is full or it waited too long. A single upload is always admitted,
+ * so large files are not starved.
+ * <p>
+ * The limit of concurrent uploads adapts to the disk: it is lowered when the
+ * average time to write a MB of documents exceeds the threshold and raised again
+ * one by one while writes are fast.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+@ManagedResource(objectName = "archive:name=UploadAdmission", description = "Admission control of uploads")
+public class UploadAdmission implements Filter {
+
+  private static final Logger LOG = Logger.getLogger(UploadAdmission.class);
+  private static final double WEIGHT = 0.2;
+  private static final double DECREASE = 0.75;
+  private static final long MB = 1024 * 1024;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  private double limit = -1;
+  private int inFlight;
+  private long inFlightBytes;
+  private int queued;
+  private double writeLatency;
+  private double uploadTime;
+  private long admitted;
+  private long rejected;
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    if (!isWrite(httpRequest)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    long bytes = getCharge(httpRequest);
+    if (!acquire(bytes)) {
+      HttpServletResponse httpResponse = (HttpServletResponse) response;
+      httpResponse.setHeader("Retry-After", String.valueOf(getRetryAfter()));
+      httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many uploads, retry later");
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      release(bytes, (System.nanoTime() - start) / 1000000.0);
+    }
+  }
+
+  @Override
+  public void destroy() {
+
+  }
+
+  /**
+   * Records the time it took to write a document, to adapt the number of
+   * concurrent uploads to the latency of the disks.
+   *
+   * @param bytes The size of the document
+   * @param nanos The duration of the write
+   */
+  public synchronized void written(long bytes, long nanos) {
+    double millisPerMb = nanos / 1000000.0 / Math.max(1.0, (double) bytes / MB);
+    writeLatency = writeLatency + WEIGHT * (millisPerMb - writeLatency);
+    int max = properties.getUploads().getMaxConcurrent();
+    if (writeLatency > properties.getUploads().getWriteLatencyThreshold()) {
+      limit = Math.max(1, getLimit() * DECREASE);
+    } else if (getLimit() < max) {
+      limit = Math.min(max, getLimit() + 1);
+      notifyAll();
+    }
+  }
+
+  @ManagedAttribute(description = "Current limit of concurrent uploads")
+  public synchronized int getConcurrencyLimit() {
+    return (int) getLimit();
+  }
+
+  @ManagedAttribute(description = "Current limit of bytes of concurrent uploads")
+  public long getByteLimit() {
+    Runtime runtime = Runtime.getRuntime();
+    long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    return Math.min(properties.getUploads().getMaxBytes(), (long) (free * properties.getUploads().getHeapFraction()));
+  }
+
+  @ManagedAttribute(description = "Number of uploads being received")
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @ManagedAttribute(description = "Number of bytes of the uploads being received")
+  public synchronized long getInFlightBytes() {
+    return inFlightBytes;
+  }
+
+  @ManagedAttribute(description = "Number of uploads waiting to be received")
+  public synchronized int getQueued() {
+    return queued;
+  }
+
+  @ManagedAttribute(description = "Average milliseconds to write a MB of documents")
+  public synchronized double getWriteLatency() {
+    return writeLatency;
+  }
+
+  @ManagedAttribute(description = "Number of admitted uploads")
+  public synchronized long getAdmitted() {
+    return admitted;
+  }
+
+  @ManagedAttribute(description = "Number of uploads rejected with 503")
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  /**
+   * @return The bytes a request is charged: the content length of an upload, the
+   * maximum for a chunked upload, 0 for other writes and requests without a body
+   */
+  private long getCharge(HttpServletRequest request) {
+    if (!isUpload(request)) {
+      return 0;
+    }
+    long length = request.getContentLengthLong();
+    if (length >= 0) {
+      return length;
+    }
+    String encoding = request.getHeader("Transfer-Encoding");
+    return encoding != null && encoding.toLowerCase().contains("chunked") ? properties.getUploads().getMaxBytes() : 0;
+  }
+
+  private static boolean isUpload(HttpServletRequest request) {
+    String uri = request.getRequestURI();
+    String method = request.getMethod();
+    return "POST".equals(method) && (uri.endsWith("/archive/upload") || uri.endsWith("/versions")
+      || uri.endsWith("/archive/replication"))
+      || "PUT".equals(method) && uri.contains("/chunks/");
+  }
+
+  /**
+   * @return True for all requests to the archive except reads, like {@link ReplicaRouting} tells them apart
+   */
+  private static boolean isWrite(HttpServletRequest request) {
+    String uri = request.getRequestURI();
+    String method = request.getMethod();
+    if (!uri.contains("/archive/") || "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method)) {
+      return false;
+    }
+    return !("POST".equals(method) && uri.endsWith("/archive/metadata"));
+  }
+
+  private synchronized boolean acquire(long bytes) {
+    if (!canAdmit(bytes)) {
+      if (queued >= properties.getUploads().getMaxQueued()) {
+        return reject(bytes);
+      }
+      queued++;
+      try {
+        long deadline = System.currentTimeMillis() + properties.getUploads().getQueueTimeout();
+        while (!canAdmit(bytes)) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            return reject(bytes);
+          }
+          wait(wait);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return reject(bytes);
+      } finally {
+        queued--;
+      }
+    }
+    inFlight++;
+    inFlightBytes += bytes;
+    admitted++;
+    return true;
+  }
+
+  private boolean canAdmit(long bytes) {
+    return inFlight == 0 || inFlight < (int) getLimit() && (bytes == 0 || inFlightBytes + bytes <= getByteLimit());
+  }
+
+  private boolean reject(long bytes) {
+    rejected++;
+    LOG.info("Upload of " + bytes + " bytes rejected, " + inFlight + " uploads with " + inFlightBytes + " bytes in flight");
+    return false;
+  }
+
+  private synchronized void release(long bytes, double millis) {
+    inFlight--;
+    inFlightBytes -= bytes;
+    uploadTime = uploadTime + WEIGHT * (millis - uploadTime);
+    notifyAll();
+  }
+
+  /**
+   * @return The seconds after which a rejected upload should be retried, the average duration of an upload
+   */
+  private synchronized long getRetryAfter() {
+    return Math.max(1, (long) Math.ceil(uploadTime / 1000));
+  }
+
+  private double getLimit() {
+    if (limit < 0) {
+      limit = properties.getUploads().getMaxConcurrent();
+    }
+    return limit;
+  }
+}
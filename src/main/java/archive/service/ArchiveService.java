@@ -1,19 +1,48 @@
 package archive.service;
 
 
+import archive.ArchiveProperties;
+import archive.dao.DocumentLocks;
 import archive.dao.IDocumentDao;
+import archive.dao.IUploadSessionDao;
+import archive.dao.IoScheduler;
+import archive.dao.MetadataFilter;
 import archive.dao.MultipartFileSender;
 import archive.model.Document;
+import archive.model.ArchiveAggregates;
+import archive.model.DocumentChange;
 import archive.model.DocumentMetadata;
+import archive.model.DocumentOrder;
+import archive.model.DocumentQuery;
+import archive.model.ImportStatus;
+import archive.model.NameMatch;
+import archive.model.QuotaUsage;
+import archive.model.ReplicationStatus;
+import archive.model.RetentionStatus;
+import archive.model.ScrubReport;
+import archive.model.UploadSession;
+import archive.monitor.UploadAdmission;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 /**
  * A service to save, find and get documents from an archive.
@@ -24,17 +53,207 @@ import java.util.List;
 public class ArchiveService implements IArchiveService, Serializable {
 
   private static final long serialVersionUID = 8119784722798361327L;
+  private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+  private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+  private static final String UPLOAD_TEMP_DIRECTORY = ".multipart";
 
   @Autowired
   private IDocumentDao DocumentDao;
 
+  @Autowired
+  private transient IUploadSessionDao uploadSessionDao;
+
+  @Autowired
+  private transient ThumbnailGenerator thumbnailGenerator;
+
+  @Autowired
+  private transient ChangeFeed changeFeed;
+
+  @Autowired
+  private transient IntegrityScrubber integrityScrubber;
+
+  @Autowired
+  private transient QuotaManager quotaManager;
+
+  @Autowired
+  private transient RetentionManager retentionManager;
+
+  @Autowired
+  private transient UploadAdmission uploadAdmission;
+
+  @Autowired
+  private transient SearchCache searchCache;
+
+  @Autowired
+  private transient BulkImporter bulkImporter;
+
+  @Autowired
+  private transient IoScheduler ioScheduler;
+
+  @Autowired
+  private transient ReplicaReceiver replicaReceiver;
+
+  @Autowired
+  private transient ReplicationSender replicationSender;
+
+  @Autowired
+  private transient ArchiveProperties properties;
+
+  private final transient SingleFlight<String, Document> loads = new SingleFlight<>();
+
   /**
-   * Saves a document in the archive.
+   * Saves a document in the archive. The thumbnail of an image is generated in the background.
+   * Throws a QuotaExceededException if the document exceeds the quota of its person or the archive.
    */
   @Override
   public DocumentMetadata save(Document document) {
-    getDocumentDao().insert(document);
-    return document.getMetadata();
+    long size = document.getFileData().length;
+    quotaManager.reserve(document.getPersonName(), size);
+    try {
+      long start = System.nanoTime();
+      getDocumentDao().insert(document);
+      uploadAdmission.written(size, System.nanoTime() - start);
+    } finally {
+      quotaManager.release(document.getPersonName(), size);
+    }
+    DocumentMetadata metadata = document.getMetadata();
+    thumbnailGenerator.submit(metadata);
+    return metadata;
+  }
+
+  /**
+   * Saves an uploaded document. A file below the pack threshold is saved from memory,
+   * a larger one is moved to a temporary file in the archive directory, a rename if
+   * the upload was written to a temporary file on the same file system, and from
+   * there into the folder of the document.
+   */
+  @Override
+  public DocumentMetadata save(Document document, MultipartFile file) throws IOException {
+    long size = file.getSize();
+    if (size < properties.getPacks().getThreshold()) {
+      document.setFileData(file.getBytes());
+      return save(document);
+    }
+    quotaManager.reserve(document.getPersonName(), size);
+    Path temp = null;
+    try {
+      Path directory = Paths.get(getDocumentDao().getArchiveDirectory(), UPLOAD_TEMP_DIRECTORY);
+      Files.createDirectories(directory);
+      temp = Files.createTempFile(directory, "upload", ".tmp");
+      file.transferTo(temp.toAbsolutePath().toFile());
+      long start = System.nanoTime();
+      getDocumentDao().insert(document, temp);
+      uploadAdmission.written(size, System.nanoTime() - start);
+    } finally {
+      if (temp != null) {
+        Files.deleteIfExists(temp);
+      }
+      quotaManager.release(document.getPersonName(), size);
+    }
+    DocumentMetadata metadata = document.getMetadata();
+    thumbnailGenerator.submit(metadata);
+    return metadata;
+  }
+
+  /**
+   * Starts a resumable upload of a document
+   */
+  @Override
+  public UploadSession createUpload(String fileName, String personName, Date date, String contentType, long size, Integer chunkSize) throws IOException {
+    int chunk = chunkSize == null ? DEFAULT_CHUNK_SIZE : chunkSize;
+    if (chunk <= 0 || chunk > MAX_CHUNK_SIZE) {
+      throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + " bytes");
+    }
+    if (size < 0) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    quotaManager.check(personName, size);
+    UploadSession session = new UploadSession(UUID.randomUUID().toString(), fileName, date, personName, contentType, size, chunk);
+    uploadSessionDao.create(session);
+    return session;
+  }
+
+  /**
+   * Returns the state of a resumable upload
+   */
+  @Override
+  public UploadSession getUpload(String id) throws IOException {
+    return uploadSessionDao.load(id);
+  }
+
+  /**
+   * Writes a chunk of a resumable upload, unless the upload is committed
+   */
+  @Override
+  public UploadSession writeUploadChunk(String id, int index, InputStream data, long checksum) throws IOException {
+    UploadSession session = uploadSessionDao.load(id);
+    if (session != null) {
+      if (!session.startWrite()) {
+        throw new IllegalStateException("Upload is committed: " + id);
+      }
+      try {
+        uploadSessionDao.writeChunk(session, index, data, checksum);
+      } finally {
+        session.endWrite();
+      }
+    }
+    return session;
+  }
+
+  /**
+   * Saves the file of a complete resumable upload as a document. Only one commit of
+   * an upload runs at a time. The uuid of the document is saved in the session before
+   * the file is inserted, so a retried commit returns the document, or inserts the file
+   * with the same uuid if the previous commit failed. The session is kept until it expires.
+   */
+  @Override
+  public DocumentMetadata commitUpload(String id) throws IOException {
+    UploadSession session = uploadSessionDao.load(id);
+    if (session == null) {
+      return null;
+    }
+    if (!session.startCommit()) {
+      throw new IllegalStateException("Upload is being written or committed: " + id);
+    }
+    try {
+      if (session.getDocumentUuid() != null) {
+        DocumentMetadata committed = getDocumentDao().getMetadata(session.getDocumentUuid());
+        if (committed != null || !Files.exists(uploadSessionDao.getFile(session))) {
+          return committed;
+        }
+      }
+      if (!session.isComplete()) {
+        throw new IllegalStateException("Upload is missing chunks: " + session.getMissingChunks());
+      }
+      Document document = new Document(null, session.getFileName(), session.getDocumentDate(), session.getPersonName(), session.getContentType());
+      if (session.getDocumentUuid() == null) {
+        session.setDocumentUuid(document.getUuid());
+        uploadSessionDao.update(session);
+      } else {
+        document.setUuid(session.getDocumentUuid());
+      }
+      quotaManager.reserve(session.getPersonName(), session.getSize());
+      try {
+        long start = System.nanoTime();
+        getDocumentDao().insert(document, uploadSessionDao.getFile(session));
+        uploadAdmission.written(session.getSize(), System.nanoTime() - start);
+      } finally {
+        quotaManager.release(session.getPersonName(), session.getSize());
+      }
+      DocumentMetadata metadata = document.getMetadata();
+      thumbnailGenerator.submit(metadata);
+      return metadata;
+    } finally {
+      session.endCommit();
+    }
+  }
+
+  /**
+   * Cancels a resumable upload
+   */
+  @Override
+  public void abortUpload(String id) throws IOException {
+    uploadSessionDao.delete(id);
   }
 
   /**
@@ -45,6 +264,38 @@ public class ArchiveService implements IArchiveService, Serializable {
     return getDocumentDao().findByPersonNameDateContentType(personName, date, contentType);
   }
 
+  /**
+   * Finds document in the archive matching the person name with the given strategy
+   */
+  @Override
+  public List<DocumentMetadata> findDocuments(String personName, NameMatch match, Date date, String contentType) {
+    return getDocumentDao().findByPersonNameDateContentType(personName, match, date, contentType);
+  }
+
+  /**
+   * Finds document in the archive matching the given query. The results of
+   * recent queries are cached until the next change of the archive.
+   */
+  @Override
+  public List<DocumentMetadata> findDocuments(DocumentQuery query) {
+    DocumentQuery normalized = query.normalize();
+    long sequence = getDocumentDao().getChangeSequence();
+    List<DocumentMetadata> results = searchCache.get(normalized, sequence);
+    if (results == null) {
+      results = searchCache.put(normalized, sequence, getDocumentDao().find(normalized));
+    }
+    return results;
+  }
+
+  /**
+   * Returns the entity tag of the results of a query, from the sequence of the change log
+   */
+  @Override
+  public String getSearchTag(DocumentQuery query) {
+    return "\"" + Long.toHexString(getDocumentDao().getChangeSequence()) + "-"
+      + Integer.toHexString(query.normalize().hashCode()) + "\"";
+  }
+
   /**
    * Returns the document file from the archive
    */
@@ -59,16 +310,138 @@ public class ArchiveService implements IArchiveService, Serializable {
   }
 
   /**
-   * Returns the document from the archive with the given id in multipart download
+   * Returns the meta data of a document
+   */
+  @Override
+  public DocumentMetadata getDocumentMetadata(String id) {
+    return getDocumentDao().getMetadata(id);
+  }
+
+  /**
+   * Returns the meta data of many documents
+   */
+  @Override
+  public Map<String, DocumentMetadata> getDocumentMetadata(Collection<String> ids) {
+    return getDocumentDao().getMetadata(ids);
+  }
+
+  /**
+   * Saves a new version of a document. The thumbnail of an image is generated again.
+   */
+  @Override
+  public DocumentMetadata saveVersion(String id, Document document) throws IOException {
+    document.setUuid(id);
+    long size = document.getFileData().length;
+    quotaManager.reserve(document.getPersonName(), size);
+    try {
+      getDocumentDao().insertVersion(document);
+    } finally {
+      quotaManager.release(document.getPersonName(), size);
+    }
+    DocumentMetadata metadata = document.getMetadata();
+    thumbnailGenerator.submit(metadata);
+    return metadata;
+  }
+
+  /**
+   * Returns the meta data of all versions of a document
+   */
+  @Override
+  public List<DocumentMetadata> getVersions(String id) throws IOException {
+    return getDocumentDao().getVersions(id);
+  }
+
+  /**
+   * Sends a version of a document in multipart download, streaming it if it is stored as a file.
+   * The document is read locked until the file is opened, see {@link #getDocumentMultipart}.
+   */
+  @Override
+  public Object getDocumentVersionMultipart(String id, int version, HttpServletRequest request, HttpServletResponse response) throws Exception {
+    Document document;
+    DocumentLocks.Handle lock = getDocumentDao().lockForRead(id);
+    try {
+      document = getDocumentDao().loadVersion(id, version);
+      if (document != null && document.getPath() != null) {
+        DocumentLocks.Handle sent = lock;
+        lock = null;
+        MultipartFileSender.fromPath(document.getPath()).withFileName(document.getFileName())
+          .withContentType(document.getContentType()).withId(id).withScheduler(ioScheduler).withLock(sent)
+          .with(request).with(response).serveResource();
+        return document;
+      }
+    } finally {
+      if (lock != null) {
+        lock.close();
+      }
+    }
+    if (document != null) {
+      MultipartFileSender.fromData(document.getFileData(), document.getFileName(), document.getContentType(),
+        document.getDocumentDate() == null ? 0L : document.getDocumentDate().getTime())
+        .withId(id).with(request).with(response).serveResource();
+    }
+    return document;
+  }
+
+  /**
+   * Returns the thumbnail of the document. If an image has no thumbnail,
+   * e.g. because the queue was full on upload, its generation is queued again.
+   * Small images from pack segments are their own thumbnail.
+   */
+  @Override
+  public Resource getThumbnail(String id) {
+    Path path = getDocumentDao().getThumbnailPath(id);
+    if (path != null) {
+      return new FileSystemResource(path.toFile());
+    }
+    final Document document = getDocumentDao().loadWithPath(id);
+    if (document == null || !thumbnailGenerator.supports(document.getContentType())) {
+      return null;
+    }
+    if (document.getPath() == null) {
+      return new ByteArrayResource(document.getFileData()) {
+        @Override
+        public String getFilename() {
+          return document.getFileName();
+        }
+      };
+    }
+    thumbnailGenerator.submit(document);
+    return null;
+  }
+
+  /**
+   * Returns the document from the archive with the given id in multipart download.
+   * The document is read locked only until its file is opened or its data is loaded:
+   * an open file is still read to the end when it is deleted or replaced, and a slow
+   * client does not hold up a delete or {@link archive.dao.DocumentLocks#exclusive()}.
+   * Concurrent downloads of the same document share the lookup of the document
+   * and the reads of its file.
    *  @param id       The id of a document
    * @param request
    * @param response
    */
   @Override
   public Object getDocumentMultipart(String id, HttpServletRequest request, HttpServletResponse response) throws Exception {
-    Document document = getDocumentDao().loadWithPath(id);
+    Document document;
+    DocumentLocks.Handle lock = getDocumentDao().lockForRead(id);
+    try {
+      document = loads.execute(id, () -> getDocumentDao().loadWithPath(id));
+      if(document != null && document.getPath() != null) {
+        DocumentLocks.Handle sent = lock;
+        lock = null;
+        MultipartFileSender.fromPath(document.getPath()).withContentType(document.getContentType())
+          .withId(id).withScheduler(ioScheduler).withLock(sent).with(request).with(response).serveResource();
+        return null;
+      }
+    } finally {
+      if (lock != null) {
+        lock.close();
+      }
+    }
     if(document != null)
-      MultipartFileSender.fromPath(document.getPath()).with(request).with(response).serveResource();
+      MultipartFileSender.fromData(document.getFileData(), document.getFileName(), document.getContentType(),
+        document.getDocumentDate() == null ? 0L : document.getDocumentDate().getTime())
+        .withId(id).with(request).with(response).serveResource();
     return null;
   }
 
@@ -93,6 +466,136 @@ public class ArchiveService implements IArchiveService, Serializable {
     getDocumentDao().deleteAll();
   }
 
+  /**
+   * Finds documents matching a filter expression
+   */
+  @Override
+  public List<DocumentMetadata> scanDocuments(String filter, DocumentOrder order, Integer limit) {
+    return getDocumentDao().scan(MetadataFilter.parse(filter), order, limit);
+  }
+
+  /**
+   * Returns the document counts and total bytes of the archive
+   */
+  @Override
+  public ArchiveAggregates getAggregates() {
+    return getDocumentDao().getAggregates();
+  }
+
+  /**
+   * Returns the changes after the given sequence
+   */
+  @Override
+  public List<DocumentChange> getChanges(long since, int limit) {
+    return getDocumentDao().getChanges(since, limit);
+  }
+
+  /**
+   * Subscribes to the changes after the given sequence
+   */
+  @Override
+  public SseEmitter subscribeChanges(Long since) {
+    return changeFeed.subscribe(since);
+  }
+
+  /**
+   * Checks that a document fits in the quota of its person and the archive
+   */
+  @Override
+  public void checkQuota(String personName, long bytes) {
+    quotaManager.check(personName, bytes);
+  }
+
+  /**
+   * Returns the usage and quota of a person or the archive
+   */
+  @Override
+  public QuotaUsage getUsage(String personName) {
+    return quotaManager.getUsage(personName);
+  }
+
+  /**
+   * Converts legacy meta data files to the binary format
+   */
+  @Override
+  public int convertMetadata() {
+    return getDocumentDao().convertMetadata();
+  }
+
+  /**
+   * Returns the status of the retention of documents
+   */
+  @Override
+  public RetentionStatus getRetentionStatus() {
+    return retentionManager.getStatus();
+  }
+
+  /**
+   * Returns the report of the integrity scrubber
+   */
+  @Override
+  public ScrubReport getScrubReport() {
+    return integrityScrubber.getReport();
+  }
+
+  /**
+   * Starts a pass of the integrity scrubber
+   */
+  @Override
+  public void startScrub() {
+    integrityScrubber.start();
+  }
+
+  /**
+   * Starts a bulk import of a directory tree
+   */
+  @Override
+  public void startImport(String source, String personName, boolean link) {
+    bulkImporter.start(source, personName, link);
+  }
+
+  /**
+   * Stops the running bulk import
+   */
+  @Override
+  public void stopImport() {
+    bulkImporter.stop();
+  }
+
+  /**
+   * Returns the state of the last bulk import
+   */
+  @Override
+  public ImportStatus getImportStatus() {
+    return bulkImporter.getStatus();
+  }
+
+  /**
+   * Applies a batch of changes from the primary
+   */
+  @Override
+  public long applyReplication(InputStream batch) throws IOException {
+    return replicaReceiver.apply(batch);
+  }
+
+  /**
+   * Finds the documents which differ from the primary
+   */
+  @Override
+  public List<String> compareReplica(List<String> lines) {
+    return replicaReceiver.compare(lines);
+  }
+
+  /**
+   * Returns the state of the replication
+   */
+  @Override
+  public ReplicationStatus getReplicationStatus() {
+    long staleness = replicaReceiver.getStaleness();
+    return new ReplicationStatus(replicaReceiver.isReplica(), replicaReceiver.getPrimaryId(), replicaReceiver.getSequence(),
+      replicaReceiver.getSynced(), staleness == Long.MAX_VALUE ? -1 : staleness, replicationSender.getReplicas());
+  }
+
 
   public IDocumentDao getDocumentDao() {
     return DocumentDao;
@@ -0,0 +1,487 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.DocumentChecksum;
+import archive.dao.IDocumentDao;
+import archive.dao.IoScheduler;
+import archive.model.Document;
+import archive.model.DocumentMetadata;
+import archive.model.ImportStatus;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Imports the files of a directory tree, e.g. a legacy file share, without going
+ * through the upload API. Only directories below the configured import roots can
+ * be imported, so the files of the server are not exposed through the archive.
+ * <p>
+ * An import is a pipeline of threads connected by bounded queues: one thread walks
+ * the tree, a pool of threads links or copies the files into the archive while
+ * computing their checksums and writes their meta data, and one thread adds the
+ * documents to the index in batches. The person of a document is the given name
+ * or the first directory below the source, the date is the day of the modification
+ * time of the file like the dates of uploads, and the content type is guessed from the file.
+ * <p>
+ * Every indexed batch is appended to a checkpoint file of the source in the archive
+ * directory, so an import which was stopped continues where it was, and running an
+ * import of the same source again only imports the files added since. When the
+ * archive stops, the files which were saved are indexed and checkpointed before.
+ * After a crash, the documents saved since the last checkpoint are indexed when the
+ * archive starts again. The uuid of a document is derived from the source and the
+ * path of the file, so the import finds them saved and only checkpoints them.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("bulkImporter")
+@ManagedResource(objectName = "archive:name=BulkImporter", description = "Bulk import of file trees")
+public class BulkImporter {
+
+  private static final Logger LOG = Logger.getLogger(BulkImporter.class);
+  private static final String CHECKPOINT_PREFIX = "import-";
+  private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final long POLL_INTERVAL = 100L; // ..ms.
+  private static final long BATCH_INTERVAL = 1000L; // ..ms = 1 second.
+  private static final long STOP_TIMEOUT = 10000L; // ..ms = 10 seconds.
+  private static final double MB = 1024 * 1024;
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  private volatile Import current;
+
+  @PreDestroy
+  public void destroy() {
+    stop();
+    Import run = current;
+    if (run != null) {
+      run.await();
+    }
+  }
+
+  /**
+   * Starts an import of a directory tree.
+   *
+   * @param source     The directory to import
+   * @param personName The person of all documents, null to use the first directory below the source
+   * @param link       True to link the files instead of copying them, if they are on the same file system
+   * @throws IllegalArgumentException If the source is not a directory below one of the import roots
+   * @throws IllegalStateException    If an import is running
+   */
+  public synchronized void start(String source, String personName, boolean link) {
+    if (current != null && current.isRunning()) {
+      throw new IllegalStateException("An import of " + current.source + " is running");
+    }
+    Path directory = Paths.get(source).toAbsolutePath().normalize();
+    if (!Files.isDirectory(directory)) {
+      throw new IllegalArgumentException("Not a directory: " + source);
+    }
+    try {
+      directory = directory.toRealPath();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Not a directory: " + source);
+    }
+    if (!isAllowed(directory)) {
+      throw new IllegalArgumentException("Not below an import root: " + source);
+    }
+    Path checkpoint = Paths.get(documentDao.getArchiveDirectory(), CHECKPOINT_PREFIX
+      + DocumentChecksum.of(directory.toString().getBytes(StandardCharsets.UTF_8)).substring(0, 16) + CHECKPOINT_SUFFIX);
+    try {
+      current = new Import(directory, personName, link, checkpoint);
+    } catch (IOException e) {
+      String message = "Error while opening " + checkpoint;
+      LOG.error(message, e);
+      throw new RuntimeException(message, e);
+    }
+    current.start();
+  }
+
+  /**
+   * Stops the running import after the files being copied. It continues when it is started again.
+   */
+  @ManagedOperation(description = "Stops the running import")
+  public void stop() {
+    Import run = current;
+    if (run != null) {
+      run.stopped = true;
+    }
+  }
+
+  public ImportStatus getStatus() {
+    Import run = current;
+    if (run == null) {
+      return new ImportStatus(null, false, null, null, 0, 0, 0, 0, 0, 0, 0, null);
+    }
+    double seconds = Math.max(1, (run.finished != null ? run.finished.getTime() : System.currentTimeMillis())
+      - run.started.getTime()) / 1000.0;
+    return new ImportStatus(run.source.toString(), run.isRunning(), run.started, run.finished, run.enumerated.get(),
+      run.skipped.get(), run.imported.get(), run.failed.get(), run.bytes.get(), run.imported.get() / seconds,
+      run.bytes.get() / seconds, run.error);
+  }
+
+  @ManagedAttribute(description = "True while an import is running")
+  public boolean isRunning() {
+    Import run = current;
+    return run != null && run.isRunning();
+  }
+
+  @ManagedAttribute(description = "Number of files imported by the last import")
+  public long getImported() {
+    Import run = current;
+    return run != null ? run.imported.get() : 0;
+  }
+
+  @ManagedAttribute(description = "Number of files of the last import which failed")
+  public long getFailed() {
+    Import run = current;
+    return run != null ? run.failed.get() : 0;
+  }
+
+  /**
+   * Checks that a directory is below one of the configured import roots. Both are
+   * compared as real paths, so links cannot lead out of a root.
+   */
+  private boolean isAllowed(Path directory) {
+    for (String root : properties.getImports().getRoots()) {
+      try {
+        if (directory.startsWith(Paths.get(root).toRealPath())) {
+          return true;
+        }
+      } catch (IOException e) {
+        LOG.warn("Ignoring import root " + root + ": " + e.getMessage());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the paths of a checkpoint file. A torn last line is ignored.
+   */
+  private static Set<String> readCheckpoint(Path file) throws IOException {
+    Set<String> paths = new HashSet<>();
+    if (!Files.exists(file)) {
+      return paths;
+    }
+    String content = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    int start = 0;
+    int end;
+    while ((end = content.indexOf('\n', start)) >= 0) {
+      if (end > start) {
+        paths.add(content.substring(start, end));
+      }
+      start = end + 1;
+    }
+    return paths;
+  }
+
+  /**
+   * A file which was saved in the archive and waits to be indexed, without meta data
+   * if it was saved by an earlier run and only waits to be checkpointed.
+   */
+  private static class Imported {
+    private final String path;
+    private final DocumentMetadata metadata;
+
+    private Imported(String path, DocumentMetadata metadata) {
+      this.path = path;
+      this.metadata = metadata;
+    }
+  }
+
+  /**
+   * One run of the import of a source.
+   */
+  private class Import {
+    private final Path source;
+    private final String personName;
+    private final boolean link;
+    private final Path checkpoint;
+    private final Set<String> done;
+    private final Writer checkpointWriter;
+    private final BlockingQueue<Path> files;
+    private final BlockingQueue<Imported> saved;
+    private final AtomicInteger copying = new AtomicInteger();
+    private final AtomicLong enumerated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<Thread> threads = new ArrayList<>();
+    private final Date started = new Date();
+    private volatile Date finished;
+    private volatile boolean walked;
+    private volatile boolean stopped;
+    private volatile String error;
+
+    private Import(Path source, String personName, boolean link, Path checkpoint) throws IOException {
+      this.source = source;
+      this.personName = personName;
+      this.link = link;
+      this.checkpoint = checkpoint;
+      this.done = readCheckpoint(checkpoint);
+      this.checkpointWriter = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      int batchSize = Math.max(1, properties.getImports().getBatchSize());
+      this.files = new ArrayBlockingQueue<>(Math.max(1, properties.getImports().getQueue()));
+      this.saved = new ArrayBlockingQueue<>(2 * batchSize);
+    }
+
+    private void start() {
+      LOG.info("Import of " + source + " started, " + done.size() + " files in checkpoint " + checkpoint);
+      threads.add(new Thread(background(this::walk), "import-walk"));
+      int workers = Math.max(1, properties.getImports().getThreads());
+      copying.set(workers);
+      for (int i = 0; i < workers; i++) {
+        threads.add(new Thread(background(this::copy), "import-copy-" + i));
+      }
+      threads.add(new Thread(background(this::index), "import-index"));
+      for (Thread thread : threads) {
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+    private boolean isRunning() {
+      return finished == null;
+    }
+
+    private Runnable background(Runnable task) {
+      return () -> {
+        IoScheduler.markBackground();
+        task.run();
+      };
+    }
+
+    private void await() {
+      Thread indexer = threads.get(threads.size() - 1);
+      try {
+        indexer.join(STOP_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void abort(String message, Exception e) {
+      LOG.error(message, e);
+      error = message + ": " + e.getMessage();
+      stopped = true;
+    }
+
+    /**
+     * Walks the source and queues the files which are not in the checkpoint.
+     * Symbolic links are skipped, they may point out of the import roots.
+     */
+    private void walk() {
+      try (Stream<Path> paths = Files.walk(source)) {
+        Iterator<Path> iterator = paths.filter(path -> Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)).iterator();
+        while (iterator.hasNext() && !stopped) {
+          Path file = iterator.next();
+          enumerated.incrementAndGet();
+          if (done.contains(relative(file))) {
+            skipped.incrementAndGet();
+            continue;
+          }
+          while (!files.offer(file, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+            if (stopped) {
+              return;
+            }
+          }
+        }
+      } catch (IOException | UncheckedIOException e) {
+        abort("Error while walking " + source, e);
+      } catch (InterruptedException e) {
+        stopped = true;
+      } finally {
+        walked = true;
+      }
+    }
+
+    /**
+     * Saves the queued files in the archive and queues them for indexing.
+     */
+    private void copy() {
+      try {
+        while (!stopped) {
+          Path file = files.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+          if (file == null) {
+            if (walked) {
+              return;
+            }
+            continue;
+          }
+          try {
+            Document document = toDocument(file);
+            try {
+              documentDao.importFile(document, file, link);
+              saved.put(new Imported(relative(file), document.getMetadata()));
+            } catch (FileAlreadyExistsException e) {
+              LOG.debug("Skipping " + file + ", it was saved before the last checkpoint");
+              saved.put(new Imported(relative(file), null));
+            }
+          } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            LOG.warn("Error while importing " + file, e);
+          }
+        }
+      } catch (InterruptedException e) {
+        stopped = true;
+      } finally {
+        copying.decrementAndGet();
+      }
+    }
+
+    /**
+     * Indexes the saved files in batches, after the copy threads finished it indexes the rest.
+     */
+    private void index() {
+      int batchSize = Math.max(1, properties.getImports().getBatchSize());
+      List<Imported> batch = new ArrayList<>(batchSize);
+      long batchStarted = System.currentTimeMillis();
+      long lastReport = System.currentTimeMillis();
+      long reportedFiles = 0;
+      long reportedBytes = 0;
+      try {
+        while (true) {
+          boolean last = copying.get() == 0;
+          Imported next = saved.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+          if (next != null) {
+            if (batch.isEmpty()) {
+              batchStarted = System.currentTimeMillis();
+            }
+            batch.add(next);
+            saved.drainTo(batch, batchSize - batch.size());
+          }
+          long now = System.currentTimeMillis();
+          if (batch.size() >= batchSize || !batch.isEmpty() && (now - batchStarted >= BATCH_INTERVAL || last)) {
+            flush(batch);
+          }
+          if (now - lastReport >= properties.getImports().getReportInterval()) {
+            double seconds = (now - lastReport) / 1000.0;
+            LOG.info("Import of " + source + ": " + imported.get() + " files imported, " + skipped.get() + " skipped, "
+              + failed.get() + " failed, " + String.format("%.1f files/s, %.1f MB/s",
+              (imported.get() - reportedFiles) / seconds, (bytes.get() - reportedBytes) / MB / seconds));
+            lastReport = now;
+            reportedFiles = imported.get();
+            reportedBytes = bytes.get();
+          }
+          if (last && next == null && batch.isEmpty()) {
+            break;
+          }
+        }
+      } catch (InterruptedException e) {
+        flush(batch);
+      } finally {
+        try {
+          checkpointWriter.close();
+        } catch (IOException e) {
+          LOG.error("Error while closing " + checkpoint, e);
+        }
+        finished = new Date();
+        LOG.info("Import of " + source + (stopped ? " stopped: " : " finished: ") + imported.get() + " files imported, "
+          + skipped.get() + " skipped, " + failed.get() + " failed, " + bytes.get() + " bytes");
+      }
+    }
+
+    /**
+     * Appends a batch to the checkpoint and indexes it.
+     */
+    private void flush(List<Imported> batch) {
+      if (batch.isEmpty()) {
+        return;
+      }
+      List<DocumentMetadata> documents = new ArrayList<>(batch.size());
+      long size = 0;
+      try {
+        for (Imported file : batch) {
+          checkpointWriter.write(file.path);
+          checkpointWriter.write('\n');
+        }
+        checkpointWriter.flush();
+      } catch (IOException e) {
+        abort("Error while writing " + checkpoint, e);
+      }
+      for (Imported file : batch) {
+        if (file.metadata != null) {
+          documents.add(file.metadata);
+          size += file.metadata.getFileSize();
+        } else {
+          skipped.incrementAndGet();
+        }
+      }
+      batch.clear();
+      if (documents.isEmpty()) {
+        return;
+      }
+      try {
+        documentDao.indexImported(documents);
+      } catch (RuntimeException e) {
+        abort("Error while indexing imported documents", e);
+        return;
+      }
+      imported.addAndGet(documents.size());
+      bytes.addAndGet(size);
+    }
+
+    private Document toDocument(Path file) throws IOException {
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      String fileName = file.getFileName().toString();
+      String contentType = Files.probeContentType(file);
+      if (contentType == null) {
+        contentType = URLConnection.guessContentTypeFromName(fileName);
+      }
+      Date date = Date.from(attributes.lastModifiedTime().toInstant().atZone(ZoneId.systemDefault()).toLocalDate()
+        .atStartOfDay(ZoneId.systemDefault()).toInstant());
+      Document document = new Document(null, fileName, date, getPersonName(file),
+        contentType != null ? contentType : DEFAULT_CONTENT_TYPE);
+      document.setUuid(UUID.nameUUIDFromBytes((source + "\0" + relative(file)).getBytes(StandardCharsets.UTF_8)).toString());
+      return document;
+    }
+
+    /**
+     * @return The given person, or the first directory below the source, or the source for files directly in it
+     */
+    private String getPersonName(Path file) {
+      if (personName != null) {
+        return personName;
+      }
+      Path relative = source.relativize(file);
+      if (relative.getNameCount() > 1) {
+        return relative.getName(0).toString();
+      }
+      return source.getFileName() != null ? source.getFileName().toString() : source.toString();
+    }
+
+    private String relative(Path file) {
+      return source.relativize(file).toString();
+    }
+  }
+}
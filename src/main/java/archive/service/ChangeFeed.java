@@ -0,0 +1,224 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.IDocumentDao;
+import archive.model.DocumentChange;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the changes of the archive to clients as server-sent events.
+ * <p>
+ * Each subscriber remembers the sequence of the last change it was sent. A change
+ * only marks the subscribers as pending; at most one send task per subscriber is
+ * queued, which sends the changes after its sequence from the change log until no
+ * more are pending, so a burst of changes costs one task per subscriber rather
+ * than one per change. A subscriber receives every change once and in order, even
+ * if it subscribed while changes happened. A subscriber which falls behind the
+ * retained changes is sent a reset event and continues with the current changes;
+ * it should reload its documents.
+ * <p>
+ * Subscribers are sent to in parallel by a bounded pool of threads, so a slow
+ * client does not hold up the others. A subscriber whose send has blocked longer
+ * than the stall timeout, e.g. because the client stopped reading, is dropped and
+ * has to subscribe again: its emitter is completed with an error, so the request
+ * ends and no more events are queued for it. The send which is blocked returns at
+ * the latest after the write timeout of the connector (server.connection-timeout),
+ * so a stalled client holds one thread of the pool at most that long.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("changeFeed")
+public class ChangeFeed {
+
+  private static final Logger LOG = Logger.getLogger(ChangeFeed.class);
+  private static final long TIMEOUT = 30 * 60 * 1000L; // ..ms = 30 minutes.
+  private static final long STALL_TIMEOUT = 30000L; // ..ms = 30 seconds.
+  private static final int BATCH_SIZE = 100;
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  private ExecutorService senders;
+
+  @PostConstruct
+  public void init() {
+    // the queue holds at most one task per subscriber
+    int threads = Math.max(1, properties.getChanges().getFeedThreads());
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<>(), runnable -> {
+      Thread thread = new Thread(runnable, "change-feed");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.allowCoreThreadTimeOut(true);
+    senders = executor;
+    documentDao.addChangeListener(change -> {
+      for (Subscriber subscriber : subscribers) {
+        wake(subscriber);
+      }
+    });
+  }
+
+  @PreDestroy
+  public void destroy() {
+    senders.shutdownNow();
+    for (Subscriber subscriber : subscribers) {
+      subscriber.emitter.complete();
+    }
+  }
+
+  /**
+   * Subscribes to the changes after the given sequence.
+   *
+   * @param since The sequence of the last change seen by the client, null for the current sequence
+   * @return The emitter of the events
+   */
+  public SseEmitter subscribe(Long since) {
+    SseEmitter emitter = new SseEmitter(TIMEOUT);
+    final Subscriber subscriber = new Subscriber(emitter, since == null ? documentDao.getChangeSequence() : since);
+    emitter.onCompletion(() -> subscribers.remove(subscriber));
+    emitter.onTimeout(() -> subscribers.remove(subscriber));
+    subscribers.add(subscriber);
+    wake(subscriber);
+    return emitter;
+  }
+
+  /**
+   * Sends a comment to all subscribers, so connections of clients which are gone
+   * are closed, and drops the subscribers whose send is stalled.
+   */
+  @Scheduled(fixedDelay = 15000)
+  public void heartbeat() {
+    long now = System.currentTimeMillis();
+    for (Subscriber subscriber : subscribers) {
+      long sending = subscriber.sending;
+      if (sending > 0 && now - sending > STALL_TIMEOUT) {
+        LOG.info("Dropping change feed subscriber at sequence " + subscriber.sequence + ", it stopped reading");
+        subscribers.remove(subscriber);
+        subscriber.dropped = true;
+        subscriber.emitter.completeWithError(new IOException("Change feed subscriber stopped reading"));
+      } else {
+        subscriber.heartbeat = true;
+        wake(subscriber);
+      }
+    }
+  }
+
+  /**
+   * Marks a subscriber as pending and queues its send task unless it is queued or running.
+   */
+  private void wake(Subscriber subscriber) {
+    if (subscriber.dropped) {
+      return;
+    }
+    subscriber.pending = true;
+    if (subscriber.scheduled.compareAndSet(false, true)) {
+      try {
+        senders.execute(() -> run(subscriber));
+      } catch (RejectedExecutionException e) {
+        subscriber.scheduled.set(false);
+      }
+    }
+  }
+
+  /**
+   * Sends to a subscriber until nothing is pending. Only one task per subscriber
+   * runs at a time, so its events are sent in order.
+   */
+  private void run(Subscriber subscriber) {
+    do {
+      while (subscriber.pending && !subscriber.dropped) {
+        subscriber.pending = false;
+        send(subscriber);
+      }
+      subscriber.scheduled.set(false);
+    } while (subscriber.pending && !subscriber.dropped && subscriber.scheduled.compareAndSet(false, true));
+    if (subscriber.dropped) {
+      subscriber.emitter.complete();
+    }
+  }
+
+  /**
+   * Sends a subscriber the changes after its sequence. Runs in the send task of the subscriber.
+   */
+  private void send(Subscriber subscriber) {
+    try {
+      if (subscriber.heartbeat) {
+        subscriber.heartbeat = false;
+        emit(subscriber, SseEmitter.event().comment("heartbeat"));
+      }
+      List<DocumentChange> changes;
+      do {
+        changes = documentDao.getChanges(subscriber.sequence, BATCH_SIZE);
+        if (changes == null) {
+          subscriber.sequence = documentDao.getChangeSequence();
+          emit(subscriber, SseEmitter.event().name("reset").id(String.valueOf(subscriber.sequence)).data(subscriber.sequence));
+          return;
+        }
+        for (DocumentChange change : changes) {
+          if (subscriber.dropped) {
+            return;
+          }
+          emit(subscriber, SseEmitter.event()
+            .name(change.getType().name().toLowerCase())
+            .id(String.valueOf(change.getSequence()))
+            .data(change, MediaType.APPLICATION_JSON));
+          subscriber.sequence = change.getSequence();
+        }
+      } while (changes.size() == BATCH_SIZE);
+    } catch (IOException | IllegalStateException e) {
+      LOG.debug("Dropping change feed subscriber at sequence " + subscriber.sequence);
+      subscribers.remove(subscriber);
+      subscriber.dropped = true;
+    }
+  }
+
+  /**
+   * Sends an event, recording when the send started so a stalled client is detected.
+   */
+  private static void emit(Subscriber subscriber, SseEmitter.SseEventBuilder event) throws IOException {
+    subscriber.sending = System.currentTimeMillis();
+    try {
+      subscriber.emitter.send(event);
+    } finally {
+      subscriber.sending = 0;
+    }
+  }
+
+  private static class Subscriber {
+    private final SseEmitter emitter;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long sequence;
+    private volatile boolean pending;
+    private volatile boolean heartbeat;
+    private volatile boolean dropped;
+    private volatile long sending;
+
+    private Subscriber(SseEmitter emitter, long sequence) {
+      this.emitter = emitter;
+      this.sequence = sequence;
+    }
+  }
+}
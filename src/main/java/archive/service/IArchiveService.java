@@ -2,13 +2,30 @@ package archive.service;
 
 
 import archive.model.Document;
+import archive.model.ArchiveAggregates;
+import archive.model.DocumentChange;
 import archive.model.DocumentMetadata;
+import archive.model.DocumentOrder;
+import archive.model.DocumentQuery;
+import archive.model.ImportStatus;
+import archive.model.NameMatch;
+import archive.model.QuotaUsage;
+import archive.model.ReplicationStatus;
+import archive.model.RetentionStatus;
+import archive.model.ScrubReport;
+import archive.model.UploadSession;
+import org.springframework.core.io.Resource;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -26,6 +43,70 @@ public interface IArchiveService {
    */
   DocumentMetadata save(Document document);
 
+  /**
+   * Saves an uploaded document. Small files are read into memory and packed, larger
+   * ones are moved from the temporary file of the upload into the archive.
+   *
+   * @param document A document without file data
+   * @param file     The uploaded file
+   * @return DocumentMetadata The meta data of the saved document
+   */
+  DocumentMetadata save(Document document, MultipartFile file) throws IOException;
+
+  /**
+   * Starts a resumable upload of a document. The file is sent in chunks of the
+   * given size with writeUploadChunk and saved as a document with commitUpload.
+   *
+   * @param fileName    The file name of the document
+   * @param personName  The name of the uploading person
+   * @param date        The date of the document
+   * @param contentType The content type of the document
+   * @param size        The size of the file in bytes
+   * @param chunkSize   The size of the chunks in bytes, may be null for the default
+   * @return The new upload session
+   */
+  UploadSession createUpload(String fileName, String personName, Date date, String contentType, long size, Integer chunkSize) throws IOException;
+
+  /**
+   * Returns the state of a resumable upload.
+   * Returns null if there is no upload with the given id.
+   *
+   * @param id The id of the upload
+   * @return The upload session
+   */
+  UploadSession getUpload(String id) throws IOException;
+
+  /**
+   * Writes a chunk of a resumable upload. Chunks may be written in parallel and in any order.
+   * Returns null if there is no upload with the given id.
+   *
+   * @param id       The id of the upload
+   * @param index    The number of the chunk, starting at 0
+   * @param data     The data of the chunk
+   * @param checksum The CRC32 checksum of the chunk
+   * @return The upload session
+   * @throws IllegalStateException If the upload is committed or being committed
+   */
+  UploadSession writeUploadChunk(String id, int index, InputStream data, long checksum) throws IOException;
+
+  /**
+   * Saves the file of a complete resumable upload as a document in the archive.
+   * Committing an upload again returns the document it was saved as.
+   * Returns null if there is no upload with the given id.
+   *
+   * @param id The id of the upload
+   * @return The meta data of the saved document
+   * @throws IllegalStateException If chunks are missing, being written or the upload is being committed
+   */
+  DocumentMetadata commitUpload(String id) throws IOException;
+
+  /**
+   * Cancels a resumable upload and deletes its data.
+   *
+   * @param id The id of the upload
+   */
+  void abortUpload(String id) throws IOException;
+
   /**
    * Finds document in the archive matching the given parameter.
    * A list of document meta data which does not include the file data.
@@ -38,6 +119,36 @@ public interface IArchiveService {
    */
   List<DocumentMetadata> findDocuments(String personName, Date date, String contentType);
 
+  /**
+   * Finds document in the archive matching the given parameter.
+   * The person name is matched with the given strategy, e.g. case-insensitive or by prefix.
+   *
+   * @param personName  The name of a person, may be null
+   * @param match       The strategy to match the person name, may be null for exact matches
+   * @param date        The date of a document, may be null
+   * @param contentType contentType
+   */
+  List<DocumentMetadata> findDocuments(String personName, NameMatch match, Date date, String contentType);
+
+  /**
+   * Finds document in the archive matching the given query.
+   * The query may restrict the document dates to a range, order the results
+   * by date or file name and limit the number of results.
+   *
+   * @param query The query
+   */
+  List<DocumentMetadata> findDocuments(DocumentQuery query);
+
+  /**
+   * Returns the entity tag of the results of a query. The tag changes whenever
+   * a document is inserted, updated or deleted. It must be taken before the
+   * search, so it never belongs to newer results than the ones returned.
+   *
+   * @param query The query
+   * @return The quoted entity tag
+   */
+  String getSearchTag(DocumentQuery query);
+
 
   /**
    * Returns the document file from the archive with the given id.
@@ -48,6 +159,63 @@ public interface IArchiveService {
    */
   byte[] getDocumentFile(String id);
 
+  /**
+   * Returns the meta data of the document with the given id, null if it does not exist.
+   * @param id The id of a document
+   * @return The meta data of the latest version
+   */
+  DocumentMetadata getDocumentMetadata(String id);
+
+  /**
+   * Returns the meta data of many documents at once from the index, without reading files.
+   * @param ids The ids of the documents
+   * @return The meta data by id in the given order, null for documents which do not exist
+   */
+  Map<String, DocumentMetadata> getDocumentMetadata(Collection<String> ids);
+
+  /**
+   * Saves a new version of the document with the given id. The previous versions remain available.
+   * @param id The id of an existing document
+   * @param document The new version
+   * @return The meta data of the new version
+   * @throws java.io.FileNotFoundException If the document does not exist
+   */
+  DocumentMetadata saveVersion(String id, Document document) throws IOException;
+
+  /**
+   * Returns the meta data of all versions of a document, the oldest first, null if it does not exist.
+   * @param id The id of a document
+   * @return The meta data of the versions
+   */
+  List<DocumentMetadata> getVersions(String id) throws IOException;
+
+  /**
+   * Sends a version of a document in multipart download
+   * @param id The id of a document
+   * @param version The number of the version
+   * @return null if the document or version does not exist
+   */
+  Object getDocumentVersionMultipart(String id, int version, HttpServletRequest request, HttpServletResponse response) throws Exception;
+
+  /**
+   * Returns the thumbnail of the document with the given id.
+   * Returns null if the document is not an image or its thumbnail is not generated yet.
+   *
+   * @param id The id of a document
+   * @return The thumbnail image
+   */
+  Resource getThumbnail(String id);
+
+  /**
+   * Finds documents matching a filter expression with a parallel scan of all documents.
+   * @param filter The filter expression, see {@link archive.dao.MetadataFilter}
+   * @param order The order of the results, may be null
+   * @param limit The maximum number of results, may be null
+   * @return A list of document meta data
+   * @throws IllegalArgumentException If the filter is invalid
+   */
+  List<DocumentMetadata> scanDocuments(String filter, DocumentOrder order, Integer limit);
+
   /**
    * Returns the document from the archive with the given id in multipart download
    * @param id The id of a document
@@ -67,5 +235,107 @@ public interface IArchiveService {
    */
   void deleteAllDocuments() throws IOException;
 
-}
+  /**
+   * Returns the document counts and total bytes of the archive, in total and
+   * per person, content type and month.
+   * @return The aggregates of the archive
+   */
+  ArchiveAggregates getAggregates();
+
+  /**
+   * Returns the inserts and deletes after the given sequence in order.
+   * @param since The sequence of the last change seen by the client
+   * @param limit The maximum number of changes
+   * @return The changes, or null if changes after the sequence are no longer retained
+   */
+  List<DocumentChange> getChanges(long since, int limit);
+
+  /**
+   * Subscribes to the inserts and deletes after the given sequence as server-sent events.
+   * @param since The sequence of the last change seen by the client, null for the current sequence
+   * @return The emitter of the events
+   */
+  SseEmitter subscribeChanges(Long since);
+
+  /**
+   * Returns the state of the integrity scrubber and the documents which are missing or corrupt.
+   * @return The report of the scrubber
+   */
+  ScrubReport getScrubReport();
 
+  /**
+   * Starts a pass of the integrity scrubber over the archive.
+   */
+  void startScrub();
+
+  /**
+   * Starts a bulk import of the files of a directory tree on the server.
+   * @param source The directory to import
+   * @param personName The person of the documents, null to use the first directory below the source
+   * @param link True to hard link the files instead of copying them
+   * @throws IllegalArgumentException If the source is not a directory below one of the import roots
+   * @throws IllegalStateException If an import is running
+   */
+  void startImport(String source, String personName, boolean link);
+
+  /**
+   * Stops the running bulk import, it continues from its checkpoint when it is started again.
+   */
+  void stopImport();
+
+  /**
+   * Returns the progress and throughput of the last bulk import.
+   * @return The state of the import
+   */
+  ImportStatus getImportStatus();
+
+  /**
+   * Checks that a document of the given size fits in the quota of the person and the archive.
+   * @param personName The name of the uploading person
+   * @param bytes The size of the document
+   * @throws QuotaExceededException If the document does not fit
+   */
+  void checkQuota(String personName, long bytes);
+
+  /**
+   * Returns the stored documents and bytes of a person or the archive and the quota.
+   * @param personName The name of a person, null for the whole archive
+   * @return The usage
+   */
+  QuotaUsage getUsage(String personName);
+
+  /**
+   * Converts the meta data of documents saved by earlier versions to the current binary format.
+   * @return The number of converted documents
+   */
+  int convertMetadata();
+
+  /**
+   * Returns the retention rules and the number of documents scheduled for deletion.
+   * @return The retention status
+   */
+  RetentionStatus getRetentionStatus();
+
+  /**
+   * Applies a batch of changes shipped by the primary to this replica.
+   * @param batch The batch, see {@link ReplicationBatch}
+   * @return The sequence of the primary this replica applied, -1 if it must be synchronized in full
+   * @throws IllegalStateException If this archive is not a replica
+   */
+  long applyReplication(InputStream batch) throws IOException;
+
+  /**
+   * Finds the documents a full synchronization has to ship to this replica.
+   * @param lines Lines of uuid, checksum and version of documents of the primary
+   * @return The uuids of the documents which are missing or differ
+   * @throws IllegalStateException If this archive is not a replica
+   */
+  List<String> compareReplica(List<String> lines);
+
+  /**
+   * Returns the state of the replication from the primary or to the replicas.
+   * @return The replication status
+   */
+  ReplicationStatus getReplicationStatus();
+
+}
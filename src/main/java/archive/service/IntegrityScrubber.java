@@ -0,0 +1,297 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.DocumentChecksum;
+import archive.dao.IDocumentDao;
+import archive.dao.IoScheduler;
+import archive.model.Document;
+import archive.model.DocumentChange;
+import archive.model.DocumentMetadata;
+import archive.model.IntegrityFailure;
+import archive.model.ScrubReport;
+import archive.monitor.RequestLatencyMonitor;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies the files of all documents against the size and checksum in their meta
+ * data in the background.
+ * <p>
+ * A single low priority thread walks the archive once per interval. Reads are paced
+ * to the configured rate, and the rate is halved whenever the average request
+ * latency exceeds the threshold and recovers slowly when requests are fast again.
+ * Documents which are missing or corrupt are kept in a list of failures until they
+ * verify again or are deleted. The counters are exported as JMX attributes.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("integrityScrubber")
+@ManagedResource(objectName = "archive:name=IntegrityScrubber", description = "Background verification of document checksums")
+public class IntegrityScrubber implements Runnable {
+
+  private static final Logger LOG = Logger.getLogger(IntegrityScrubber.class);
+  private static final long START_DELAY = 10 * 60 * 1000L; // ..ms = 10 minutes.
+  private static final long ADJUST_INTERVAL = 1000L; // ..ms = 1 second.
+  private static final double MIN_RATE_FACTOR = 1.0 / 64;
+  private static final int BLOCK_SIZE = 256 * 1024;
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  @Autowired
+  private RequestLatencyMonitor latencyMonitor;
+
+  @Autowired
+  private IoScheduler ioScheduler;
+
+  private final Map<String, IntegrityFailure> failures = new ConcurrentHashMap<>();
+  private final AtomicLong documentsVerified = new AtomicLong();
+  private final AtomicLong bytesVerified = new AtomicLong();
+  private final AtomicLong passes = new AtomicLong();
+  private volatile Date lastPassStarted;
+  private volatile Date lastPassCompleted;
+  private volatile boolean running;
+  private volatile boolean stopped;
+  private boolean requested;
+  private Thread thread;
+
+  // Pacing state, only used by the scrubber thread
+  private volatile double rateFactor = 1;
+  private long lastAdjust;
+  private long nextRead;
+
+  @PostConstruct
+  public void init() {
+    documentDao.addChangeListener(change -> {
+      if (change.getType() == DocumentChange.Type.DELETE) {
+        failures.remove(change.getUuid());
+      }
+    });
+    thread = new Thread(this, "integrity-scrubber");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  @PreDestroy
+  public void destroy() {
+    stopped = true;
+    thread.interrupt();
+  }
+
+  @Override
+  public void run() {
+    IoScheduler.markBackground();
+    long next = System.currentTimeMillis() + START_DELAY;
+    while (!stopped) {
+      try {
+        synchronized (this) {
+          long wait = next - System.currentTimeMillis();
+          while (!requested && wait > 0) {
+            wait(wait);
+            wait = next - System.currentTimeMillis();
+          }
+          requested = false;
+        }
+        long start = System.currentTimeMillis();
+        if (properties.getScrub().isEnabled()) {
+          scrub();
+        }
+        next = start + properties.getScrub().getIntervalHours() * 3600000L;
+      } catch (InterruptedException e) {
+        return;
+      } catch (RuntimeException e) {
+        LOG.error("Error while scrubbing the archive", e);
+        next = System.currentTimeMillis() + START_DELAY;
+      }
+    }
+  }
+
+  /**
+   * Starts a pass over the archive now, unless one is running.
+   */
+  @ManagedOperation(description = "Starts a pass over the archive")
+  public synchronized void start() {
+    requested = true;
+    notifyAll();
+  }
+
+  public ScrubReport getReport() {
+    List<IntegrityFailure> list = new ArrayList<>(failures.values());
+    list.sort(Comparator.comparing(IntegrityFailure::getDetected));
+    return new ScrubReport(running, passes.get(), lastPassStarted, lastPassCompleted,
+      documentsVerified.get(), bytesVerified.get(), getBytesPerSecond(), list);
+  }
+
+  @ManagedAttribute(description = "Number of documents verified")
+  public long getDocumentsVerified() {
+    return documentsVerified.get();
+  }
+
+  @ManagedAttribute(description = "Number of bytes verified")
+  public long getBytesVerified() {
+    return bytesVerified.get();
+  }
+
+  @ManagedAttribute(description = "Number of completed passes")
+  public long getPasses() {
+    return passes.get();
+  }
+
+  @ManagedAttribute(description = "Number of documents with a missing file")
+  public long getMissingDocuments() {
+    return count(IntegrityFailure.Type.MISSING);
+  }
+
+  @ManagedAttribute(description = "Number of documents with a corrupt file")
+  public long getCorruptDocuments() {
+    return count(IntegrityFailure.Type.CORRUPT);
+  }
+
+  @ManagedAttribute(description = "Current read rate in bytes per second")
+  public long getBytesPerSecond() {
+    return (long) (properties.getScrub().getBytesPerSecond() * rateFactor);
+  }
+
+  private long count(IntegrityFailure.Type type) {
+    long count = 0;
+    for (IntegrityFailure failure : failures.values()) {
+      if (failure.getType() == type) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void scrub() throws InterruptedException {
+    running = true;
+    lastPassStarted = new Date();
+    LOG.info("Integrity scrub started");
+    try {
+      for (DocumentMetadata metadata : documentDao.findByPersonNameDateContentType(null, null, null)) {
+        if (stopped) {
+          return;
+        }
+        verify(metadata.getUuid());
+      }
+      passes.incrementAndGet();
+      lastPassCompleted = new Date();
+      LOG.info("Integrity scrub completed, " + failures.size() + " failures");
+    } finally {
+      running = false;
+    }
+  }
+
+  private void verify(String uuid) throws InterruptedException {
+    Document document;
+    try {
+      document = documentDao.loadWithPath(uuid);
+    } catch (RuntimeException e) {
+      Throwable cause = e.getCause() != null ? e.getCause() : e;
+      if (cause instanceof NoSuchFileException) {
+        fail(uuid, IntegrityFailure.Type.MISSING, "Missing meta data");
+      } else {
+        fail(uuid, IntegrityFailure.Type.CORRUPT, "Unreadable: " + cause.getMessage());
+      }
+      return;
+    }
+    if (document == null) {
+      fail(uuid, IntegrityFailure.Type.MISSING, "Missing document folder");
+      return;
+    }
+    MessageDigest digest = DocumentChecksum.newDigest();
+    long size;
+    if (document.getPath() == null) {
+      byte[] data = document.getFileData();
+      pace(data.length);
+      digest.update(data);
+      size = data.length;
+    } else {
+      try {
+        size = read(document.getPath(), digest);
+      } catch (NoSuchFileException e) {
+        fail(uuid, IntegrityFailure.Type.MISSING, "Missing file " + document.getFileName());
+        return;
+      } catch (IOException e) {
+        fail(uuid, IntegrityFailure.Type.CORRUPT, "Unreadable: " + e.getMessage());
+        return;
+      }
+    }
+    documentsVerified.incrementAndGet();
+    bytesVerified.addAndGet(size);
+    String checksum = DocumentChecksum.toHex(digest.digest());
+    if (document.getFileSize() >= 0 && size != document.getFileSize()) {
+      fail(uuid, IntegrityFailure.Type.CORRUPT, "Size is " + size + " bytes, expected " + document.getFileSize());
+    } else if (document.getChecksum() != null && !document.getChecksum().equals(checksum)) {
+      fail(uuid, IntegrityFailure.Type.CORRUPT, "Checksum is " + checksum + ", expected " + document.getChecksum());
+    } else {
+      failures.remove(uuid);
+    }
+  }
+
+  private long read(Path path, MessageDigest digest) throws IOException, InterruptedException {
+    byte[] buffer = new byte[BLOCK_SIZE];
+    long size = 0;
+    try (InputStream input = ioScheduler.wrap(Files.newInputStream(path), IoScheduler.IoClass.BACKGROUND)) {
+      while (true) {
+        pace(BLOCK_SIZE);
+        int n = input.read(buffer);
+        if (n < 0) {
+          return size;
+        }
+        digest.update(buffer, 0, n);
+        size += n;
+      }
+    }
+  }
+
+  private void fail(String uuid, IntegrityFailure.Type type, String message) {
+    DocumentMetadata metadata = documentDao.getMetadata(uuid);
+    if (metadata == null) {
+      failures.remove(uuid); // deleted in the meantime
+      return;
+    }
+    LOG.warn("Integrity failure of document " + uuid + ": " + message);
+    failures.put(uuid, new IntegrityFailure(uuid, metadata.getFileName(), type, message, new Date()));
+  }
+
+  /**
+   * Waits until the given number of bytes may be read at the current rate.
+   */
+  private void pace(long bytes) throws InterruptedException {
+    long now = System.nanoTime();
+    if (now - lastAdjust > ADJUST_INTERVAL * 1000000L) {
+      if (latencyMonitor.getAverageLatency() > properties.getScrub().getLatencyThreshold()) {
+        rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+      } else {
+        rateFactor = Math.min(1, rateFactor + 0.05);
+      }
+      lastAdjust = now;
+    }
+    double rate = Math.max(1, properties.getScrub().getBytesPerSecond() * rateFactor);
+    nextRead = Math.max(nextRead, now) + (long) (bytes * 1e9 / rate);
+    long wait = nextRead - now;
+    if (wait > 0) {
+      Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package archive.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown if a document would exceed the quota of its person or of the archive.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@ResponseStatus(HttpStatus.INSUFFICIENT_STORAGE)
+public class QuotaExceededException extends RuntimeException {
+
+  private static final long serialVersionUID = 5531937212841306718L;
+
+  public QuotaExceededException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,96 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.IDocumentDao;
+import archive.model.FacetCount;
+import archive.model.QuotaUsage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Enforces the per person and global limits of stored bytes.
+ * <p>
+ * The usage is read in constant time from the aggregates maintained by the
+ * {@link IDocumentDao}. Uploads which are being saved reserve their size first,
+ * so concurrent uploads cannot together exceed a limit. The reservation is
+ * released when the document is in the aggregates or the upload failed.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("quotaManager")
+public class QuotaManager {
+
+  private static final String TOTAL = "total";
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  private final Map<String, Long> reserved = new HashMap<>();
+  private long reservedTotal;
+
+  /**
+   * Checks that a document of the given size fits in the quota, without reserving it.
+   *
+   * @param personName The person of the document, null to check the quota of the archive only
+   * @throws QuotaExceededException If the document does not fit
+   */
+  public synchronized void check(String personName, long bytes) {
+    checkLimit(TOTAL, documentDao.getUsage(null).getBytes() + reservedTotal + bytes,
+      properties.getQuota().getTotalBytes());
+    if (personName != null) {
+      checkLimit(personName, documentDao.getUsage(personName).getBytes() + reservedOf(personName) + bytes,
+        properties.getQuota().getPersonBytes(personName));
+    }
+  }
+
+  /**
+   * Reserves the size of a document which is saved next.
+   *
+   * @throws QuotaExceededException If the document does not fit
+   */
+  public synchronized void reserve(String personName, long bytes) {
+    check(personName, bytes);
+    reservedTotal += bytes;
+    reserved.put(personName, reservedOf(personName) + bytes);
+  }
+
+  public synchronized void release(String personName, long bytes) {
+    reservedTotal -= bytes;
+    long remaining = reservedOf(personName) - bytes;
+    if (remaining > 0) {
+      reserved.put(personName, remaining);
+    } else {
+      reserved.remove(personName);
+    }
+  }
+
+  /**
+   * @param personName The name of a person, null for the whole archive
+   * @return The usage and limit of the person or archive
+   */
+  public synchronized QuotaUsage getUsage(String personName) {
+    FacetCount usage = documentDao.getUsage(personName);
+    if (personName == null) {
+      return new QuotaUsage(TOTAL, usage.getCount(), usage.getBytes(), reservedTotal, properties.getQuota().getTotalBytes());
+    }
+    return new QuotaUsage(personName, usage.getCount(), usage.getBytes(), reservedOf(personName),
+      properties.getQuota().getPersonBytes(personName));
+  }
+
+  private long reservedOf(String personName) {
+    Long bytes = reserved.get(personName);
+    return bytes == null ? 0 : bytes;
+  }
+
+  private static void checkLimit(String key, long bytes, long limit) {
+    if (limit > 0 && bytes > limit) {
+      throw new QuotaExceededException("Quota of " + key + " exceeded: " + bytes + " of " + limit + " bytes");
+    }
+  }
+}
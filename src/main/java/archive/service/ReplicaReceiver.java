@@ -0,0 +1,283 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.IDocumentDao;
+import archive.dao.IoScheduler;
+import archive.model.Document;
+import archive.model.DocumentMetadata;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the batches of changes a primary archive ships to this archive when it
+ * runs as a read replica, see {@link ReplicationSender}.
+ * <p>
+ * The replica remembers the id of its primary and the sequence of the primary it
+ * has applied in a state file in the archive directory, which is written after
+ * each batch. After a restart it continues from there, batches are idempotent so
+ * a batch which was applied but not recorded is simply applied again. A replica
+ * which answers -1 is not in sync with the sending primary and is synchronized in
+ * full.
+ * <p>
+ * A batch tells the sequence of the primary when it was sent. If the replica has
+ * applied the changes up to that sequence it was in sync at the time the batch
+ * arrived; the staleness of the replica is the time since then. The primary
+ * sends empty batches while nothing changes, so the staleness of an idle replica
+ * stays low, and grows when the primary stops sending.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("replicaReceiver")
+@ManagedResource(objectName = "archive:name=ReplicaReceiver", description = "Changes received from the primary")
+public class ReplicaReceiver {
+
+  public static final String STATE_FILE_NAME = "replica.state";
+  public static final String TEMP_DIRECTORY = ".replication";
+
+  private static final Logger LOG = Logger.getLogger(ReplicaReceiver.class);
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  @Autowired
+  private IoScheduler ioScheduler;
+
+  @Autowired
+  private ThumbnailGenerator thumbnailGenerator;
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong documents = new AtomicLong();
+  private final AtomicLong unchanged = new AtomicLong();
+  private final AtomicLong deletes = new AtomicLong();
+  private volatile String primaryId;
+  private volatile long sequence = -1;
+  private volatile long synced;
+
+  @PostConstruct
+  public void init() {
+    if (!isReplica()) {
+      return;
+    }
+    Path state = getStatePath();
+    try {
+      if (Files.exists(state)) {
+        String[] fields = new String(Files.readAllBytes(state), StandardCharsets.UTF_8).trim().split("\t");
+        primaryId = fields[0];
+        sequence = Long.parseLong(fields[1]);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Ignoring unreadable replication state " + state + ", the replica is synchronized in full", e);
+      primaryId = null;
+      sequence = -1;
+    }
+    LOG.info("Replica of " + properties.getReplication().getPrimary() + " at sequence " + sequence);
+    String secret = properties.getReplication().getSecret();
+    if (secret == null || secret.isEmpty()) {
+      LOG.warn("No replication secret is configured, the replica rejects all batches of the primary");
+    }
+  }
+
+  public boolean isReplica() {
+    return properties.getReplication().isReplica();
+  }
+
+  /**
+   * Applies a batch of changes. Batches are applied one at a time.
+   *
+   * @param input The batch, see {@link ReplicationBatch}
+   * @return The sequence of the sending primary this replica applied, -1 if it must be synchronized in full
+   * @throws IllegalStateException If this archive is not a replica
+   * @throws IOException           If the batch is corrupt or a document cannot be saved
+   */
+  public synchronized long apply(InputStream input) throws IOException {
+    if (!isReplica()) {
+      throw new IllegalStateException("This archive is not a replica");
+    }
+    long received = System.currentTimeMillis();
+    ReplicationBatch batch = ReplicationBatch.read(input, new ReplicationBatch.Handler() {
+      @Override
+      public void document(DocumentMetadata metadata, long length, InputStream data) throws IOException {
+        save(metadata, length, data);
+      }
+
+      @Override
+      public void delete(String uuid) throws IOException {
+        remove(uuid);
+      }
+
+      @Override
+      public void retain(Set<String> uuids) throws IOException {
+        for (DocumentMetadata metadata : documentDao.scan(metadata -> true, null, null)) {
+          if (!uuids.contains(metadata.getUuid())) {
+            remove(metadata.getUuid());
+          }
+        }
+      }
+    });
+    batches.incrementAndGet();
+    if (batch.getThrough() >= 0 && (batch.getThrough() != sequence || !batch.getPrimaryId().equals(primaryId))) {
+      writeState(batch.getPrimaryId(), batch.getThrough());
+    }
+    if (!batch.getPrimaryId().equals(primaryId)) {
+      return -1;
+    }
+    if (sequence == batch.getPrimarySequence()) {
+      synced = received;
+    }
+    return sequence;
+  }
+
+  /**
+   * Finds the documents which differ from the primary, so a full synchronization
+   * only ships those.
+   *
+   * @param lines Lines of uuid, checksum and version separated by tabs
+   * @return The uuids of the documents which are missing or differ
+   */
+  public List<String> compare(List<String> lines) {
+    if (!isReplica()) {
+      throw new IllegalStateException("This archive is not a replica");
+    }
+    List<String> different = new ArrayList<>();
+    for (String line : lines) {
+      String[] fields = line.split("\t");
+      if (fields.length != 3) {
+        throw new IllegalArgumentException("Invalid line: " + line);
+      }
+      DocumentMetadata metadata = documentDao.getMetadata(fields[0]);
+      if (metadata == null || !fields[1].equals(String.valueOf(metadata.getChecksum()))
+        || !fields[2].equals(String.valueOf(metadata.getVersion()))) {
+        different.add(fields[0]);
+      }
+    }
+    return different;
+  }
+
+  /**
+   * Saves a document unless the replica has the same version already. Small
+   * documents are received in memory, so they are packed like on the primary.
+   */
+  private void save(DocumentMetadata metadata, long length, InputStream data) throws IOException {
+    DocumentMetadata current = documentDao.getMetadata(metadata.getUuid());
+    if (current != null && current.getVersion() == metadata.getVersion()
+      && Objects.equals(current.getChecksum(), metadata.getChecksum())
+      && Objects.equals(current.getFileName(), metadata.getFileName())) {
+      unchanged.incrementAndGet();
+      return;
+    }
+    Document document = new Document(metadata);
+    if (length < properties.getPacks().getThreshold()) {
+      document.setFileData(StreamUtils.copyToByteArray(data));
+      documentDao.replicate(document, null);
+    } else {
+      Path directory = Paths.get(documentDao.getArchiveDirectory(), TEMP_DIRECTORY);
+      Files.createDirectories(directory);
+      Path file = Files.createTempFile(directory, metadata.getUuid(), ".tmp");
+      try {
+        try (OutputStream output = ioScheduler.wrap(Files.newOutputStream(file), IoScheduler.IoClass.BACKGROUND)) {
+          StreamUtils.copy(data, output);
+        }
+        documentDao.replicate(document, file);
+      } finally {
+        Files.deleteIfExists(file);
+      }
+    }
+    documents.incrementAndGet();
+    thumbnailGenerator.submit(document.getMetadata());
+  }
+
+  private void remove(String uuid) throws IOException {
+    if (documentDao.getMetadata(uuid) == null) {
+      return;
+    }
+    try {
+      documentDao.delete(uuid);
+      deletes.incrementAndGet();
+    } catch (FileNotFoundException e) {
+      LOG.debug("Replicated delete of missing document " + uuid);
+    }
+  }
+
+  private void writeState(String primaryId, long sequence) throws IOException {
+    Path state = getStatePath();
+    Path temp = state.resolveSibling(STATE_FILE_NAME + ".tmp");
+    Files.write(temp, (primaryId + "\t" + sequence + "\n").getBytes(StandardCharsets.UTF_8));
+    Files.move(temp, state, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    this.primaryId = primaryId;
+    this.sequence = sequence;
+  }
+
+  private Path getStatePath() {
+    return Paths.get(documentDao.getArchiveDirectory(), STATE_FILE_NAME);
+  }
+
+  /**
+   * @return The age in ms of the data of this replica, Long.MAX_VALUE if it was never in sync since the start
+   */
+  @ManagedAttribute(description = "Age in ms of the data of the replica")
+  public long getStaleness() {
+    long time = synced;
+    return time == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - time);
+  }
+
+  /**
+   * @return The last time this replica had applied all changes of the primary, null if never since the start
+   */
+  public Date getSynced() {
+    long time = synced;
+    return time == 0 ? null : new Date(time);
+  }
+
+  public String getPrimaryId() {
+    return primaryId;
+  }
+
+  @ManagedAttribute(description = "Sequence of the primary the replica applied")
+  public long getSequence() {
+    return sequence;
+  }
+
+  @ManagedAttribute(description = "Number of batches received")
+  public long getBatches() {
+    return batches.get();
+  }
+
+  @ManagedAttribute(description = "Number of documents saved")
+  public long getDocuments() {
+    return documents.get();
+  }
+
+  @ManagedAttribute(description = "Number of received documents which were unchanged")
+  public long getUnchanged() {
+    return unchanged.get();
+  }
+
+  @ManagedAttribute(description = "Number of documents deleted")
+  public long getDeletes() {
+    return deletes.get();
+  }
+}
@@ -0,0 +1,260 @@
+package archive.service;
+
+import archive.dao.MetadataCodec;
+import archive.model.DocumentMetadata;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The format of the batches of changes which a primary archive ships to its replicas.
+ * <p>
+ * A batch is streamed in the body of one request, documents are copied from the
+ * disk of the primary to the disk of the replica without being held in memory.
+ * A document is sent with its current state rather than the state of the change,
+ * so applying a batch twice or out of date changes is harmless.
+ * <p>
+ * Layout: magic (4), format (4), id of the primary (UTF), sequence of the primary
+ * (8), sequence of the replica after the batch or -1 (8), then records as kind (1)
+ * and content: a document as meta data length (4), meta data, data length (8) and
+ * data; a deletion as uuid (UTF); the uuids to retain as number (4) and uuids (UTF),
+ * all other documents of the replica are deleted. The last record is kind 0.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class ReplicationBatch {
+
+  private static final int MAGIC = 0x41524550; // AREP
+  private static final int FORMAT = 1;
+  private static final byte END = 0;
+  private static final byte DOCUMENT = 1;
+  private static final byte DELETE = 2;
+  private static final byte RETAIN = 3;
+
+  /**
+   * Receives the records of a batch.
+   */
+  public interface Handler {
+    /**
+     * @param metadata The meta data of the document on the primary
+     * @param length   The length of the data
+     * @param data     The data, which ends after the document
+     */
+    void document(DocumentMetadata metadata, long length, InputStream data) throws IOException;
+
+    void delete(String uuid) throws IOException;
+
+    /**
+     * @param uuids All documents of the primary, the others are deleted
+     */
+    void retain(Set<String> uuids) throws IOException;
+  }
+
+  private final String primaryId;
+  private final long primarySequence;
+  private final long through;
+
+  private ReplicationBatch(String primaryId, long primarySequence, long through) {
+    this.primaryId = primaryId;
+    this.primarySequence = primarySequence;
+    this.through = through;
+  }
+
+  /**
+   * Reads a batch and passes its records to the handler.
+   *
+   * @return The header of the batch
+   * @throws IOException If the stream is not a batch or ends before the last record
+   */
+  public static ReplicationBatch read(InputStream input, Handler handler) throws IOException {
+    DataInputStream data = new DataInputStream(input);
+    if (data.readInt() != MAGIC || data.readInt() != FORMAT) {
+      throw new IOException("Unknown format of replication batch");
+    }
+    ReplicationBatch batch = new ReplicationBatch(data.readUTF(), data.readLong(), data.readLong());
+    byte kind;
+    while ((kind = data.readByte()) != END) {
+      switch (kind) {
+        case DOCUMENT:
+          byte[] metadata = new byte[data.readInt()];
+          data.readFully(metadata);
+          long length = data.readLong();
+          LimitedInputStream content = new LimitedInputStream(data, length);
+          handler.document(MetadataCodec.decode(metadata), length, content);
+          content.drain();
+          break;
+        case DELETE:
+          handler.delete(data.readUTF());
+          break;
+        case RETAIN:
+          int count = data.readInt();
+          Set<String> uuids = new HashSet<>(count * 2);
+          for (int i = 0; i < count; i++) {
+            uuids.add(data.readUTF());
+          }
+          handler.retain(uuids);
+          break;
+        default:
+          throw new IOException("Unknown record " + kind + " in replication batch");
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * @return The id of the primary which sent the batch
+   */
+  public String getPrimaryId() {
+    return primaryId;
+  }
+
+  /**
+   * @return The sequence of the change log of the primary when the batch was sent
+   */
+  public long getPrimarySequence() {
+    return primarySequence;
+  }
+
+  /**
+   * @return The sequence of the primary the replica is at after applying the batch,
+   * -1 if the batch does not change it, e.g. during a full synchronization
+   */
+  public long getThrough() {
+    return through;
+  }
+
+  /**
+   * Writes the records of a batch. The batch is complete when the writer is closed,
+   * which does not close the stream.
+   */
+  public static class Writer implements AutoCloseable {
+    private final DataOutputStream output;
+    private final byte[] buffer = new byte[65536];
+
+    public Writer(OutputStream output, String primaryId, long primarySequence, long through) throws IOException {
+      this.output = new DataOutputStream(output);
+      this.output.writeInt(MAGIC);
+      this.output.writeInt(FORMAT);
+      this.output.writeUTF(primaryId);
+      this.output.writeLong(primarySequence);
+      this.output.writeLong(through);
+    }
+
+    /**
+     * Writes a document, copying the given number of bytes of the data.
+     */
+    public void document(DocumentMetadata metadata, long length, InputStream data) throws IOException {
+      byte[] encoded = MetadataCodec.encode(metadata);
+      output.writeByte(DOCUMENT);
+      output.writeInt(encoded.length);
+      output.write(encoded);
+      output.writeLong(length);
+      long remaining = length;
+      while (remaining > 0) {
+        int n = data.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (n < 0) {
+          throw new EOFException("Document " + metadata.getUuid() + " ended " + remaining + " bytes early");
+        }
+        output.write(buffer, 0, n);
+        remaining -= n;
+      }
+    }
+
+    public void delete(String uuid) throws IOException {
+      output.writeByte(DELETE);
+      output.writeUTF(uuid);
+    }
+
+    public void retain(Collection<String> uuids) throws IOException {
+      output.writeByte(RETAIN);
+      output.writeInt(uuids.size());
+      for (String uuid : uuids) {
+        output.writeUTF(uuid);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      output.writeByte(END);
+      output.flush();
+    }
+  }
+
+  /**
+   * The data of one document in a batch.
+   */
+  private static class LimitedInputStream extends FilterInputStream {
+    private long remaining;
+
+    private LimitedInputStream(InputStream input, long length) {
+      super(input);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Replication batch ended in a document");
+      }
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n < 0) {
+        throw new EOFException("Replication batch ended in a document");
+      }
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+      // the batch continues after the document
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /**
+     * Skips the data the handler did not read.
+     */
+    private void drain() throws IOException {
+      byte[] buffer = new byte[8192];
+      while (read(buffer, 0, buffer.length) >= 0) {
+        // skip
+      }
+    }
+  }
+}
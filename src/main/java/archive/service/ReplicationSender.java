@@ -0,0 +1,410 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.DocumentLocks;
+import archive.dao.IDocumentDao;
+import archive.dao.IoScheduler;
+import archive.model.Document;
+import archive.model.DocumentChange;
+import archive.model.DocumentMetadata;
+import archive.model.ReplicaStatus;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Ships the changes of this archive to its read replicas, see {@link ReplicaReceiver}.
+ * <p>
+ * Every replica has its own thread, so a slow or unreachable replica does not
+ * hold back the others or the requests to the primary. The thread reads the
+ * changes after the sequence the replica acknowledged from the change log and
+ * posts them as one {@link ReplicationBatch}: after a change it waits the batch
+ * delay for more changes, a batch ends after the batch size or when the documents
+ * in it reach the batch bytes. Changes of the same document in a batch are sent
+ * once with the current state of the document. While nothing changes the thread
+ * sends empty batches at the heartbeat interval.
+ * <p>
+ * If the replica fell behind the retained changes, or follows another primary,
+ * it is synchronized in full: the replica is asked which documents it is missing
+ * in pages of the batch size, these are shipped, and a last batch tells it which
+ * documents to retain. The changes logged in the meantime are shipped after it.
+ * Failed batches are retried with a growing delay.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("replicationSender")
+@ManagedResource(objectName = "archive:name=ReplicationSender", description = "Shipping of changes to the replicas")
+public class ReplicationSender {
+
+  public static final String ID_FILE_NAME = "replication.id";
+  public static final String SECRET_HEADER = "X-Replication-Secret";
+
+  private static final Logger LOG = Logger.getLogger(ReplicationSender.class);
+  private static final long MAX_BACKOFF = 30000L; // ..ms = 30 seconds.
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  @Autowired
+  private IoScheduler ioScheduler;
+
+  private final List<Shipper> shippers = new ArrayList<>();
+  private String id;
+
+  @PostConstruct
+  public void init() throws IOException {
+    List<String> replicas = properties.getReplication().getReplicas();
+    if (replicas.isEmpty()) {
+      return;
+    }
+    id = readId();
+    String secret = properties.getReplication().getSecret();
+    if (secret == null || secret.isEmpty()) {
+      LOG.warn("No replication secret is configured, the replicas reject all batches");
+    }
+    for (String url : replicas) {
+      Shipper shipper = new Shipper(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+      shippers.add(shipper);
+    }
+    documentDao.addChangeListener(change -> {
+      for (Shipper shipper : shippers) {
+        shipper.wake();
+      }
+    });
+    for (Shipper shipper : shippers) {
+      shipper.start();
+    }
+    LOG.info("Primary " + id + " shipping changes to " + replicas);
+  }
+
+  @PreDestroy
+  public void destroy() {
+    for (Shipper shipper : shippers) {
+      shipper.interrupt();
+    }
+  }
+
+  /**
+   * @return The states of the replicas, empty if this archive is not a primary
+   */
+  public List<ReplicaStatus> getReplicas() {
+    List<ReplicaStatus> result = new ArrayList<>(shippers.size());
+    long sequence = documentDao.getChangeSequence();
+    for (Shipper shipper : shippers) {
+      result.add(shipper.getStatus(sequence));
+    }
+    return result;
+  }
+
+  @ManagedAttribute(description = "Largest number of changes a replica has not applied")
+  public long getMaxLag() {
+    long max = 0;
+    for (ReplicaStatus status : getReplicas()) {
+      max = Math.max(max, status.getLag());
+    }
+    return max;
+  }
+
+  /**
+   * Reads the id of this archive, which is created on first use, so replicas notice
+   * when they are pointed at another primary.
+   */
+  private String readId() throws IOException {
+    Path file = Paths.get(documentDao.getArchiveDirectory(), ID_FILE_NAME);
+    if (Files.exists(file)) {
+      return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+    String created = UUID.randomUUID().toString();
+    Files.write(file, created.getBytes(StandardCharsets.UTF_8));
+    return created;
+  }
+
+  /**
+   * The thread which ships the changes to one replica.
+   */
+  private class Shipper extends Thread {
+    private final String url;
+    private volatile long acknowledged = -1;
+    private volatile long lastContact;
+    private volatile long documents;
+    private volatile long bytes;
+    private volatile long fullSyncs;
+    private volatile String error;
+    private boolean pending = true;
+
+    private Shipper(String url) {
+      super("replication-" + url.replaceFirst("^https?://", ""));
+      this.url = url;
+      setDaemon(true);
+    }
+
+    private synchronized void wake() {
+      pending = true;
+      notifyAll();
+    }
+
+    /**
+     * Waits for a change or until the next heartbeat is due.
+     *
+     * @return True if there was a change
+     */
+    private synchronized boolean await(long timeout) throws InterruptedException {
+      if (!pending && timeout > 0) {
+        wait(timeout);
+      }
+      boolean changed = pending;
+      pending = false;
+      return changed;
+    }
+
+    @Override
+    public void run() {
+      IoScheduler.markBackground();
+      ArchiveProperties.Replication settings = properties.getReplication();
+      long backoff = settings.getHeartbeat();
+      while (!isInterrupted()) {
+        try {
+          if (acknowledged < 0) {
+            acknowledged = post(Collections.emptyList(), -1);
+          }
+          if (acknowledged < 0 || acknowledged > documentDao.getChangeSequence()) {
+            synchronizeAll();
+          }
+          List<DocumentChange> changes = documentDao.getChanges(acknowledged, Math.max(1, settings.getBatchSize()));
+          if (changes == null) {
+            synchronizeAll();
+          } else if (changes.isEmpty()) {
+            if (await(settings.getHeartbeat() - (System.currentTimeMillis() - lastContact))) {
+              Thread.sleep(settings.getDelay());
+            } else {
+              acknowledged = post(Collections.emptyList(), -1);
+            }
+          } else {
+            ship(changes);
+          }
+          backoff = settings.getHeartbeat();
+          error = null;
+        } catch (InterruptedException e) {
+          break;
+        } catch (IOException | RuntimeException e) {
+          if (error == null) {
+            LOG.warn("Replication to " + url + " failed, retrying: " + e.getMessage());
+          }
+          error = e.getMessage() != null ? e.getMessage() : e.toString();
+          acknowledged = -1;
+          try {
+            Thread.sleep(backoff);
+          } catch (InterruptedException interrupted) {
+            break;
+          }
+          backoff = Math.min(MAX_BACKOFF, backoff * 2);
+        }
+      }
+    }
+
+    /**
+     * Ships a prefix of the changes which fits in the batch bytes. Documents are
+     * counted with their size in the index, the first change is always shipped.
+     */
+    private void ship(List<DocumentChange> changes) throws IOException {
+      long limit = properties.getReplication().getBatchBytes();
+      Map<String, DocumentChange> latest = new LinkedHashMap<>();
+      long size = 0;
+      long through = acknowledged;
+      for (DocumentChange change : changes) {
+        if (change.getMetadata() != null && !latest.isEmpty()) {
+          size += change.getMetadata().getFileSize();
+          if (size > limit) {
+            break;
+          }
+        }
+        latest.remove(change.getUuid());
+        latest.put(change.getUuid(), change);
+        through = change.getSequence();
+      }
+      acknowledged = post(new ArrayList<>(latest.keySet()), through);
+    }
+
+    /**
+     * Synchronizes the replica with all documents of this archive.
+     */
+    private void synchronizeAll() throws IOException {
+      long start = documentDao.getChangeSequence();
+      LOG.info("Synchronizing replica " + url + " in full at sequence " + start);
+      fullSyncs++;
+      List<DocumentMetadata> all = documentDao.scan(metadata -> true, null, null);
+      int page = Math.max(1, properties.getReplication().getBatchSize());
+      long limit = properties.getReplication().getBatchBytes();
+      List<String> uuids = new ArrayList<>(all.size());
+      for (int from = 0; from < all.size(); from += page) {
+        List<DocumentMetadata> chunk = all.subList(from, Math.min(all.size(), from + page));
+        List<String> missing = compare(chunk);
+        List<String> batch = new ArrayList<>();
+        long size = 0;
+        for (DocumentMetadata metadata : chunk) {
+          uuids.add(metadata.getUuid());
+        }
+        for (String uuid : missing) {
+          DocumentMetadata metadata = documentDao.getMetadata(uuid);
+          size += metadata != null ? metadata.getFileSize() : 0;
+          batch.add(uuid);
+          if (size >= limit) {
+            post(batch, -1);
+            batch.clear();
+            size = 0;
+          }
+        }
+        if (!batch.isEmpty()) {
+          post(batch, -1);
+        }
+      }
+      acknowledged = post(Collections.emptyList(), uuids, start);
+      LOG.info("Synchronized replica " + url + " in full, " + all.size() + " documents");
+    }
+
+    private long post(List<String> uuids, long through) throws IOException {
+      return post(uuids, null, through);
+    }
+
+    /**
+     * Posts a batch with the current state of the given documents.
+     *
+     * @param uuids   The documents to ship, a document which is gone is shipped as deleted
+     * @param retain  All documents to retain, or null
+     * @param through The sequence the replica is at after the batch, -1 to keep it
+     * @return The sequence the replica acknowledged
+     */
+    private long post(List<String> uuids, List<String> retain, long through) throws IOException {
+      long sequence = documentDao.getChangeSequence();
+      HttpURLConnection connection = open("/archive/replication", "application/octet-stream");
+      connection.setChunkedStreamingMode(65536);
+      try (OutputStream output = new BufferedOutputStream(connection.getOutputStream(), 65536);
+           ReplicationBatch.Writer writer = new ReplicationBatch.Writer(output, id, sequence, through)) {
+        for (String uuid : uuids) {
+          write(writer, uuid);
+        }
+        if (retain != null) {
+          writer.retain(retain);
+        }
+      }
+      String response = readResponse(connection);
+      try {
+        long result = Long.parseLong(response.trim());
+        lastContact = System.currentTimeMillis();
+        return result;
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid response of replica " + url + ": " + response);
+      }
+    }
+
+    /**
+     * Writes the current state of a document. The data is opened under the read
+     * lock of the document, so it matches the meta data, and copied without it.
+     */
+    private void write(ReplicationBatch.Writer writer, String uuid) throws IOException {
+      Document document;
+      InputStream data;
+      long length;
+      try (DocumentLocks.Handle lock = documentDao.lockForRead(uuid)) {
+        document = documentDao.getMetadata(uuid) == null ? null : documentDao.loadWithPath(uuid);
+        if (document == null) {
+          writer.delete(uuid);
+          return;
+        }
+        if (document.getPath() != null) {
+          length = Files.size(document.getPath());
+          data = ioScheduler.wrap(Files.newInputStream(document.getPath()), IoScheduler.IoClass.BACKGROUND);
+        } else {
+          length = document.getFileData().length;
+          data = new ByteArrayInputStream(document.getFileData());
+        }
+      }
+      try (InputStream input = data) {
+        writer.document(document.getMetadata(), length, input);
+      }
+      documents++;
+      bytes += length;
+    }
+
+    /**
+     * Asks the replica which of the documents it is missing or has in another version.
+     */
+    private List<String> compare(List<DocumentMetadata> documents) throws IOException {
+      HttpURLConnection connection = open("/archive/replication/compare", "text/plain; charset=UTF-8");
+      try (Writer writer = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8)) {
+        for (DocumentMetadata metadata : documents) {
+          writer.write(metadata.getUuid() + "\t" + metadata.getChecksum() + "\t" + metadata.getVersion() + "\n");
+        }
+      }
+      List<String> missing = new ArrayList<>();
+      for (String line : readResponse(connection).split("\n")) {
+        if (!line.trim().isEmpty()) {
+          missing.add(line.trim());
+        }
+      }
+      return missing;
+    }
+
+    private HttpURLConnection open(String path, String contentType) throws IOException {
+      int timeout = properties.getReplication().getTimeout();
+      HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setRequestProperty("Content-Type", contentType);
+      connection.setRequestProperty(SECRET_HEADER, properties.getReplication().getSecret());
+      return connection;
+    }
+
+    private String readResponse(HttpURLConnection connection) throws IOException {
+      int status = connection.getResponseCode();
+      InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      String text = "";
+      if (body != null) {
+        try (InputStream input = body) {
+          text = StreamUtils.copyToString(input, StandardCharsets.UTF_8);
+        }
+      }
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Replica " + url + " answered " + status);
+      }
+      return text;
+    }
+
+    private ReplicaStatus getStatus(long sequence) {
+      long ack = acknowledged;
+      return new ReplicaStatus(url, ack, ack < 0 ? sequence : Math.max(0, sequence - ack),
+        lastContact == 0 ? null : new Date(lastContact), documents, bytes, fullSyncs, error);
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.IDocumentDao;
+import archive.model.DocumentChange;
+import archive.model.DocumentMetadata;
+import archive.model.RetentionStatus;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes documents when the retention period of their content type is over.
+ * <p>
+ * Every document with a retention period is scheduled in a {@link TimingWheel}
+ * by the day it expires, the years of its content type after its document date.
+ * The wheel is kept up to date from the change feed of the {@link IDocumentDao}.
+ * Once a second the wheel is advanced to the current day and a limited batch of
+ * expired documents is deleted, so a large number of documents expiring on the
+ * same day does not flood the disks.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("retentionManager")
+public class RetentionManager {
+
+  private static final Logger LOG = Logger.getLogger(RetentionManager.class);
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  private TimingWheel wheel;
+  private final AtomicLong purged = new AtomicLong();
+
+  @PostConstruct
+  public void init() {
+    wheel = new TimingWheel(today());
+    documentDao.addChangeListener(this::changed);
+    for (DocumentMetadata metadata : documentDao.findByPersonNameDateContentType(null, null, null)) {
+      schedule(metadata);
+    }
+    LOG.info("Scheduled " + wheel.size() + " documents for deletion after their retention period");
+  }
+
+  /**
+   * Deletes a batch of expired documents.
+   */
+  @Scheduled(fixedDelay = 1000)
+  public void purge() {
+    if (properties.getReplication().isReplica()) {
+      return; // the deletions of the primary are replicated
+    }
+    List<String> expired;
+    synchronized (this) {
+      wheel.advance(today());
+      expired = wheel.pollDue(properties.getRetention().getPurgePerSecond());
+    }
+    for (String uuid : expired) {
+      DocumentMetadata metadata = documentDao.getMetadata(uuid);
+      Long day = metadata == null ? null : expiryDay(metadata);
+      if (day == null) {
+        continue;
+      }
+      if (day > today()) {
+        schedule(metadata); // the rules changed
+        continue;
+      }
+      try {
+        documentDao.delete(uuid);
+        purged.incrementAndGet();
+        LOG.info("Deleted document " + uuid + " after its retention period");
+      } catch (FileNotFoundException e) {
+        // deleted in the meantime
+      } catch (IOException | RuntimeException e) {
+        LOG.error("Error while deleting expired document " + uuid, e);
+      }
+    }
+  }
+
+  public synchronized RetentionStatus getStatus() {
+    return new RetentionStatus(properties.getRetention().getYears(), wheel.size() - wheel.getDueCount(),
+      wheel.getDueCount(), purged.get());
+  }
+
+  private void changed(DocumentChange change) {
+    if (change.getType() == DocumentChange.Type.DELETE) {
+      synchronized (this) {
+        wheel.remove(change.getUuid());
+      }
+    } else {
+      DocumentMetadata metadata = documentDao.getMetadata(change.getUuid());
+      if (metadata != null) {
+        schedule(metadata);
+      }
+    }
+  }
+
+  private synchronized void schedule(DocumentMetadata metadata) {
+    Long day = expiryDay(metadata);
+    if (day == null) {
+      wheel.remove(metadata.getUuid());
+    } else {
+      wheel.add(metadata.getUuid(), day);
+    }
+  }
+
+  /**
+   * @return The epoch day on which the document expires, null if it is kept forever
+   */
+  private Long expiryDay(DocumentMetadata metadata) {
+    Integer years = properties.getRetention().getYears(metadata.getContentType());
+    if (years == null || metadata.getDocumentDate() == null) {
+      return null;
+    }
+    LocalDate date = metadata.getDocumentDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    return date.plusYears(years).toEpochDay();
+  }
+
+  private static long today() {
+    return LocalDate.now().toEpochDay();
+  }
+}
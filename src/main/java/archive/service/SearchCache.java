@@ -0,0 +1,104 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.model.DocumentMetadata;
+import archive.model.DocumentQuery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the results of the most recently used searches.
+ * <p>
+ * Every result is stored with the sequence of the change log when the search
+ * started. The sequence is bumped by every insert, update and delete, so a result
+ * is valid as long as the sequence did not change and the whole cache is
+ * invalidated by a single counter, without tracking which results a change
+ * affects. The least recently used results are evicted when the cache is full.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("searchCache")
+@ManagedResource(objectName = "archive:name=SearchCache", description = "Cache of search results")
+public class SearchCache {
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  private final Map<DocumentQuery, CachedResult> entries = new LinkedHashMap<DocumentQuery, CachedResult>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<DocumentQuery, CachedResult> eldest) {
+      return size() > properties.getSearch().getCacheSize();
+    }
+  };
+  private long hits;
+  private long misses;
+
+  /**
+   * @param query    A normalized query
+   * @param sequence The current sequence of the change log
+   * @return The cached results, or null if they are missing or outdated
+   */
+  public synchronized List<DocumentMetadata> get(DocumentQuery query, long sequence) {
+    CachedResult entry = entries.get(query);
+    if (entry == null || entry.sequence != sequence) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.results;
+  }
+
+  /**
+   * Caches the results of a query unless there are too many of them.
+   *
+   * @param query    A normalized query
+   * @param sequence The sequence of the change log before the search
+   * @param results  The results of the search
+   * @return The results, which must not be modified anymore
+   */
+  public List<DocumentMetadata> put(DocumentQuery query, long sequence, List<DocumentMetadata> results) {
+    if (results.size() > properties.getSearch().getCacheMaxResults() || properties.getSearch().getCacheSize() <= 0) {
+      return results;
+    }
+    List<DocumentMetadata> cached = Collections.unmodifiableList(results);
+    synchronized (this) {
+      CachedResult entry = entries.get(query);
+      if (entry == null || entry.sequence < sequence) {
+        entries.put(query, new CachedResult(sequence, cached));
+      }
+    }
+    return cached;
+  }
+
+  @ManagedAttribute(description = "Number of cached searches")
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  @ManagedAttribute(description = "Number of searches answered from the cache")
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  @ManagedAttribute(description = "Number of searches which were not cached or outdated")
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private static class CachedResult {
+    private final long sequence;
+    private final List<DocumentMetadata> results;
+
+    private CachedResult(long sequence, List<DocumentMetadata> results) {
+      this.sequence = sequence;
+      this.results = results;
+    }
+  }
+}
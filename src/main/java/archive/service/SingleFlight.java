@@ -0,0 +1,52 @@
+package archive.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the call,
+ * the callers arriving while it runs wait for and share its result. A call which
+ * starts after the previous one finished runs again, nothing is cached.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the results
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+  /**
+   * Runs the call or waits for the running call with the same key.
+   *
+   * @param key  The key of the call
+   * @param call The call
+   * @return The result of the call
+   */
+  public V execute(K key, Supplier<V> call) {
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> running = calls.putIfAbsent(key, future);
+    if (running != null) {
+      try {
+        return running.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+    try {
+      V result = call.get();
+      future.complete(result);
+      return result;
+    } catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      calls.remove(key, future);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package archive.service;
+
+import archive.ArchiveProperties;
+import archive.dao.IDocumentDao;
+import archive.dao.IoScheduler;
+import archive.model.Document;
+import archive.model.DocumentMetadata;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates thumbnails of image documents in the background.
+ * <p>
+ * Thumbnails are created with ImageIO by a small pool of low priority threads
+ * with a bounded queue, so generating them never competes with uploads. If the
+ * queue is full the thumbnail is skipped and created when it is requested.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+@Service("thumbnailGenerator")
+public class ThumbnailGenerator {
+
+  private static final Logger LOG = Logger.getLogger(ThumbnailGenerator.class);
+
+  @Autowired
+  private IDocumentDao documentDao;
+
+  @Autowired
+  private ArchiveProperties properties;
+
+  @Autowired
+  private IoScheduler ioScheduler;
+
+  private final Set<String> pending = ConcurrentHashMap.newKeySet();
+  private ThreadPoolExecutor executor;
+
+  @PostConstruct
+  public void init() {
+    final AtomicInteger count = new AtomicInteger();
+    int threads = properties.getThumbnails().getThreads();
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(properties.getThumbnails().getQueue()), runnable -> {
+        Thread thread = new Thread(() -> {
+          IoScheduler.markBackground();
+          runnable.run();
+        }, "thumbnail-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+  }
+
+  @PreDestroy
+  public void destroy() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns true if thumbnails are generated for documents of the given content type.
+   *
+   * @param contentType The content type of a document
+   */
+  public boolean supports(String contentType) {
+    return contentType != null && contentType.startsWith("image/")
+      && ImageIO.getImageReadersByMIMEType(contentType).hasNext();
+  }
+
+  /**
+   * Queues the generation of the thumbnail of a document.
+   * Does nothing if the document is not an image or its thumbnail is already queued.
+   *
+   * @param metadata The meta data of the document
+   */
+  public void submit(DocumentMetadata metadata) {
+    final String uuid = metadata.getUuid();
+    if (!supports(metadata.getContentType()) || !pending.add(uuid)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          generate(uuid);
+        } catch (Exception e) {
+          LOG.error("Error while generating thumbnail of document with id: " + uuid, e);
+        } finally {
+          pending.remove(uuid);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pending.remove(uuid);
+      LOG.warn("Thumbnail queue is full, skipping document with id: " + uuid);
+    }
+  }
+
+  private void generate(String uuid) throws IOException {
+    Document document = documentDao.loadWithPath(uuid);
+    if (document == null || document.getPath() == null) {
+      return;
+    }
+    BufferedImage image;
+    try (IoScheduler.Permit permit = ioScheduler.acquire(IoScheduler.IoClass.BACKGROUND, document.getFileSize())) {
+      image = read(document);
+    }
+    if (image == null) {
+      LOG.warn("No image reader for document with id: " + uuid);
+      return;
+    }
+    boolean alpha = image.getColorModel().hasAlpha();
+    String format = alpha ? "png" : "jpg";
+    BufferedImage thumbnail = scale(image, alpha);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(thumbnail, format, out);
+    documentDao.saveThumbnail(uuid, out.toByteArray(), format);
+    LOG.debug("Thumbnail saved for document with id: " + uuid);
+  }
+
+  /**
+   * Reads the image of the document. Large images are subsampled while reading,
+   * so the full resolution image is never held in memory.
+   */
+  private BufferedImage read(Document document) throws IOException {
+    int size = properties.getThumbnails().getSize();
+    try (ImageInputStream input = ImageIO.createImageInputStream(document.getPath().toFile())) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        int longest = Math.max(reader.getWidth(0), reader.getHeight(0));
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = Math.max(1, longest / (size * 2));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  private BufferedImage scale(BufferedImage image, boolean alpha) {
+    int size = properties.getThumbnails().getSize();
+    double factor = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+    int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+    int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+    BufferedImage thumbnail = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = thumbnail.createGraphics();
+    try {
+      graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+    return thumbnail;
+  }
+
+  public IDocumentDao getDocumentDao() {
+    return documentDao;
+  }
+
+  public void setDocumentDao(IDocumentDao documentDao) {
+    this.documentDao = documentDao;
+  }
+}
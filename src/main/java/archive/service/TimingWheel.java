@@ -0,0 +1,154 @@
+package archive.service;
+
+import java.util.*;
+
+/**
+ * Hierarchical timing wheel of keys which expire on a day.
+ * <p>
+ * The wheel has {@value #LEVELS} levels of {@value #SLOTS} slots. A slot of level
+ * n covers 64^n days, so the levels together span about 700 years. A key is put
+ * in the lowest level whose slots cover its day, relative to the current day.
+ * When the current day enters a new slot of a higher level, the keys of that
+ * slot are cascaded to the lower levels. Adding and removing a key and advancing
+ * by one day take constant time. Keys whose day has come are moved to the due
+ * queue. Not thread safe.
+ *
+ * @author Acha Bill <achabill12[at]gmail[dot]com>
+ */
+public class TimingWheel {
+
+  private static final int BITS = 6;
+  private static final int SLOTS = 1 << BITS;
+  private static final int LEVELS = 3;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final Set<String>[][] wheel = new Set[LEVELS][SLOTS];
+  private final Set<String> overflow = new HashSet<>();
+  private final Set<String> due = new LinkedHashSet<>();
+  private final Map<String, Set<String>> slots = new HashMap<>();
+  private final Map<String, Long> days = new HashMap<>();
+  private long currentDay;
+
+  /**
+   * @param currentDay The current day as epoch day
+   */
+  public TimingWheel(long currentDay) {
+    this.currentDay = currentDay;
+    for (int level = 0; level < LEVELS; level++) {
+      for (int slot = 0; slot < SLOTS; slot++) {
+        wheel[level][slot] = new HashSet<>();
+      }
+    }
+  }
+
+  /**
+   * Adds a key which expires at the start of the given day, replacing its previous day.
+   *
+   * @param key The key
+   * @param day The expiry as epoch day
+   */
+  public void add(String key, long day) {
+    remove(key);
+    days.put(key, day);
+    place(key, day);
+  }
+
+  public void remove(String key) {
+    Set<String> slot = slots.remove(key);
+    if (slot != null) {
+      slot.remove(key);
+    }
+    days.remove(key);
+  }
+
+  /**
+   * @return The expiry day of a key, null if it is not in the wheel
+   */
+  public Long getDay(String key) {
+    return days.get(key);
+  }
+
+  /**
+   * Advances the wheel to the given day, moving the keys which expire to the due queue.
+   *
+   * @param day The current epoch day
+   */
+  public void advance(long day) {
+    while (currentDay < day) {
+      currentDay++;
+      cascade();
+      Set<String> slot = wheel[0][(int) (currentDay & (SLOTS - 1))];
+      for (String key : slot) {
+        due.add(key);
+        slots.put(key, due);
+      }
+      slot.clear();
+    }
+  }
+
+  /**
+   * Removes and returns up to the given number of due keys.
+   */
+  public List<String> pollDue(int max) {
+    List<String> keys = new ArrayList<>(Math.min(max, due.size()));
+    Iterator<String> it = due.iterator();
+    while (it.hasNext() && keys.size() < max) {
+      String key = it.next();
+      it.remove();
+      slots.remove(key);
+      days.remove(key);
+      keys.add(key);
+    }
+    return keys;
+  }
+
+  public int getDueCount() {
+    return due.size();
+  }
+
+  public int size() {
+    return days.size();
+  }
+
+  /**
+   * Moves the keys of the higher level slots which the current day enters to lower levels.
+   */
+  private void cascade() {
+    for (int level = 1; level < LEVELS; level++) {
+      if ((currentDay & ((1L << (BITS * level)) - 1)) != 0) {
+        return;
+      }
+      Set<String> slot = wheel[level][(int) ((currentDay >> (BITS * level)) & (SLOTS - 1))];
+      List<String> keys = new ArrayList<>(slot);
+      slot.clear();
+      for (String key : keys) {
+        place(key, days.get(key));
+      }
+    }
+    if ((currentDay & ((1L << (BITS * LEVELS)) - 1)) == 0) {
+      List<String> keys = new ArrayList<>(overflow);
+      overflow.clear();
+      for (String key : keys) {
+        place(key, days.get(key));
+      }
+    }
+  }
+
+  private void place(String key, long day) {
+    Set<String> slot;
+    if (day <= currentDay) {
+      slot = due;
+    } else {
+      slot = overflow;
+      for (int level = 0; level < LEVELS; level++) {
+        // The level covers the day if it is in the same slot of the next level as the current day
+        if ((day >> (BITS * (level + 1))) == (currentDay >> (BITS * (level + 1)))) {
+          slot = wheel[level][(int) ((day >> (BITS * level)) & (SLOTS - 1))];
+          break;
+        }
+      }
+    }
+    slot.add(key);
+    slots.put(key, slot);
+  }
+}
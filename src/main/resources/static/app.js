@@ -34,7 +34,56 @@ app.service('ArchiveService', [ '$http', '$rootScope', function($http, $rootScop
 	}
 }]);
 
-app.service('fileUpload', ['$http','ArchiveService', function($http, ArchiveService) {
+// Keeps $rootScope.metadataList up to date with the change feed of the archive.
+// The stream is opened before the documents are loaded, so no change is missed.
+app.service('ChangeFeed', [ '$rootScope', 'ArchiveService', function($rootScope, ArchiveService) {
+	this.start = function() {
+		if (!window.EventSource) {
+			return;
+		}
+		var source = new EventSource("http://localhost:8090/archive/changes/stream");
+		var indexOf = function(uuid) {
+			var list = $rootScope.metadataList || [];
+			for (var i = 0; i < list.length; i++) {
+				if (list[i].uuid == uuid) {
+					return i;
+				}
+			}
+			return -1;
+		};
+		source.addEventListener('insert', function(event) {
+			var change = JSON.parse(event.data);
+			$rootScope.$apply(function() {
+				if (change.metadata && indexOf(change.uuid) < 0) {
+					$rootScope.metadataList = ($rootScope.metadataList || []).concat([change.metadata]);
+				}
+			});
+		});
+		source.addEventListener('update', function(event) {
+			var change = JSON.parse(event.data);
+			$rootScope.$apply(function() {
+				var i = indexOf(change.uuid);
+				if (change.metadata && i >= 0) {
+					$rootScope.metadataList[i] = change.metadata;
+				}
+			});
+		});
+		source.addEventListener('delete', function(event) {
+			var change = JSON.parse(event.data);
+			$rootScope.$apply(function() {
+				var i = indexOf(change.uuid);
+				if (i >= 0) {
+					$rootScope.metadataList.splice(i, 1);
+				}
+			});
+		});
+		source.addEventListener('reset', function() {
+			ArchiveService.search(null);
+		});
+	}
+}]);
+
+app.service('fileUpload', ['$http', function($http) {
 	this.uploadFileToUrl = function(uploadUrl, file, name, date) {
 		var fd = new FormData();
 		fd.append('file', file);
@@ -46,7 +95,7 @@ app.service('fileUpload', ['$http','ArchiveService', function($http, ArchiveServ
 				'Content-Type' : undefined
 			}
 		}).success(function() {
-			ArchiveService.search(null);
+			// The new document arrives through the change feed
 		}).error(function(error) {
 			console.log(error);
 		});
@@ -67,6 +116,9 @@ app.controller('UploadCtrl', [ '$scope', 'fileUpload',
 		} ]);
 
 app.controller('ArchiveCtrl', function($scope, $http) {
+	$scope.isImage = function(metadata) {
+		return metadata.contentType && metadata.contentType.indexOf('image/') == 0;
+	};
 	$scope.search = function(name, date,contentType) {
 		$http.get("http://localhost:8090/archive/documents", {
 			params : {
@@ -80,7 +132,8 @@ app.controller('ArchiveCtrl', function($scope, $http) {
 	};
 });
 
-app.run(function($rootScope, $http) {
+app.run(function($rootScope, $http, ChangeFeed) {
+	ChangeFeed.start();
 	$http.get("http://localhost:8090/archive/documents").success(
 			function(response) {
 				$rootScope.metadataList = response;